@@ -0,0 +1,78 @@
+package ext.sma.jmx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.things.properties.ThingProperty;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+
+/**
+ * Server and container Things usable without a running platform: the data
+ * shapes are built in memory and the pushed values are only counted.
+ */
+class BenchmarkThings {
+
+	static class Server extends JMXServerTemplate {
+		@Override
+		InfoTable createNamedVTQ() {
+			return new InfoTable(namedVTQ());
+		}
+	}
+
+	static class Container extends JMXMBeanContainerTemplate {
+		private final Map<String, ThingProperty> _properties = new LinkedHashMap<String, ThingProperty>();
+		long pushed = 0;
+
+		@Override
+		public String getName() {
+			return "BenchmarkContainer";
+		}
+
+		@Override
+		public Map<String, ThingProperty> getProperties() {
+			return _properties;
+		}
+
+		@Override
+		public void UpdatePropertyValues(InfoTable values) {
+			pushed += values.getRowCount();
+		}
+
+		void addProperty(PropertyDefinition prop_def) {
+			_properties.put(prop_def.getName(), new ThingProperty(prop_def));
+		}
+	}
+
+	/**
+	 * Returns a property bound to an MBean attribute, encoded like
+	 * AddMBeanPropertyDefinition does.
+	 */
+	static PropertyDefinition property(String objectName, String name, BaseTypes type, String category) {
+		final PropertyDefinition prop_def = new PropertyDefinition(name, objectName, type);
+		prop_def.setCategory(category);
+		return prop_def;
+	}
+
+	static DataShapeDefinition namedVTQ() {
+		final DataShapeDefinition shape = new DataShapeDefinition();
+		shape.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+		shape.addFieldDefinition(new FieldDefinition("time", BaseTypes.DATETIME));
+		shape.addFieldDefinition(new FieldDefinition("value", BaseTypes.VARIANT));
+		shape.addFieldDefinition(new FieldDefinition("quality", BaseTypes.STRING));
+		return shape;
+	}
+
+	static DataShapeDefinition mbeanTree() {
+		final DataShapeDefinition shape = new DataShapeDefinition();
+		shape.addFieldDefinition(new FieldDefinition("nodeId", BaseTypes.STRING));
+		shape.addFieldDefinition(new FieldDefinition("parentId", BaseTypes.STRING));
+		shape.addFieldDefinition(new FieldDefinition("nodeName", BaseTypes.STRING));
+		shape.addFieldDefinition(new FieldDefinition("objectName", BaseTypes.STRING));
+		shape.addFieldDefinition(new FieldDefinition("hasChildren", BaseTypes.BOOLEAN));
+		return shape;
+	}
+}
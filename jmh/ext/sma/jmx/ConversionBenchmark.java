@@ -0,0 +1,78 @@
+package ext.sma.jmx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.thingworx.types.BaseTypes;
+
+/**
+ * Mapping of the MBean attribute types and conversion of the values to
+ * ThingWorx primitives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+	private final String[] _types = { "long", "java.lang.Long", "double", "java.lang.Integer", "boolean",
+			"java.lang.String", "javax.management.openmbean.CompositeData", "[J",
+			"java.util.concurrent.atomic.AtomicLong" };
+	private final Object[] _values = { 12345L, 0.75d, 42, true, "value" };
+	private final BaseTypes[] _baseTypes = { BaseTypes.LONG, BaseTypes.NUMBER, BaseTypes.INTEGER, BaseTypes.BOOLEAN,
+			BaseTypes.STRING };
+	private ReadPlan.Converter[] _converters;
+
+	@Benchmark
+	public void javaTypeToBaseType(Blackhole bh) {
+		for (String type : _types) {
+			bh.consume(JMXServerTemplate.JavaTypeToBaseType(type));
+		}
+	}
+
+	@Benchmark
+	public void convertToPrimitive(Blackhole bh) throws Exception {
+		for (int i = 0; i < _values.length; i++) {
+			bh.consume(BaseTypes.ConvertToPrimitive(_values[i], _baseTypes[i]));
+		}
+	}
+
+	@Setup
+	public void setup() {
+		_converters = new ReadPlan.Converter[_baseTypes.length];
+		for (int i = 0; i < _baseTypes.length; i++) {
+			_converters[i] = ReadPlan.getConverter(_baseTypes[i]);
+		}
+	}
+
+	@Benchmark
+	public void convertWithReadPlan(Blackhole bh) throws Exception {
+		// converters compiled once per property by the read plan
+		for (int i = 0; i < _values.length; i++) {
+			bh.consume(_converters[i].convert(_values[i]));
+		}
+	}
+
+	@Benchmark
+	public void convertToNumber(Blackhole bh) throws Exception {
+		// long counters stored in NUMBER properties (rates, deltas)
+		for (Object value : _values) {
+			if (value instanceof Number) {
+				bh.consume(BaseTypes.ConvertToPrimitive(value, BaseTypes.NUMBER));
+			}
+		}
+	}
+}
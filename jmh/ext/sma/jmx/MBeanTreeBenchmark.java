@@ -0,0 +1,57 @@
+package ext.sma.jmx;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thingworx.types.InfoTable;
+
+/**
+ * Indexing of the MBean names into the tree, and export of the whole tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MBeanTreeBenchmark {
+
+	@Param({ "1000", "10000", "50000" })
+	public int names;
+
+	private Set<ObjectName> _names;
+	private MBeanTreeBuilder _tree;
+
+	@Setup
+	public void setup() throws Exception {
+		_names = SyntheticMBeans.names(names);
+		_tree = new MBeanTreeBuilder();
+		_tree.addMBeans(_names);
+	}
+
+	@Benchmark
+	public MBeanTreeBuilder addMBeans() {
+		final MBeanTreeBuilder tree = new MBeanTreeBuilder();
+		tree.addMBeans(_names);
+		return tree;
+	}
+
+	@Benchmark
+	public InfoTable toInfoTable() {
+		return _tree.toInfoTable(new InfoTable(BenchmarkThings.mbeanTree()));
+	}
+}
@@ -0,0 +1,70 @@
+package ext.sma.jmx;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.types.BaseTypes;
+
+/**
+ * Selection of the properties to read (isCandiateForUpdate) on large
+ * containers, with a mix of polled, notification and plain properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropertyFilterBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int properties;
+
+	private BenchmarkThings.Container _container;
+
+	@Setup
+	public void setup() {
+		_container = new BenchmarkThings.Container();
+		for (int i = 0; i < properties; i++) {
+			final String obj_name = SyntheticMBeans.DOMAIN + ":type=Sample,name=bean" + (i / 5);
+			final String category;
+			switch (i % 5) {
+			case 0:
+				category = JMXMBeanContainerTemplate.RATE_CATEGORY;
+				break;
+			case 1:
+				category = JMXMBeanContainerTemplate.NOTIFICATION_CATEGORY;
+				break;
+			case 2:
+				category = "";
+				break;
+			default:
+				category = JMXMBeanContainerTemplate.MBEAN_CATEGORY;
+			}
+			_container.addProperty(BenchmarkThings.property(obj_name, "Attribute" + i, BaseTypes.NUMBER, category));
+		}
+	}
+
+	@Benchmark
+	public List<PropertyDefinition> forced() {
+		return _container.getMBeanPropertiesDefinitionForUpdate(true);
+	}
+
+	@Benchmark
+	public List<PropertyDefinition> cached() {
+		return _container.getMBeanPropertiesDefinitionForUpdate(false);
+	}
+}
@@ -0,0 +1,76 @@
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.types.BaseTypes;
+
+/**
+ * One container refresh: bulk read of the synthetic MBeans of the platform
+ * MBeanServer, conversion, statistics / counters / deadbands and the NamedVTQ
+ * table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PushMBeanAttributesBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int beans;
+
+	private List<ObjectName> _names;
+	private BenchmarkThings.Server _server;
+	private BenchmarkThings.Container _container;
+	private List<PropertyDefinition> _properties;
+
+	@Setup
+	public void setup() throws Exception {
+		_names = SyntheticMBeans.register(beans);
+		_server = new BenchmarkThings.Server();
+		_container = new BenchmarkThings.Container();
+		_properties = new ArrayList<PropertyDefinition>();
+		for (ObjectName oname : _names) {
+			final String obj_name = oname.toString();
+			_properties.add(BenchmarkThings.property(obj_name, "Count", BaseTypes.LONG,
+					JMXMBeanContainerTemplate.MBEAN_CATEGORY));
+			_properties.add(BenchmarkThings.property(obj_name, "Count_rate", BaseTypes.NUMBER,
+					JMXMBeanContainerTemplate.RATE_CATEGORY));
+			_properties.add(BenchmarkThings.property(obj_name, "Ratio", BaseTypes.NUMBER,
+					JMXMBeanContainerTemplate.MBEAN_CATEGORY));
+			_properties.add(BenchmarkThings.property(obj_name, "Label", BaseTypes.STRING,
+					JMXMBeanContainerTemplate.MBEAN_CATEGORY));
+			_properties.add(BenchmarkThings.property(obj_name, "Usage_used", BaseTypes.LONG,
+					JMXMBeanContainerTemplate.MBEAN_CATEGORY));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		SyntheticMBeans.unregister(_names);
+	}
+
+	@Benchmark
+	public int push() throws Exception {
+		return _server.pushMBeanAttributes(_container, _properties);
+	}
+}
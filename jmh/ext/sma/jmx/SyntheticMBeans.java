@@ -0,0 +1,89 @@
+package ext.sma.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Synthetic MBeans registered on the platform MBeanServer for the benchmarks,
+ * each with a counter, a gauge, a string and a composite attribute.
+ */
+public class SyntheticMBeans {
+
+	static final String DOMAIN = "ext.sma.jmx.bench";
+
+	public interface SampleMXBean {
+		long getCount();
+
+		double getRatio();
+
+		String getLabel();
+
+		MemoryUsage getUsage();
+	}
+
+	static class Sample implements SampleMXBean {
+		private long _count = 0;
+
+		@Override
+		public long getCount() {
+			return ++_count;
+		}
+
+		@Override
+		public double getRatio() {
+			return (_count % 100) / 100.0;
+		}
+
+		@Override
+		public String getLabel() {
+			return "sample";
+		}
+
+		@Override
+		public MemoryUsage getUsage() {
+			return new MemoryUsage(0, _count * 1024, _count * 2048, -1);
+		}
+	}
+
+	/**
+	 * Returns count ObjectNames spread over a few domains and key depths, as
+	 * found on an application server.
+	 */
+	static Set<ObjectName> names(int count) throws Exception {
+		final Set<ObjectName> names = new LinkedHashSet<ObjectName>();
+		for (int i = 0; i < count; i++) {
+			names.add(new ObjectName(DOMAIN + (i % 8) + ":type=Type" + (i % 20) + ",group=g" + (i % 50)
+					+ ",name=bean" + i));
+		}
+		return names;
+	}
+
+	static List<ObjectName> register(int count) throws Exception {
+		final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		final List<ObjectName> names = new ArrayList<ObjectName>();
+		for (int i = 0; i < count; i++) {
+			final ObjectName oname = new ObjectName(DOMAIN + ":type=Sample,name=bean" + i);
+			if (!mbs.isRegistered(oname)) {
+				mbs.registerMBean(new Sample(), oname);
+			}
+			names.add(oname);
+		}
+		return names;
+	}
+
+	static void unregister(List<ObjectName> names) throws Exception {
+		final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName oname : names) {
+			if (mbs.isRegistered(oname)) {
+				mbs.unregisterMBean(oname);
+			}
+		}
+	}
+}
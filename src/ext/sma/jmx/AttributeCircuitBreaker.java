@@ -0,0 +1,147 @@
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.DatetimePrimitive;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Circuit breaker per (ObjectName, attribute) read by a server.
+ * <p>
+ * After failureThreshold consecutive failures (errors or timeouts) the
+ * attribute is quarantined (OPEN) and not read anymore until its backoff
+ * expires, the backoff doubling each time the attribute fails again. It is
+ * then read alone once (HALF_OPEN): a success closes the breaker, a failure
+ * opens it again. Only the state changes are logged as warnings.
+ */
+class AttributeCircuitBreaker {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(AttributeCircuitBreaker.class);
+
+	private final int _failureThreshold;
+	private final long _minBackoff;
+	private final long _maxBackoff;
+	private final Map<String, Breaker> _breakers = new ConcurrentHashMap<String, Breaker>();
+
+	AttributeCircuitBreaker(int failureThreshold, long minBackoff, long maxBackoff) {
+		_failureThreshold = Math.max(failureThreshold, 1);
+		_minBackoff = Math.max(minBackoff, 1);
+		_maxBackoff = Math.max(maxBackoff, _minBackoff);
+	}
+
+	private static String getKey(String objectName, String attribute) {
+		return objectName + '|' + attribute;
+	}
+
+	/**
+	 * Returns the state to use for the next read: CLOSED (read in bulk with the
+	 * other attributes), HALF_OPEN (probe, read alone) or OPEN (do not read).
+	 */
+	State acquire(String objectName, String attribute, long now) {
+		final Breaker breaker = _breakers.get(getKey(objectName, attribute));
+		if (breaker == null) {
+			return State.CLOSED;
+		}
+		synchronized (breaker) {
+			if (breaker.state == State.OPEN && now >= breaker.retryAt) {
+				breaker.state = State.HALF_OPEN;
+			}
+			return breaker.state;
+		}
+	}
+
+	void recordSuccess(String objectName, String attribute) {
+		final Breaker breaker = _breakers.get(getKey(objectName, attribute));
+		if (breaker == null) {
+			return;
+		}
+		synchronized (breaker) {
+			if (breaker.state != State.CLOSED) {
+				_logger.info("MBean attribute {} / {} readable again, circuit closed.", objectName, attribute);
+			}
+			breaker.state = State.CLOSED;
+			breaker.failures = 0;
+			breaker.backoff = 0;
+		}
+	}
+
+	void recordFailure(String objectName, String attribute, String error, long now) {
+		final Breaker breaker = _breakers.computeIfAbsent(getKey(objectName, attribute),
+				k -> new Breaker(objectName, attribute));
+		synchronized (breaker) {
+			breaker.failures++;
+			breaker.lastError = error;
+			if (breaker.state == State.HALF_OPEN || breaker.failures >= _failureThreshold) {
+				breaker.backoff = breaker.backoff == 0 ? _minBackoff : Math.min(breaker.backoff * 2, _maxBackoff);
+				breaker.retryAt = now + breaker.backoff;
+				if (breaker.state == State.CLOSED) {
+					_logger.warn("Error reading MBean attribute {} / {} because {}, quarantined for {} ms.",
+							objectName, attribute, error, breaker.backoff);
+				} else {
+					_logger.debug("MBean attribute {} / {} still failing ({}), quarantined for {} ms.", objectName,
+							attribute, error, breaker.backoff);
+				}
+				breaker.state = State.OPEN;
+			} else {
+				_logger.debug("Error reading MBean attribute {} / {} because {}.", objectName, attribute, error);
+			}
+		}
+	}
+
+	void reset() {
+		_breakers.clear();
+	}
+
+	/**
+	 * Returns one row per attribute that failed since its last success.
+	 */
+	List<ValueCollection> getStates() {
+		final List<ValueCollection> rows = new ArrayList<ValueCollection>();
+		for (Breaker breaker : _breakers.values()) {
+			synchronized (breaker) {
+				if (breaker.failures == 0) {
+					continue;
+				}
+				final ValueCollection values = new ValueCollection();
+				values.put("objectName", new StringPrimitive(breaker.objectName));
+				values.put("attribute", new StringPrimitive(breaker.attribute));
+				values.put("state", new StringPrimitive(breaker.state.name()));
+				values.put("failures", new IntegerPrimitive(breaker.failures));
+				values.put("lastError", new StringPrimitive(breaker.lastError));
+				if (breaker.state != State.CLOSED) {
+					values.put("retryAt", new DatetimePrimitive(new DateTime(breaker.retryAt)));
+				}
+				rows.add(values);
+			}
+		}
+		return rows;
+	}
+
+	private static class Breaker {
+		private final String objectName;
+		private final String attribute;
+		private State state = State.CLOSED;
+		private int failures = 0;
+		private long backoff = 0;
+		private long retryAt = 0;
+		private String lastError = null;
+
+		private Breaker(String objectName, String attribute) {
+			this.objectName = objectName;
+			this.attribute = attribute;
+		}
+	}
+}
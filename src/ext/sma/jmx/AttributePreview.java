@@ -0,0 +1,126 @@
+package ext.sma.jmx;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Reads attribute values for display, with one bulk getAttributes call, under
+ * an overall time budget. Attributes not read when the budget is exhausted are
+ * reported as timed out instead of stalling the caller.
+ * <p>
+ * The reads go through the blocked read limit of the server, so the hung
+ * getters of a browsed MBean cannot pile up threads.
+ */
+class AttributePreview {
+
+	static final String TIMEOUT = "timeout";
+	static final String BLOCKED = "[ERROR] - too many reads still blocked on the server";
+
+	private static final int PREVIEW_ELEMENTS = 10;
+
+	private final Map<String, Object> _values = new ConcurrentHashMap<String, Object>();
+	private final Map<String, String> _errors = new ConcurrentHashMap<String, String>();
+
+	private AttributePreview() {
+	}
+
+	static AttributePreview read(BlockedReads reads, MBeanServerConnection mbs, ObjectName oname,
+			Collection<String> attrNames, long deadline) throws InterruptedException {
+
+		final AttributePreview preview = new AttributePreview();
+		if (attrNames.isEmpty()) {
+			return preview;
+		}
+
+		final Set<String> names = new LinkedHashSet<String>(attrNames);
+		// bounded like the refresh reads, a browser refreshing against a hung getter would pile them up
+		final BlockedReads.Read reading = reads.submit(() -> {
+			try {
+				final AttributeList attrs = mbs.getAttributes(oname, names.toArray(new String[names.size()]));
+				for (Attribute attr : attrs.asList()) {
+					preview.put(attr.getName(), attr.getValue());
+				}
+			} catch (Exception ex) {
+				// read them one by one below to get the causes
+			}
+			for (String name : names) {
+				if (!preview.isRead(name)) {
+					try {
+						preview.put(name, mbs.getAttribute(oname, name));
+					} catch (Exception ex) {
+						preview._errors.put(name, "[ERROR] - " + ex.getMessage());
+					}
+				}
+			}
+		});
+
+		if (reading == null) {
+			for (String name : names) {
+				preview._errors.put(name, BLOCKED);
+			}
+			return preview;
+		}
+		// errors are recorded per attribute, the ones left unread are reported as timed out
+		reading.await(deadline);
+		return preview;
+	}
+
+	private void put(String name, Object value) {
+		// ConcurrentHashMap does not accept null values
+		_values.put(name, value != null ? value : this);
+	}
+
+	boolean isRead(String name) {
+		return _values.containsKey(name) || _errors.containsKey(name);
+	}
+
+	/**
+	 * Returns the value, or null if it could not be read (see getPreview).
+	 */
+	Object getValue(String name) {
+		final Object value = _values.get(name);
+		return value == this ? null : value;
+	}
+
+	/**
+	 * Returns the text to display for the attribute: its value, the read error or
+	 * "timeout".
+	 */
+	String getPreview(String name) {
+		if (_values.containsKey(name)) {
+			return toText(getValue(name));
+		}
+		final String error = _errors.get(name);
+		return error != null ? error : TIMEOUT;
+	}
+
+	/**
+	 * Returns the text of a value, with the tables and arrays summarized (and
+	 * only their first elements).
+	 */
+	static String toText(Object value) {
+		if (value instanceof TabularData) {
+			return "TabularData (" + ((TabularData) value).size() + " rows)";
+		}
+		if (value != null && value.getClass().isArray()) {
+			final int length = Array.getLength(value);
+			final StringBuilder text = new StringBuilder(value.getClass().getComponentType().getSimpleName())
+					.append('[').append(length).append(']');
+			for (int i = 0; i < Math.min(length, PREVIEW_ELEMENTS); i++) {
+				text.append(i == 0 ? ": " : ", ").append(Array.get(value, i));
+			}
+			return length > PREVIEW_ELEMENTS ? text.append(", ...").toString() : text.toString();
+		}
+		return value != null ? value.toString() : null;
+	}
+}
@@ -0,0 +1,108 @@
+package ext.sma.jmx;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads of a server run on the io pool, so the caller can give up after a
+ * timeout, bounded by the number of reads still blocked in a getter after
+ * their caller gave up.
+ * <p>
+ * A read is only counted from its timeout until its getter returns: the
+ * healthy reads of a refresh (or of several refreshes running in parallel)
+ * are never limited. A read given up before it started is cancelled and
+ * never runs.
+ */
+class BlockedReads {
+
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+	private static final int ABANDONED = 3;
+
+	private final int _max;
+	private final AtomicInteger _blocked = new AtomicInteger();
+
+	BlockedReads(int max) {
+		_max = Math.max(max, 1);
+	}
+
+	/**
+	 * Returns the number of reads given up and still running.
+	 */
+	int getBlocked() {
+		return _blocked.get();
+	}
+
+	/**
+	 * Submits the read, or returns null while too many reads are still blocked.
+	 */
+	Read submit(Runnable read) {
+		if (_blocked.get() >= _max) {
+			return null;
+		}
+		final Read pending = new Read(read);
+		pending.future = JMXExecutors.io().submit(pending::run);
+		return pending;
+	}
+
+	class Read {
+		private final Runnable _read;
+		private final AtomicInteger _state = new AtomicInteger(QUEUED);
+		private Future<?> future = null;
+
+		private Read(Runnable read) {
+			_read = read;
+		}
+
+		private void run() {
+			if (!_state.compareAndSet(QUEUED, RUNNING)) {
+				return;
+			}
+			try {
+				_read.run();
+			} finally {
+				if (_state.getAndSet(DONE) == ABANDONED) {
+					_blocked.decrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the read until the deadline, returns false if it was given up.
+		 */
+		boolean await(long deadline) throws InterruptedException {
+			try {
+				future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+				return true;
+			} catch (TimeoutException ex) {
+				abandon();
+				return false;
+			} catch (InterruptedException ex) {
+				abandon();
+				throw ex;
+			} catch (ExecutionException ex) {
+				// the read records its own errors
+				return true;
+			}
+		}
+
+		private void abandon() {
+			if (_state.compareAndSet(QUEUED, DONE)) {
+				future.cancel(false);
+				return;
+			}
+			// counted before the state change, so the end of the read cannot miss it
+			_blocked.incrementAndGet();
+			if (_state.compareAndSet(RUNNING, ABANDONED)) {
+				future.cancel(true);
+			} else {
+				// returned in the meantime
+				_blocked.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package ext.sma.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.LongPrimitive;
+import com.thingworx.types.primitives.NumberPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Cost of the collection for one server or one container: refresh counts and
+ * latencies, attributes read / failed, UpdatePropertyValues and value stream
+ * write times.
+ * <p>
+ * The counters are LongAdders and the latencies go to fixed log2 histograms,
+ * so recording does not allocate nor contend between the refresh threads.
+ */
+class CollectorStatistics implements CollectorStatisticsMBean {
+
+	static final String DOMAIN = "ext.sma.jmx";
+	static final String SERVER_SCOPE = "server";
+	static final String CONTAINER_SCOPE = "container";
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(CollectorStatistics.class);
+
+	private final String _scope;
+	private final String _name;
+	private ObjectName _objectName = null;
+
+	private final LongAdder _refreshes = new LongAdder();
+	private final LongAdder _refreshErrors = new LongAdder();
+	private final LongAdder _attributesRead = new LongAdder();
+	private final LongAdder _attributesFailed = new LongAdder();
+	private final LongAdder _attributesSkipped = new LongAdder();
+	private final LongAdder _valuesPushed = new LongAdder();
+	private final LongAdder _valueStreamEntries = new LongAdder();
+	private final LongAdder _valueStreamErrors = new LongAdder();
+	private final LatencyHistogram _refreshTime = new LatencyHistogram();
+	private final LatencyHistogram _updateTime = new LatencyHistogram();
+	private final LatencyHistogram _valueStreamTime = new LatencyHistogram();
+
+	CollectorStatistics(String scope, String name) {
+		_scope = scope;
+		_name = name;
+	}
+
+	/**
+	 * Records a refresh (pushMBeanAttributes call) of a container.
+	 */
+	void refreshed(long nanos, int read, int failed, int skipped, int pushed) {
+		_refreshes.increment();
+		_refreshTime.record(nanos);
+		_attributesRead.add(read);
+		_attributesFailed.add(failed);
+		_attributesSkipped.add(skipped);
+		_valuesPushed.add(pushed);
+	}
+
+	void refreshFailed(long nanos) {
+		_refreshes.increment();
+		_refreshErrors.increment();
+		_refreshTime.record(nanos);
+	}
+
+	void updated(long nanos) {
+		_updateTime.record(nanos);
+	}
+
+	void valueStreamWritten(long nanos, boolean success) {
+		_valueStreamEntries.increment();
+		if (!success) {
+			_valueStreamErrors.increment();
+		}
+		_valueStreamTime.record(nanos);
+	}
+
+	/**
+	 * Publishes the statistics on the platform MBeanServer, replacing the MBean
+	 * of a previous start of the Thing.
+	 */
+	synchronized void register() {
+		try {
+			final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName oname = new ObjectName(
+					DOMAIN + ":type=CollectorStats,scope=" + _scope + ",name=" + ObjectName.quote(_name));
+			if (mbs.isRegistered(oname)) {
+				mbs.unregisterMBean(oname);
+			}
+			mbs.registerMBean(this, oname);
+			_objectName = oname;
+		} catch (Exception ex) {
+			_logger.warn("Error registering the collector statistics of {} because {}.", _name, ex.getMessage());
+		}
+	}
+
+	synchronized void unregister() {
+		if (_objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+			} catch (Exception ex) {
+				_logger.debug("Error unregistering {} because {}.", _objectName, ex.getMessage());
+			}
+			_objectName = null;
+		}
+	}
+
+	ValueCollection toValueCollection() {
+		final ValueCollection values = new ValueCollection();
+		values.put("scope", new StringPrimitive(_scope));
+		values.put("name", new StringPrimitive(_name));
+		values.put("refreshes", new LongPrimitive(getRefreshCount()));
+		values.put("refreshErrors", new LongPrimitive(getRefreshErrorCount()));
+		values.put("attributesRead", new LongPrimitive(getAttributesRead()));
+		values.put("attributesFailed", new LongPrimitive(getAttributesFailed()));
+		values.put("attributesSkipped", new LongPrimitive(getAttributesSkipped()));
+		values.put("valuesPushed", new LongPrimitive(getValuesPushed()));
+		values.put("valueStreamEntries", new LongPrimitive(getValueStreamEntries()));
+		values.put("valueStreamErrors", new LongPrimitive(getValueStreamErrors()));
+		values.put("refreshMean", new NumberPrimitive(getRefreshTimeMean()));
+		values.put("refreshP50", new NumberPrimitive(getRefreshTimeP50()));
+		values.put("refreshP95", new NumberPrimitive(getRefreshTimeP95()));
+		values.put("refreshP99", new NumberPrimitive(getRefreshTimeP99()));
+		values.put("refreshMax", new NumberPrimitive(getRefreshTimeMax()));
+		values.put("updateMean", new NumberPrimitive(getUpdateTimeMean()));
+		values.put("updateP95", new NumberPrimitive(getUpdateTimeP95()));
+		values.put("updateMax", new NumberPrimitive(getUpdateTimeMax()));
+		values.put("valueStreamMean", new NumberPrimitive(getValueStreamTimeMean()));
+		values.put("valueStreamP95", new NumberPrimitive(getValueStreamTimeP95()));
+		return values;
+	}
+
+	@Override
+	public long getRefreshCount() {
+		return _refreshes.sum();
+	}
+
+	@Override
+	public long getRefreshErrorCount() {
+		return _refreshErrors.sum();
+	}
+
+	@Override
+	public long getAttributesRead() {
+		return _attributesRead.sum();
+	}
+
+	@Override
+	public long getAttributesFailed() {
+		return _attributesFailed.sum();
+	}
+
+	@Override
+	public long getAttributesSkipped() {
+		return _attributesSkipped.sum();
+	}
+
+	@Override
+	public long getValuesPushed() {
+		return _valuesPushed.sum();
+	}
+
+	@Override
+	public long getValueStreamEntries() {
+		return _valueStreamEntries.sum();
+	}
+
+	@Override
+	public long getValueStreamErrors() {
+		return _valueStreamErrors.sum();
+	}
+
+	@Override
+	public double getRefreshTimeMean() {
+		return _refreshTime.getMean();
+	}
+
+	@Override
+	public double getRefreshTimeP50() {
+		return _refreshTime.getPercentile(0.50);
+	}
+
+	@Override
+	public double getRefreshTimeP95() {
+		return _refreshTime.getPercentile(0.95);
+	}
+
+	@Override
+	public double getRefreshTimeP99() {
+		return _refreshTime.getPercentile(0.99);
+	}
+
+	@Override
+	public double getRefreshTimeMax() {
+		return _refreshTime.getMax();
+	}
+
+	@Override
+	public double getUpdateTimeMean() {
+		return _updateTime.getMean();
+	}
+
+	@Override
+	public double getUpdateTimeP95() {
+		return _updateTime.getPercentile(0.95);
+	}
+
+	@Override
+	public double getUpdateTimeMax() {
+		return _updateTime.getMax();
+	}
+
+	@Override
+	public double getValueStreamTimeMean() {
+		return _valueStreamTime.getMean();
+	}
+
+	@Override
+	public double getValueStreamTimeP95() {
+		return _valueStreamTime.getPercentile(0.95);
+	}
+
+	@Override
+	public void reset() {
+		_refreshes.reset();
+		_refreshErrors.reset();
+		_attributesRead.reset();
+		_attributesFailed.reset();
+		_attributesSkipped.reset();
+		_valuesPushed.reset();
+		_valueStreamEntries.reset();
+		_valueStreamErrors.reset();
+		_refreshTime.reset();
+		_updateTime.reset();
+		_valueStreamTime.reset();
+	}
+
+	/**
+	 * Latency histogram with one bucket per power of 2 microseconds: the
+	 * percentiles are upper bounds, within a factor 2 of the exact value.
+	 */
+	private static class LatencyHistogram {
+		private static final int BUCKETS = 40;
+
+		private final LongAdder[] _buckets = new LongAdder[BUCKETS];
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _sum = new LongAdder();
+		private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+		private LatencyHistogram() {
+			for (int i = 0; i < BUCKETS; i++) {
+				_buckets[i] = new LongAdder();
+			}
+		}
+
+		private void record(long nanos) {
+			final long micros = Math.max(nanos / 1000, 0);
+			_buckets[Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1)].increment();
+			_count.increment();
+			_sum.add(nanos);
+			_max.accumulate(nanos);
+		}
+
+		private double getMean() {
+			final long count = _count.sum();
+			return count == 0 ? 0 : _sum.sum() / 1e6 / count;
+		}
+
+		private double getMax() {
+			return _max.get() / 1e6;
+		}
+
+		private double getPercentile(double q) {
+			final long count = _count.sum();
+			if (count == 0) {
+				return 0;
+			}
+			final long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += _buckets[i].sum();
+				if (seen >= rank) {
+					// upper bound of the bucket, but never above the max
+					return Math.min((1L << i) / 1e3, getMax());
+				}
+			}
+			return getMax();
+		}
+
+		private void reset() {
+			for (LongAdder bucket : _buckets) {
+				bucket.reset();
+			}
+			_count.reset();
+			_sum.reset();
+			_max.reset();
+		}
+	}
+}
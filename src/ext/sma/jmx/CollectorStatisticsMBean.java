@@ -0,0 +1,48 @@
+package ext.sma.jmx;
+
+/**
+ * Management interface of the collector statistics, published on the platform
+ * MBeanServer as ext.sma.jmx:type=CollectorStats,scope=server|container,name=...
+ * <p>
+ * The times are in milliseconds.
+ */
+public interface CollectorStatisticsMBean {
+
+	long getRefreshCount();
+
+	long getRefreshErrorCount();
+
+	long getAttributesRead();
+
+	long getAttributesFailed();
+
+	long getAttributesSkipped();
+
+	long getValuesPushed();
+
+	long getValueStreamEntries();
+
+	long getValueStreamErrors();
+
+	double getRefreshTimeMean();
+
+	double getRefreshTimeP50();
+
+	double getRefreshTimeP95();
+
+	double getRefreshTimeP99();
+
+	double getRefreshTimeMax();
+
+	double getUpdateTimeMean();
+
+	double getUpdateTimeP95();
+
+	double getUpdateTimeMax();
+
+	double getValueStreamTimeMean();
+
+	double getValueStreamTimeP95();
+
+	void reset();
+}
@@ -0,0 +1,83 @@
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Running containers by server name, maintained by the containers themselves
+ * (start, stop and change of their JmxServer property), so the server-wide
+ * services do not search the model.
+ */
+class ContainerRegistry {
+
+	private static final Map<String, Map<String, JMXMBeanContainerTemplate>> _servers = new ConcurrentHashMap<String, Map<String, JMXMBeanContainerTemplate>>();
+
+	private ContainerRegistry() {
+	}
+
+	static void register(String serverName, JMXMBeanContainerTemplate container) {
+		if (serverName != null && !serverName.isEmpty()) {
+			_servers.computeIfAbsent(serverName, k -> new ConcurrentHashMap<String, JMXMBeanContainerTemplate>())
+					.put(container.getName(), container);
+		}
+	}
+
+	static void unregister(String serverName, JMXMBeanContainerTemplate container) {
+		if (serverName != null) {
+			final Map<String, JMXMBeanContainerTemplate> containers = _servers.get(serverName);
+			if (containers != null) {
+				// a restarted container may already be registered as a new instance
+				containers.remove(container.getName(), container);
+			}
+		}
+	}
+
+	/**
+	 * Returns the containers of the server, sorted by name.
+	 */
+	static List<JMXMBeanContainerTemplate> getContainers(String serverName) {
+		final List<JMXMBeanContainerTemplate> result = new ArrayList<JMXMBeanContainerTemplate>();
+		final Map<String, JMXMBeanContainerTemplate> containers = _servers.get(serverName);
+		if (containers != null) {
+			for (JMXMBeanContainerTemplate container : containers.values()) {
+				// catches the JmxServer changes not seen by the container yet
+				if (Objects.equals(container.getServerName(), serverName)) {
+					result.add(container);
+				} else {
+					container.updateRegistration();
+				}
+			}
+		}
+		result.sort(Comparator.comparing(JMXMBeanContainerTemplate::getName));
+		return result;
+	}
+
+	/**
+	 * Returns the metric snapshots of the containers of the server, as
+	 * registered: unlike getContainers, it does not read their JmxServer
+	 * property.
+	 */
+	static List<OpenMetricsSnapshot> getMetrics(String serverName) {
+		final List<OpenMetricsSnapshot> result = new ArrayList<OpenMetricsSnapshot>();
+		final Map<String, JMXMBeanContainerTemplate> containers = _servers.get(serverName);
+		if (containers != null) {
+			for (JMXMBeanContainerTemplate container : containers.values()) {
+				result.add(container.getMetrics());
+			}
+		}
+		return result;
+	}
+
+	static void resetMetrics(String serverName) {
+		final Map<String, JMXMBeanContainerTemplate> containers = _servers.get(serverName);
+		if (containers != null) {
+			for (JMXMBeanContainerTemplate container : containers.values()) {
+				container.resetMetrics();
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package ext.sma.jmx;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns the samples of monotonic counters into per-second rates or deltas,
+ * for the "mbean:rate" and "mbean:delta" properties of a container.
+ */
+class CounterRates {
+
+	private final Map<String, Counter> _counters = new ConcurrentHashMap<String, Counter>();
+
+	/**
+	 * Returns the rate (per second) or the delta since the previous sample, or
+	 * null for the first sample of the counter. A counter going backwards is
+	 * considered as restarted from 0.
+	 */
+	Double update(String name, boolean rate, double value, long time) {
+		final Counter counter = _counters.computeIfAbsent(name, k -> new Counter());
+		synchronized (counter) {
+			final boolean first = counter.time == 0;
+			final double last_value = counter.value;
+			final long elapsed = time - counter.time;
+			if (!first && elapsed <= 0) {
+				return null;
+			}
+			counter.value = value;
+			counter.time = time;
+			if (first) {
+				return null;
+			}
+
+			final double delta = value >= last_value ? value - last_value : value;
+			return rate ? delta * 1000 / elapsed : delta;
+		}
+	}
+
+	private static class Counter {
+		private double value = 0;
+		private long time = 0;
+	}
+}
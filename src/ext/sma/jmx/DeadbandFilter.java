@@ -0,0 +1,120 @@
+package ext.sma.jmx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.thingworx.types.collections.ValueCollection;
+
+/**
+ * Per-property deadband of a container, configured by its "Deadbands"
+ * configuration table.
+ * <p>
+ * A sampled value is pushed (or written to the value stream) only if it moved
+ * by more than the absolute or percent band since the last pushed (written)
+ * value, or if maxInterval elapsed since then. A band of 0 means change-only.
+ * The properties without a row (and no "*" row) are not filtered.
+ */
+class DeadbandFilter {
+
+	static final String ALL_PROPERTIES = "*";
+
+	private final Map<String, Deadband> _settings = new HashMap<String, Deadband>();
+	private final Map<String, State> _updates = new ConcurrentHashMap<String, State>();
+	private final Map<String, State> _writes = new ConcurrentHashMap<String, State>();
+
+	DeadbandFilter(Iterable<ValueCollection> rows) {
+		if (rows == null) {
+			return;
+		}
+		for (ValueCollection row : rows) {
+			final String name = row.getStringValue("propertyName");
+			if (name != null && !name.isEmpty()) {
+				_settings.put(name, new Deadband(toDouble(row.getValue("absolute")),
+						toDouble(row.getValue("percent")), (long) toDouble(row.getValue("maxInterval"))));
+			}
+		}
+	}
+
+	private static double toDouble(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : 0;
+	}
+
+	private Deadband getDeadband(String name) {
+		final Deadband deadband = _settings.get(name);
+		return deadband != null ? deadband : _settings.get(ALL_PROPERTIES);
+	}
+
+	/**
+	 * Returns true if the sampled value must be pushed to the property.
+	 */
+	boolean acceptUpdate(String name, Object value, long time) {
+		return accept(_updates, name, value, time);
+	}
+
+	/**
+	 * Returns true if the property value must be written to the value stream.
+	 */
+	boolean acceptWrite(String name, Object value, long time) {
+		return accept(_writes, name, value, time);
+	}
+
+	/**
+	 * Time of the last sample of the property, even if it was filtered out (0 if
+	 * unknown), so a suppressed value does not make the property look stale.
+	 */
+	long getLastSampleTime(String name) {
+		final State state = _updates.get(name);
+		return state != null ? state.lastSample : 0;
+	}
+
+	private boolean accept(Map<String, State> states, String name, Object value, long time) {
+		final Deadband deadband = getDeadband(name);
+		if (deadband == null) {
+			return true;
+		}
+
+		final State state = states.computeIfAbsent(name, k -> new State());
+		synchronized (state) {
+			state.lastSample = time;
+			if (state.hasValue && !deadband.isOutside(state.lastValue, value)
+					&& (deadband.maxInterval <= 0 || time - state.lastTime < deadband.maxInterval)) {
+				return false;
+			}
+			state.hasValue = true;
+			state.lastValue = value;
+			state.lastTime = time;
+			return true;
+		}
+	}
+
+	private static class Deadband {
+		private final double absolute;
+		private final double percent;
+		private final long maxInterval;
+
+		private Deadband(double absolute, double percent, long maxInterval) {
+			this.absolute = absolute;
+			this.percent = percent;
+			this.maxInterval = maxInterval;
+		}
+
+		private boolean isOutside(Object last, Object value) {
+			if (last instanceof Number && value instanceof Number) {
+				final double last_value = ((Number) last).doubleValue();
+				final double diff = Math.abs(((Number) value).doubleValue() - last_value);
+				final double band = Math.max(absolute, Math.abs(last_value) * percent / 100);
+				return band > 0 ? diff > band : diff != 0;
+			}
+			return !Objects.equals(last, value);
+		}
+	}
+
+	private static class State {
+		private boolean hasValue = false;
+		private Object lastValue = null;
+		private long lastTime = 0;
+		private volatile long lastSample = 0;
+	}
+}
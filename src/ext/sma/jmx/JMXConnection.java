@@ -0,0 +1,466 @@
+package ext.sma.jmx;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+
+/**
+ * MBeanServer connection used by a JMX.ServerTemplate thing.
+ * <p>
+ * Either the platform MBeanServer of the local JVM, or a remote JMX agent
+ * reached through a JMXServiceURL. The remote connector is opened lazily,
+ * re-opened with an exponential backoff when it fails, and every remote call
+ * runs under a read timeout so a dead target cannot block the caller.
+ * <p>
+ * The connection also tracks the MBean registrations (MBeanServerDelegate
+ * notifications) on behalf of the metadata caches built on top of it.
+ */
+class JMXConnection {
+
+	/**
+	 * Listener of the MBean registrations, registrationsReset() is called when
+	 * some notifications may have been missed (e.g. after a reconnect).
+	 */
+	interface RegistrationListener {
+		void mbeanRegistered(ObjectName name);
+
+		void mbeanUnregistered(ObjectName name);
+
+		void registrationsReset();
+	}
+
+	static final long MIN_RECONNECT_DELAY = 1000;
+	static final int MAX_PENDING_CALLS = 16;
+
+	private static final JMXConnection PLATFORM = new JMXConnection();
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(JMXConnection.class);
+
+	private final JMXServiceURL _url;
+	private final Map<String, Object> _env;
+	private final long _connectTimeout;
+	private final long _readTimeout;
+	private final long _maxReconnectDelay;
+	// why a connection installed in place of a stopped or misconfigured one fails every call
+	private final String _unavailable;
+
+	private final Object _lock = new Object();
+	private JMXConnector _connector = null;
+	private volatile MBeanServerConnection _connection = null;
+	private Future<?> _pending = null;
+	private long _reconnectDelay = 0;
+	private long _retryAt = 0;
+	private String _lastError = null;
+	private boolean _closed = false;
+	// calls running on the io pool, including the ones given up after their timeout
+	private final Semaphore _pendingCalls = new Semaphore(MAX_PENDING_CALLS);
+
+	private final List<RegistrationListener> _registrationListeners = new CopyOnWriteArrayList<RegistrationListener>();
+	private volatile boolean _tracking = false;
+	private volatile MBeanInfoCache _infoCache = null;
+	private volatile MBeanTreeBuilder _tree = null;
+	private volatile ObjectNameResolver _resolver = null;
+
+	private JMXConnection() {
+		_url = null;
+		_env = null;
+		_connectTimeout = 0;
+		_readTimeout = 0;
+		_maxReconnectDelay = 0;
+		_unavailable = null;
+		_connection = ManagementFactory.getPlatformMBeanServer();
+	}
+
+	private JMXConnection(String unavailable) {
+		_url = null;
+		_env = null;
+		_connectTimeout = 0;
+		_readTimeout = 0;
+		_maxReconnectDelay = 0;
+		_unavailable = unavailable;
+	}
+
+	private JMXConnection(JMXServiceURL url, Map<String, Object> env, long connectTimeout, long readTimeout,
+			long maxReconnectDelay) {
+		_url = url;
+		_env = env;
+		_connectTimeout = connectTimeout;
+		_readTimeout = readTimeout;
+		_maxReconnectDelay = Math.max(maxReconnectDelay, MIN_RECONNECT_DELAY);
+		_unavailable = null;
+	}
+
+	static JMXConnection platform() {
+		return PLATFORM;
+	}
+
+	/**
+	 * Returns a connection failing every call with the reason, so the readers
+	 * still holding a stopped (or misconfigured) server report stale values
+	 * instead of reading the MBeans of the local JVM.
+	 */
+	static JMXConnection unavailable(String reason) {
+		return new JMXConnection(reason);
+	}
+
+	static JMXConnection remote(String serviceUrl, String username, String password, long connectTimeout,
+			long readTimeout, long maxReconnectDelay) throws Exception {
+
+		final Map<String, Object> env = new HashMap<String, Object>();
+		if (username != null && !username.isEmpty()) {
+			env.put(JMXConnector.CREDENTIALS, new String[] { username, password });
+		}
+		return new JMXConnection(new JMXServiceURL(serviceUrl), env, connectTimeout, readTimeout, maxReconnectDelay);
+	}
+
+	void addRegistrationListener(RegistrationListener listener) {
+		_registrationListeners.add(listener);
+		if (!isRemote() && _unavailable == null) {
+			synchronized (_lock) {
+				if (!_tracking) {
+					trackRegistrations(_connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * True while the registration notifications are received, i.e. while the
+	 * metadata caches can be trusted.
+	 */
+	boolean isTrackingRegistrations() {
+		return _tracking;
+	}
+
+	MBeanInfoCache getMBeanInfoCache() {
+		MBeanInfoCache cache = _infoCache;
+		if (cache == null) {
+			synchronized (_lock) {
+				if (_infoCache == null) {
+					_infoCache = new MBeanInfoCache(this);
+					addRegistrationListener(_infoCache);
+				}
+				cache = _infoCache;
+			}
+		}
+		return cache;
+	}
+
+	MBeanTreeBuilder getMBeanTree() {
+		MBeanTreeBuilder tree = _tree;
+		if (tree == null) {
+			synchronized (_lock) {
+				if (_tree == null) {
+					_tree = new MBeanTreeBuilder();
+					addRegistrationListener(_tree);
+				}
+				tree = _tree;
+			}
+		}
+		return tree;
+	}
+
+	ObjectNameResolver getObjectNameResolver() {
+		ObjectNameResolver resolver = _resolver;
+		if (resolver == null) {
+			synchronized (_lock) {
+				if (_resolver == null) {
+					_resolver = new ObjectNameResolver(this);
+					addRegistrationListener(_resolver);
+				}
+				resolver = _resolver;
+			}
+		}
+		return resolver;
+	}
+
+	private void trackRegistrations(MBeanServerConnection connection) {
+		try {
+			connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+					this::handleRegistrationNotification, null, null);
+			_tracking = true;
+		} catch (Exception ex) {
+			_tracking = false;
+			_logger.warn("Error subscribing to the MBean registrations of {} because {}.",
+					isRemote() ? _url : "platform", ex.getMessage());
+		}
+	}
+
+	private void handleRegistrationNotification(Notification notification, Object handback) {
+		if (!(notification instanceof MBeanServerNotification)) {
+			return;
+		}
+		final ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+		final String type = notification.getType();
+		for (RegistrationListener listener : _registrationListeners) {
+			if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(type)) {
+				listener.mbeanRegistered(name);
+			} else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(type)) {
+				listener.mbeanUnregistered(name);
+			}
+		}
+	}
+
+	private void resetRegistrations() {
+		for (RegistrationListener listener : _registrationListeners) {
+			listener.registrationsReset();
+		}
+	}
+
+	boolean isRemote() {
+		return _url != null;
+	}
+
+	String getStatus() {
+		if (_unavailable != null) {
+			return _unavailable;
+		}
+		if (!isRemote()) {
+			return "platform";
+		}
+		synchronized (_lock) {
+			if (_closed) {
+				return "closed";
+			} else if (_connection != null) {
+				return "connected to " + _url;
+			} else if (_pending != null) {
+				return "connecting to " + _url;
+			} else if (_lastError != null) {
+				return "disconnected from " + _url + " (" + _lastError + ")";
+			}
+			return "not connected to " + _url;
+		}
+	}
+
+	/**
+	 * Returns the connection, opening it if needed. Waits at most the connect
+	 * timeout, and fails immediately while waiting for the next reconnect
+	 * attempt.
+	 */
+	MBeanServerConnection getConnection() throws IOException {
+		if (_unavailable != null) {
+			throw new IOException(_unavailable);
+		}
+		MBeanServerConnection connection = _connection;
+		if (connection != null) {
+			return connection;
+		}
+
+		final Future<?> pending;
+		synchronized (_lock) {
+			if (_connection != null) {
+				return _connection;
+			}
+			if (_closed) {
+				throw new IOException("JMX connection to " + _url + " is closed.");
+			}
+			if (_pending == null) {
+				final long now = System.currentTimeMillis();
+				if (now < _retryAt) {
+					throw new IOException("JMX server " + _url + " unavailable (" + _lastError + "), next attempt in "
+							+ (_retryAt - now) + " ms.");
+				}
+				_pending = JMXExecutors.io().submit(this::connect);
+			}
+			pending = _pending;
+		}
+
+		try {
+			pending.get(_connectTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			throw new IOException("Timed out connecting to JMX server " + _url + ".");
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while connecting to JMX server " + _url + ".");
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause());
+		}
+
+		connection = _connection;
+		if (connection == null) {
+			throw new IOException("Could not connect to JMX server " + _url + " because " + _lastError + ".");
+		}
+		return connection;
+	}
+
+	private void connect() {
+		JMXConnector connector = null;
+		try {
+			connector = JMXConnectorFactory.connect(_url, _env);
+			connector.addConnectionNotificationListener(this::handleConnectionNotification, null, connector);
+			final MBeanServerConnection connection = newTimeoutProxy(connector.getMBeanServerConnection(), connector);
+
+			// the registrations may have changed while disconnected
+			trackRegistrations(connection);
+			resetRegistrations();
+
+			synchronized (_lock) {
+				_pending = null;
+				if (!_closed) {
+					_connector = connector;
+					_connection = connection;
+					_reconnectDelay = 0;
+					_lastError = null;
+					connector = null;
+				}
+			}
+			_logger.info("Connected to JMX server {}.", _url);
+
+		} catch (Exception ex) {
+			synchronized (_lock) {
+				_pending = null;
+				_reconnectDelay = Math.min(Math.max(_reconnectDelay * 2, MIN_RECONNECT_DELAY), _maxReconnectDelay);
+				_retryAt = System.currentTimeMillis() + _reconnectDelay;
+				_lastError = ex.getMessage();
+			}
+			_logger.warn("Error connecting to JMX server {} because {}, retrying in {} ms.", _url, ex.getMessage(),
+					_reconnectDelay);
+		} finally {
+			if (connector != null) {
+				closeQuietly(connector);
+			}
+		}
+	}
+
+	private void handleConnectionNotification(Notification notification, Object handback) {
+		final String type = notification.getType();
+		if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+			invalidate((JMXConnector) handback, type);
+		}
+	}
+
+	/**
+	 * Drops the connector if it is still the current one, the next call will
+	 * reconnect.
+	 */
+	private void invalidate(JMXConnector connector, String reason) {
+		synchronized (_lock) {
+			if (_connector != connector) {
+				return;
+			}
+			_connector = null;
+			_connection = null;
+			_lastError = reason;
+			_tracking = false;
+		}
+		resetRegistrations();
+		_logger.warn("Lost connection to JMX server {} ({}).", _url, reason);
+		JMXExecutors.io().execute(() -> closeQuietly(connector));
+	}
+
+	void close() {
+		final JMXConnector connector;
+		synchronized (_lock) {
+			if (!isRemote() || _closed) {
+				return;
+			}
+			_closed = true;
+			connector = _connector;
+			_connector = null;
+			_connection = null;
+			_tracking = false;
+		}
+		resetRegistrations();
+		if (connector != null) {
+			closeQuietly(connector);
+		}
+	}
+
+	private static void closeQuietly(JMXConnector connector) {
+		try {
+			connector.close();
+		} catch (Exception ex) {
+			_logger.debug("Error closing JMX connector because {}.", ex.getMessage());
+		}
+	}
+
+	private MBeanServerConnection newTimeoutProxy(MBeanServerConnection target, JMXConnector connector) {
+		final InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					return method.invoke(target, args);
+				}
+
+				try {
+					if (!_pendingCalls.tryAcquire(_readTimeout, TimeUnit.MILLISECONDS)) {
+						throw new IOException("Too many calls still pending on JMX server " + _url + ".");
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while calling JMX server " + _url + ".");
+				}
+				// the permit is released once: by the call, or by its cancellation if it never started
+				final AtomicBoolean started = new AtomicBoolean(false);
+				final Future<Object> result = JMXExecutors.io().submit(() -> {
+					if (!started.compareAndSet(false, true)) {
+						return null;
+					}
+					try {
+						return method.invoke(target, args);
+					} finally {
+						_pendingCalls.release();
+					}
+				});
+				try {
+					return result.get(_readTimeout, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException ex) {
+					// only this call fails: a slow getter says nothing about the connection, a dead
+					// one is reported by the connector (IOException or failed notification)
+					cancel(result, started);
+					throw new IOException("Timed out calling " + method.getName() + " on JMX server " + _url + ".");
+				} catch (InterruptedException ex) {
+					cancel(result, started);
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while calling JMX server " + _url + ".");
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					if (cause instanceof InvocationTargetException) {
+						cause = cause.getCause();
+					}
+					if (cause instanceof IOException) {
+						invalidate(connector, cause.getMessage());
+					}
+					throw cause;
+				}
+			}
+		};
+		return (MBeanServerConnection) Proxy.newProxyInstance(JMXConnection.class.getClassLoader(),
+				new Class<?>[] { MBeanServerConnection.class }, handler);
+	}
+
+	private void cancel(Future<Object> call, AtomicBoolean started) {
+		call.cancel(true);
+		if (started.compareAndSet(false, true)) {
+			// cancelled before it ran, its finally will never release the permit
+			_pendingCalls.release();
+		}
+	}
+}
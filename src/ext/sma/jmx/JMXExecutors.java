@@ -0,0 +1,90 @@
+package ext.sma.jmx;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.thingworx.security.context.SecurityContext;
+import com.thingworx.webservices.context.ThreadLocalContext;
+
+/**
+ * Thread pools shared by all the JMX things of the extension.
+ */
+class JMXExecutors {
+
+	private static final ExecutorService _io = Executors.newCachedThreadPool(daemonThreadFactory("jmx-io"));
+	private static final ExecutorService _refresh = createRefreshExecutor();
+
+	private JMXExecutors() {
+	}
+
+	/**
+	 * Pool running the (potentially blocking) calls to the JMX servers, so the
+	 * calling thread can give up after a timeout. A call given up keeps its
+	 * thread until it returns: the callers bound the calls they have in flight
+	 * (per connection for the remote calls, per server for the reads given up, see
+	 * BlockedReads).
+	 */
+	static ExecutorService io() {
+		return _io;
+	}
+
+	/**
+	 * Pool running the container refreshes: virtual threads when the JVM supports
+	 * them, daemon threads otherwise. The callers bound the concurrency.
+	 */
+	static ExecutorService refresh() {
+		return _refresh;
+	}
+
+	private static ExecutorService createRefreshExecutor() {
+		try {
+			final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception ex) {
+			return Executors.newCachedThreadPool(daemonThreadFactory("jmx-refresh"));
+		}
+	}
+
+	/**
+	 * Runs the task with the security context of the calling thread, so it can
+	 * call the ThingWorx services from a pool thread.
+	 */
+	static <T> Callable<T> withCallerContext(Callable<T> task) {
+		final SecurityContext context = ThreadLocalContext.getSecurityContext();
+		return () -> {
+			ThreadLocalContext.setSecurityContext(context);
+			try {
+				return task.call();
+			} finally {
+				ThreadLocalContext.clearSecurityContext();
+			}
+		};
+	}
+
+	/**
+	 * Runs a background task (not triggered by a service call) as super user.
+	 */
+	static Runnable asSuperUser(Runnable task) {
+		return () -> {
+			ThreadLocalContext.setSecurityContext(SecurityContext.createSuperUserContext());
+			try {
+				task.run();
+			} finally {
+				ThreadLocalContext.clearSecurityContext();
+			}
+		};
+	}
+
+	static ThreadFactory daemonThreadFactory(String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -1,275 +1,769 @@
-package ext.sma.jmx;
-
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
-import org.joda.time.DateTime;
-import org.json.JSONObject;
-import org.slf4j.Logger;
-
-import com.thingworx.entities.utils.EntityUtilities;
-import com.thingworx.entities.utils.ThingUtilities;
-import com.thingworx.logging.LogUtilities;
-import com.thingworx.metadata.PropertyDefinition;
-import com.thingworx.metadata.annotations.ThingworxBaseTemplateDefinition;
-import com.thingworx.metadata.annotations.ThingworxPropertyDefinition;
-import com.thingworx.metadata.annotations.ThingworxPropertyDefinitions;
-import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
-import com.thingworx.metadata.annotations.ThingworxServiceParameter;
-import com.thingworx.metadata.annotations.ThingworxServiceResult;
-import com.thingworx.relationships.RelationshipTypes.ThingworxRelationshipTypes;
-import com.thingworx.resources.entities.EntityServices;
-import com.thingworx.resources.queries.Searcher;
-import com.thingworx.things.Thing;
-import com.thingworx.things.properties.ThingProperty;
-import com.thingworx.types.BaseTypes;
-import com.thingworx.types.InfoTable;
-import com.thingworx.types.TagCollection;
-import com.thingworx.types.primitives.IPrimitiveType;
-import com.thingworx.types.primitives.structs.Location;
-import com.thingworx.types.primitives.structs.ThingCode;
-import com.thingworx.types.primitives.structs.Vec2;
-import com.thingworx.types.primitives.structs.Vec3;
-import com.thingworx.types.primitives.structs.Vec4;
-
-@ThingworxPropertyDefinitions(properties = {
-		@ThingworxPropertyDefinition(name = JMXMBeanContainerTemplate.SERVER_PROPERTY, description = "", category = "", baseType = "THINGNAME", isLocalOnly = false, aspects = {
-				"isPersistent:true", "dataChangeType:NEVER", "thingTemplate:JMX.ServerTemplate" }) })
-
-@ThingworxBaseTemplateDefinition(name = "GenericThing")
-public class JMXMBeanContainerTemplate extends Thing {
-
-	static final String TEMPLATE_NAME = "JMX.MBeanContainerTemplate";
-	static final String SERVER_PROPERTY = "JmxServer";
-	static final String MBEAN_CATEGORY = "mbean:attr";
-	static final String DESCRIPTION = "Container for JMX MBean attributes";
-	static final String TAG_VOCAB = "Jmx";
-	static final String TAG_TERM = "Container";
-	static final String THINGNAME_PREFIX = "jmx.";
-
-	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(JMXMBeanContainerTemplate.class);
-
-	public JMXMBeanContainerTemplate() {
-		// TODO Auto-generated constructor stub
-	}
-
-	private JMXServerTemplate getJMXServer() throws Exception {
-		String server_name = getProperty(SERVER_PROPERTY).getValue().getStringValue();
-		Thing thing = ThingUtilities.findThing(server_name);
-		if (thing != null && thing instanceof JMXServerTemplate) {
-			return (JMXServerTemplate) thing;
-		} else {
-			throw new Exception("JMX Server " + server_name + " not found.");
-		}
-	}
-
-	private boolean isCandiateForUpdate(ThingProperty property, boolean ignoreCache) {
-
-		final PropertyDefinition prop_def = property.getPropertyDefinition();
-		if (prop_def.isBuiltIn() || ! MBEAN_CATEGORY.equals(prop_def.getCategory())) {
-			return false;
-		}
-
-		boolean demandRead = false;
-
-		if (ignoreCache) {
-			demandRead = true;
-		} else {
-			final Integer cacheTime = prop_def.getCacheTime();
-			
-			/* PSPT-68791 - workaround
-			 *  0 / null : Pull every read
-			 *  < 0 : Read from cache
-			 *  > 0 : Read from cache or Pull if older than ...
-			 */
-			
-			if (cacheTime == null || cacheTime == 0) {
-				demandRead = true;
-			}
-			else {
-				if (cacheTime < 0) {
-					demandRead = false;
-				} else if (cacheTime > 0) {
-					final long currentTime = System.currentTimeMillis();
-					final long lastTime = property.getTime().getMillis();
-					final long diff = currentTime - lastTime;
-
-					if (diff > cacheTime) {
-						demandRead = true;
-					}
-				}
-			}
-		}
-		return demandRead;
-	}
-
-	static void createMBeanContainer(String containerName, String serverName) {
-	
-		EntityServices entityService = (EntityServices) EntityUtilities.findEntity("EntityServices",
-				ThingworxRelationshipTypes.Resource);
-		try {
-	
-			TagCollection tags = new TagCollection();
-			tags.AddTag("Jmx", "Container");
-			
-			if (!containerName.startsWith(THINGNAME_PREFIX)) {
-				containerName = THINGNAME_PREFIX + containerName;
-			}
-			
-			entityService.CreateThing(containerName, "Container for JMX MBeans attributes", tags, TEMPLATE_NAME);
-			Thing thing = ThingUtilities.findThing(containerName);
-			thing.EnableThing();
-			thing.RestartThing();
-			thing.setPropertyValue(SERVER_PROPERTY, BaseTypes.ConvertToPrimitive(serverName, BaseTypes.THINGNAME));
-		} catch (Exception e) {
-			_logger.error("Exception: {} occurred while creating new Thing: {}", e, containerName);
-			try {
-				entityService.DeleteThing(containerName);
-			} catch (Exception e1) {
-				_logger.error("Exception: {} occurred while deleting Thing: {}", e, containerName);
-			}
-		}
-	}
-
-	static InfoTable listMBeanContainers(String serverName) throws Exception {
-		Searcher searchFunctions = (Searcher) EntityUtilities.findEntity("SearchFunctions",
-				ThingworxRelationshipTypes.Resource);
-		JSONObject query = new JSONObject("{\"filters\": { \"type\": \"EQ\", \"fieldName\": \"" + SERVER_PROPERTY
-				+ "\",\"value\": \"" + serverName + "\"}}");
-		return searchFunctions.SearchThingsByTemplate(TEMPLATE_NAME, 100.0, null, null, query);
-	}
-
-	List<PropertyDefinition> getMBeanPropertiesDefinitionForUpdate(boolean force) {
-		return getProperties().values()
-				.stream()
-				.filter(p -> isCandiateForUpdate(p, force))
-				.map(p -> p.getPropertyDefinition())
-				.collect(Collectors.toList());
-	}
-	
-	List<ThingProperty> getLoggedMBeanProperties() {
-		return getProperties().values()
-				.stream()
-				.filter(p -> 
-					p.getPropertyDefinition().isLogged() && MBEAN_CATEGORY.equals(p.getPropertyDefinition().getCategory()))
-				.collect(Collectors.toList());
-	}
-	
-	private void addPropertyToValueStream(ThingProperty property, DateTime timestamp) throws Exception {
-		
-		if (timestamp == null) {
-			timestamp = property.getTime();
-		}
-
-		String prop_name = property.getPropertyDefinition().getName();
-		IPrimitiveType value = property.getValue();
-		
-		switch (value.getBaseType()) {
-		case STRING:
-			AddStringValueStreamEntry(timestamp, prop_name, (String) value.getValue());
-			break;
-		case BOOLEAN:
-			this.AddBooleanValueStreamEntry(timestamp, prop_name, (Boolean) value.getValue());
-			break;
-		case DATETIME:
-			this.AddDateTimeValueStreamEntry(timestamp, prop_name, (DateTime) value.getValue());
-			break;
-		case IMAGE:	
-			this.AddImageValueStreamEntry(timestamp, prop_name, (byte[]) value.getValue());
-			break;
-		case INFOTABLE:	
-			this.AddInfoTableValueStreamEntry(timestamp, prop_name, (InfoTable) value.getValue());
-			break;
-		case INTEGER:	
-			this.AddIntegerValueStreamEntry(timestamp, prop_name,  (Integer) value.getValue());
-			break;
-		case LOCATION:			
-			this.AddLocationValueStreamEntry(timestamp, prop_name,  (Location) value.getValue());
-			break;
-		case LONG:
-			this.AddLongValueStreamEntry(timestamp, prop_name,  (Long) value.getValue());
-			break;
-		case NUMBER:
-			this.AddNumberValueStreamEntry(timestamp, prop_name,  (Double) value.getValue());
-			break;
-		case THINGCODE:	
-			this.AddThingCodeValueStreamEntry(timestamp, prop_name, (ThingCode) value.getValue());
-			break;
-		case VEC2:		
-			this.AddVec2ValueStreamEntry(timestamp, prop_name, (Vec2) value.getValue());
-			break;
-		case VEC3:	
-			this.AddVec3ValueStreamEntry(timestamp, prop_name, (Vec3) value.getValue());
-			break;
-		case VEC4:	
-			this.AddVec4ValueStreamEntry(timestamp, prop_name, (Vec4) value.getValue());
-			break;
-		default:
-		}
-	}
-
-	@Override
-	public void checkDemandRead(ThingProperty property) throws Exception {
-
-		if (isCandiateForUpdate(property, false)) {
-			final JMXServerTemplate server = getJMXServer();
-			server.pushMBeanAttributes(this, Arrays.asList(property.getPropertyDefinition()));
-		}
-		super.checkDemandRead(property);
-	}
-	
-	@ThingworxServiceDefinition(name = "AddMBeanPropertyDefinition", description = "", category = "Jmx", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
-	public void AddMBeanPropertyDefinition(
-			@ThingworxServiceParameter(name = "mbeanName", description = "", baseType = "STRING", aspects = {
-					"isRequired:true" }) String mbeanName,
-			@ThingworxServiceParameter(name = "attributeName", description = "", baseType = "STRING", aspects = {
-					"isRequired:true" }) String attributeName,
-			@ThingworxServiceParameter(name = "type", description = "", baseType = "BASETYPENAME", aspects = {
-					"isRequired:true" }) String type)
-			throws Exception {
-
-		AddPropertyDefinition(attributeName, mbeanName, type, MBEAN_CATEGORY, null, false, false, false, null, null,
-				false, null, null, null, null, null, null);
-	}
-
-	@ThingworxServiceDefinition(name = "GetMBeanPropertyDefinitions", description = "", category = "Jmx", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
-			"isEntityDataShape:true", "dataShape:PropertyDefinition" })
-	public InfoTable GetMBeanPropertyDefinitions() throws Exception {
-		return GetPropertyDefinitions(MBEAN_CATEGORY, null, null);
-	}
-
-	@ThingworxServiceDefinition(name = "RefreshMBeanAttributes", description = "", category = "Jmx", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
-	public void RefreshMBeanAttributes(
-			@ThingworxServiceParameter(name = "ignoreCache", description = "", baseType = "BOOLEAN", aspects = {
-					"isRequired:true", "defaultValue:false" }) Boolean ignoreCache)
-			throws Exception {
-
-		final JMXServerTemplate server = getJMXServer();
-		server.pushMBeanAttributes(this, getMBeanPropertiesDefinitionForUpdate(ignoreCache));
-	}
-
-	@ThingworxServiceDefinition(name = "WriteMBeanPropertiesToValueStream", description = "", category = "", isAllowOverride = false, aspects = {
-			"isAsync:true" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
-	public void WriteMBeanPropertiesToValueStream(
-			@ThingworxServiceParameter(name = "forceRefresh", description = "", baseType = "BOOLEAN", aspects = {
-					"defaultValue:false" }) Boolean forceRefresh) throws Exception {
-
-		if (forceRefresh) {
-			RefreshMBeanAttributes(true);
-		}
-		
-		final DateTime now = DateTime.now();
-		List<ThingProperty> properties = getLoggedMBeanProperties();
-		for (ThingProperty property : properties) {
-			this.addPropertyToValueStream(property, now);
-		}
-	}
-}
+package ext.sma.jmx;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.entities.utils.EntityUtilities;
+import com.thingworx.entities.utils.ThingUtilities;
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.metadata.annotations.ThingworxBaseTemplateDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinitions;
+import com.thingworx.metadata.annotations.ThingworxDataShapeDefinition;
+import com.thingworx.metadata.annotations.ThingworxFieldDefinition;
+import com.thingworx.metadata.annotations.ThingworxPropertyDefinition;
+import com.thingworx.metadata.annotations.ThingworxPropertyDefinitions;
+import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
+import com.thingworx.metadata.annotations.ThingworxServiceParameter;
+import com.thingworx.metadata.annotations.ThingworxServiceResult;
+import com.thingworx.relationships.RelationshipTypes.ThingworxRelationshipTypes;
+import com.thingworx.resources.entities.EntityServices;
+import com.thingworx.system.ContextType;
+import com.thingworx.things.Thing;
+import com.thingworx.things.properties.ThingProperty;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.ConfigurationTable;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.TagCollection;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.structs.Location;
+import com.thingworx.types.primitives.structs.ThingCode;
+import com.thingworx.types.primitives.structs.Vec2;
+import com.thingworx.types.primitives.structs.Vec3;
+import com.thingworx.types.primitives.structs.Vec4;
+
+@ThingworxPropertyDefinitions(properties = {
+		@ThingworxPropertyDefinition(name = JMXMBeanContainerTemplate.SERVER_PROPERTY, description = "", category = "", baseType = "THINGNAME", isLocalOnly = false, aspects = {
+				"isPersistent:true", "dataChangeType:NEVER", "thingTemplate:JMX.ServerTemplate" }) })
+
+@ThingworxConfigurationTableDefinitions(tables = {
+		@ThingworxConfigurationTableDefinition(name = JMXMBeanContainerTemplate.SAMPLING_TABLE, description = "Built-in sampling (replaces the Timer calling RefreshMBeanAttributes)", isMultiRow = false, ordinal = 0, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "samplingInterval", description = "Sampling interval (ms), 0 to disable", baseType = "INTEGER", ordinal = 0, aspects = {
+						"defaultValue:0" }),
+				@ThingworxFieldDefinition(name = "writeToValueStream", description = "Write the logged properties to the value stream after each sample", baseType = "BOOLEAN", ordinal = 1, aspects = {
+						"defaultValue:true" }),
+				@ThingworxFieldDefinition(name = "notificationFlushInterval", description = "Interval (ms) at which the values received from MBean notifications are pushed", baseType = "INTEGER", ordinal = 2, aspects = {
+						"defaultValue:1000" }),
+				@ThingworxFieldDefinition(name = "statisticsCapacity", description = "Number of samples kept in memory per numeric property for GetPropertyStatistics, 0 to disable", baseType = "INTEGER", ordinal = 3, aspects = {
+						"defaultValue:720" }),
+				@ThingworxFieldDefinition(name = "statisticsWindow", description = "Time (s) covered by these samples, the faster samplings are downsampled to fit", baseType = "INTEGER", ordinal = 4, aspects = {
+						"defaultValue:3600" }) })),
+		@ThingworxConfigurationTableDefinition(name = JMXMBeanContainerTemplate.DEADBAND_TABLE, description = "Per-property deadbands (use * as property name for all properties)", isMultiRow = true, ordinal = 1, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "propertyName", description = "", baseType = "STRING", ordinal = 0, aspects = {}),
+				@ThingworxFieldDefinition(name = "absolute", description = "Minimum absolute change", baseType = "NUMBER", ordinal = 1, aspects = {
+						"defaultValue:0" }),
+				@ThingworxFieldDefinition(name = "percent", description = "Minimum change (% of the last value)", baseType = "NUMBER", ordinal = 2, aspects = {
+						"defaultValue:0" }),
+				@ThingworxFieldDefinition(name = "maxInterval", description = "Maximum time between two writes (ms), 0 for none", baseType = "INTEGER", ordinal = 3, aspects = {
+						"defaultValue:0" }) })),
+		@ThingworxConfigurationTableDefinition(name = JMXMBeanContainerTemplate.VALUESTREAM_TABLE, description = "Buffered value stream writes", isMultiRow = false, ordinal = 2, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "bufferSize", description = "Maximum number of pending entries (oldest dropped when full), 0 to write directly", baseType = "INTEGER", ordinal = 0, aspects = {
+						"defaultValue:10000" }),
+				@ThingworxFieldDefinition(name = "flushInterval", description = "Interval (ms) at which the pending entries are written", baseType = "INTEGER", ordinal = 1, aspects = {
+						"defaultValue:5000" }),
+				@ThingworxFieldDefinition(name = "flushSize", description = "Number of pending entries triggering an early write", baseType = "INTEGER", ordinal = 2, aspects = {
+						"defaultValue:500" }) })) })
+
+@ThingworxBaseTemplateDefinition(name = "GenericThing")
+public class JMXMBeanContainerTemplate extends Thing {
+
+	static final String TEMPLATE_NAME = "JMX.MBeanContainerTemplate";
+	static final String SERVER_PROPERTY = "JmxServer";
+	static final String SAMPLING_TABLE = "Sampling";
+	static final String DEADBAND_TABLE = "Deadbands";
+	static final String VALUESTREAM_TABLE = "ValueStream";
+	static final String MBEAN_CATEGORY = "mbean:attr";
+	static final String NOTIFICATION_CATEGORY = "mbean:notif";
+	static final String RATE_CATEGORY = "mbean:rate";
+	static final String DELTA_CATEGORY = "mbean:delta";
+	static final String SUM_CATEGORY = "mbean:sum";
+	static final String MIN_CATEGORY = "mbean:min";
+	static final String MAX_CATEGORY = "mbean:max";
+	static final String AVG_CATEGORY = "mbean:avg";
+	static final String COUNT_CATEGORY = "mbean:count";
+	static final String PATTERN_DATASHAPE = "JMX.MBeanAttributeValues";
+	static final String CATEGORY_PREFIX = "mbean:";
+	static final String BINDING_DESCRIPTION = "attr (polled attribute), rate / delta (per second rate / delta of a polled counter, property suffixed by _rate / _delta), sum / min / max / avg / count (aggregate over the MBeans of a pattern, property suffixed likewise) or notif (value pushed by the MBean notifications)";
+	static final String DESCRIPTION = "Container for JMX MBean attributes";
+	static final String TAG_VOCAB = "Jmx";
+	static final String TAG_TERM = "Container";
+	static final String THINGNAME_PREFIX = "jmx.";
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(JMXMBeanContainerTemplate.class);
+
+	private final AtomicBoolean _refreshing = new AtomicBoolean(false);
+	private SamplingScheduler.Sampling _sampling = null;
+	private volatile JMXServerTemplate _server = null;
+	private String _registeredServer = null;
+	private volatile boolean _started = false;
+	private NotificationSubscription _notifications = null;
+	private volatile DeadbandFilter _deadbands = new DeadbandFilter(null);
+	private volatile ValueStreamBuffer _valueStreamBuffer = null;
+	private volatile RollingStatistics _statistics = new RollingStatistics(0, 0);
+	private final CounterRates _counters = new CounterRates();
+	private final ReadPlan _readPlan = new ReadPlan();
+	private final AtomicReference<OpenMetricsSnapshot> _metrics = new AtomicReference<OpenMetricsSnapshot>(
+			OpenMetricsSnapshot.EMPTY);
+	private volatile CollectorStatistics _collectorStatistics = new CollectorStatistics(
+			CollectorStatistics.CONTAINER_SCOPE, "");
+	private SamplingScheduler.Sampling _valueStreamFlush = null;
+	private SamplingScheduler.Sampling _notificationFlush = null;
+	private final Object _demandReadLock = new Object();
+	private CompletableFuture<Void> _demandRead = null;
+	private boolean _writeToValueStream = false;
+
+	public JMXMBeanContainerTemplate() {
+		// TODO Auto-generated constructor stub
+	}
+
+	@Override
+	protected void startThing(ContextType contextType) throws Exception {
+		super.startThing(contextType);
+
+		_collectorStatistics = new CollectorStatistics(CollectorStatistics.CONTAINER_SCOPE, getName());
+		_collectorStatistics.register();
+
+		_started = true;
+		updateRegistration();
+
+		_readPlan.clear();
+		_metrics.set(OpenMetricsSnapshot.EMPTY);
+
+		final ConfigurationTable deadbands = getConfigurationTable(DEADBAND_TABLE);
+		_deadbands = new DeadbandFilter(deadbands != null ? deadbands.getRows() : null);
+
+		_statistics = new RollingStatistics(getIntegerSetting(SAMPLING_TABLE, "statisticsCapacity", 720),
+				getIntegerSetting(SAMPLING_TABLE, "statisticsWindow", 3600) * 1000L);
+
+		final int buffer_size = getIntegerSetting(VALUESTREAM_TABLE, "bufferSize", 0);
+		if (buffer_size > 0) {
+			final ValueStreamBuffer buffer = new ValueStreamBuffer(this, buffer_size,
+					getIntegerSetting(VALUESTREAM_TABLE, "flushSize", 500));
+			_valueStreamBuffer = buffer;
+			_valueStreamFlush = SamplingScheduler.schedule(getName() + " value stream",
+					Math.max(getIntegerSetting(VALUESTREAM_TABLE, "flushInterval", 5000), 100), buffer::flush);
+		}
+
+		final Object interval = getConfigurationSetting(SAMPLING_TABLE, "samplingInterval");
+		final Object write = getConfigurationSetting(SAMPLING_TABLE, "writeToValueStream");
+		_writeToValueStream = write instanceof Boolean && (Boolean) write;
+		if (interval instanceof Number && ((Number) interval).longValue() > 0) {
+			_sampling = SamplingScheduler.schedule(getName(), ((Number) interval).longValue(), this::sample);
+		}
+
+		final List<PropertyDefinition> notification_props = getProperties().values()
+				.stream()
+				.map(p -> p.getPropertyDefinition())
+				.filter(p -> NOTIFICATION_CATEGORY.equals(p.getCategory()))
+				.collect(Collectors.toList());
+		if (!notification_props.isEmpty()) {
+			final Object flush_interval = getConfigurationSetting(SAMPLING_TABLE, "notificationFlushInterval");
+			_notifications = new NotificationSubscription(this, notification_props);
+			_notificationFlush = SamplingScheduler.schedule(getName() + " notifications",
+					flush_interval instanceof Number && ((Number) flush_interval).longValue() > 0
+							? ((Number) flush_interval).longValue()
+							: 1000,
+					this::flushNotifications);
+		}
+	}
+
+	@Override
+	protected void stopThing(ContextType contextType) throws Exception {
+		if (_sampling != null) {
+			_sampling.cancel();
+			_sampling = null;
+		}
+		if (_notificationFlush != null) {
+			_notificationFlush.cancel();
+			_notificationFlush = null;
+		}
+		if (_notifications != null) {
+			_notifications.unsubscribe();
+			try {
+				_notifications.flush();
+			} catch (Exception ex) {
+				_logger.warn("Error pushing the last notifications onto {} because {}.", getName(), ex.getMessage());
+			}
+			_notifications = null;
+		}
+		// the last entries are written before the flush timer stops
+		if (_valueStreamBuffer != null) {
+			_valueStreamBuffer.close();
+			_valueStreamBuffer = null;
+		}
+		if (_valueStreamFlush != null) {
+			_valueStreamFlush.cancel();
+			_valueStreamFlush = null;
+		}
+		_collectorStatistics.unregister();
+		_started = false;
+		updateRegistration();
+		_server = null;
+		super.stopThing(contextType);
+	}
+
+	private int getIntegerSetting(String table, String field, int defaultValue) throws Exception {
+		final Object value = getConfigurationSetting(table, field);
+		return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+	}
+
+	private void sample() {
+		if (!isEnabled() || !tryBeginRefresh()) {
+			return;
+		}
+		try {
+			final JMXServerTemplate server = getJMXServer();
+			server.pushMBeanAttributes(this, getMBeanPropertiesDefinitionForUpdate(true));
+			if (_writeToValueStream) {
+				WriteMBeanPropertiesToValueStream(false);
+			}
+		} catch (Exception ex) {
+			_logger.warn("Error sampling MBean container {} because {}.", getName(), ex.getMessage());
+		} finally {
+			endRefresh();
+		}
+	}
+
+	private void flushNotifications() {
+		final NotificationSubscription notifications = _notifications;
+		if (notifications == null) {
+			return;
+		}
+		try {
+			// subscribes lazily, the server may start after the container or reconnect
+			notifications.subscribe(getJMXServer().getMBeanServer());
+		} catch (Exception ex) {
+			_logger.debug("Could not subscribe to the notifications for {} because {}.", getName(), ex.getMessage());
+		}
+		try {
+			notifications.flush();
+		} catch (Exception ex) {
+			_logger.warn("Error pushing notifications onto {} because {}.", getName(), ex.getMessage());
+		}
+	}
+
+	String getServerName() {
+		final ThingProperty property = getProperty(SERVER_PROPERTY);
+		return property != null && property.getValue() != null ? property.getValue().getStringValue() : null;
+	}
+
+	/**
+	 * Moves the container in the ContainerRegistry to its current server, or
+	 * removes it once stopped.
+	 */
+	synchronized void updateRegistration() {
+		final String server_name = _started ? getServerName() : null;
+		if (!Objects.equals(server_name, _registeredServer)) {
+			ContainerRegistry.unregister(_registeredServer, this);
+			ContainerRegistry.register(server_name, this);
+			_registeredServer = server_name;
+		}
+	}
+
+	@Override
+	public void setPropertyValue(String name, IPrimitiveType value) throws Exception {
+		super.setPropertyValue(name, value);
+		if (SERVER_PROPERTY.equals(name)) {
+			updateRegistration();
+		}
+	}
+
+	private JMXServerTemplate getJMXServer() throws Exception {
+		String server_name = getServerName();
+
+		// cached until the JmxServer property points to another thing
+		final JMXServerTemplate server = _server;
+		if (server != null && server.getName().equals(server_name)) {
+			return server;
+		}
+		updateRegistration();
+
+		Thing thing = ThingUtilities.findThing(server_name);
+		if (thing != null && thing instanceof JMXServerTemplate) {
+			_server = (JMXServerTemplate) thing;
+			return _server;
+		} else {
+			throw new Exception("JMX Server " + server_name + " not found.");
+		}
+	}
+
+	DeadbandFilter getDeadbands() {
+		return _deadbands;
+	}
+
+	RollingStatistics getStatistics() {
+		return _statistics;
+	}
+
+	CounterRates getCounters() {
+		return _counters;
+	}
+
+	CollectorStatistics getCollectorStatistics() {
+		return _collectorStatistics;
+	}
+
+	ReadPlan getReadPlan() {
+		return _readPlan;
+	}
+
+	@Override
+	public void RemovePropertyDefinition(String name) throws Exception {
+		super.RemovePropertyDefinition(name);
+		_readPlan.remove(name);
+		updateMetrics(Collections.singletonMap(name, OpenMetricsSnapshot.NO_SAMPLES));
+	}
+
+	@Override
+	public void AddPropertyDefinitions(InfoTable values, Boolean restart) throws Exception {
+		super.AddPropertyDefinitions(values, restart);
+		// the redefined properties are compiled again on their next read
+		final Map<String, OpenMetricsSnapshot.Sample[]> removed = new HashMap<String, OpenMetricsSnapshot.Sample[]>();
+		for (ValueCollection row : values.getRows()) {
+			_readPlan.remove(row.getStringValue("name"));
+			removed.put(row.getStringValue("name"), OpenMetricsSnapshot.NO_SAMPLES);
+		}
+		updateMetrics(removed);
+	}
+
+	OpenMetricsSnapshot getMetrics() {
+		return _metrics.get();
+	}
+
+	void resetMetrics() {
+		_metrics.set(OpenMetricsSnapshot.EMPTY);
+	}
+
+	/**
+	 * Swaps in the snapshot with the samples of the properties just refreshed
+	 * (or removed).
+	 */
+	void updateMetrics(Map<String, OpenMetricsSnapshot.Sample[]> refreshed) {
+		if (!refreshed.isEmpty()) {
+			_metrics.updateAndGet(metrics -> metrics.merge(refreshed));
+		}
+	}
+
+	/**
+	 * Marks the container as being refreshed, returns false if a refresh is
+	 * already in progress.
+	 */
+	boolean tryBeginRefresh() {
+		return _refreshing.compareAndSet(false, true);
+	}
+
+	void endRefresh() {
+		_refreshing.set(false);
+	}
+
+	private boolean isCandiateForUpdate(ThingProperty property, boolean ignoreCache) {
+
+		final PropertyDefinition prop_def = property.getPropertyDefinition();
+		if (prop_def.isBuiltIn() || ! isPolledCategory(prop_def.getCategory())) {
+			return false;
+		}
+
+		boolean demandRead = false;
+
+		if (ignoreCache) {
+			demandRead = true;
+		} else {
+			final Integer cacheTime = prop_def.getCacheTime();
+			
+			/* PSPT-68791 - workaround
+			 *  0 / null : Pull every read
+			 *  < 0 : Read from cache
+			 *  > 0 : Read from cache or Pull if older than ...
+			 */
+			
+			if (cacheTime == null || cacheTime == 0) {
+				demandRead = true;
+			}
+			else {
+				if (cacheTime < 0) {
+					demandRead = false;
+				} else if (cacheTime > 0) {
+					final long currentTime = System.currentTimeMillis();
+					final long lastTime = Math.max(property.getTime().getMillis(),
+							_deadbands.getLastSampleTime(prop_def.getName()));
+					final long diff = currentTime - lastTime;
+
+					if (diff > cacheTime) {
+						demandRead = true;
+					}
+				}
+			}
+		}
+		return demandRead;
+	}
+
+	static String getContainerThingName(String containerName) {
+		return containerName.startsWith(THINGNAME_PREFIX) ? containerName : THINGNAME_PREFIX + containerName;
+	}
+
+	/**
+	 * Creates the container Thing, left disabled and stopped.
+	 */
+	static JMXMBeanContainerTemplate createMBeanContainerThing(String containerName) throws Exception {
+		EntityServices entityService = (EntityServices) EntityUtilities.findEntity("EntityServices",
+				ThingworxRelationshipTypes.Resource);
+
+		TagCollection tags = new TagCollection();
+		tags.AddTag("Jmx", "Container");
+
+		entityService.CreateThing(containerName, "Container for JMX MBeans attributes", tags, TEMPLATE_NAME);
+		return (JMXMBeanContainerTemplate) ThingUtilities.findThing(containerName);
+	}
+
+	static void deleteMBeanContainerThing(String containerName) {
+		EntityServices entityService = (EntityServices) EntityUtilities.findEntity("EntityServices",
+				ThingworxRelationshipTypes.Resource);
+		try {
+			entityService.DeleteThing(containerName);
+		} catch (Exception e) {
+			_logger.error("Exception: {} occurred while deleting Thing: {}", e, containerName);
+		}
+	}
+
+	static void createMBeanContainer(String containerName, String serverName) {
+
+		containerName = getContainerThingName(containerName);
+		try {
+			Thing thing = createMBeanContainerThing(containerName);
+			thing.EnableThing();
+			thing.RestartThing();
+			thing.setPropertyValue(SERVER_PROPERTY, BaseTypes.ConvertToPrimitive(serverName, BaseTypes.THINGNAME));
+		} catch (Exception e) {
+			_logger.error("Exception: {} occurred while creating new Thing: {}", e, containerName);
+			deleteMBeanContainerThing(containerName);
+		}
+	}
+
+	/**
+	 * Returns the running containers bound to the server, sorted by name.
+	 */
+	static List<JMXMBeanContainerTemplate> listMBeanContainers(String serverName) {
+		return ContainerRegistry.getContainers(serverName);
+	}
+
+	List<PropertyDefinition> getMBeanPropertiesDefinitionForUpdate(boolean force) {
+		return getProperties().values()
+				.stream()
+				.filter(p -> isCandiateForUpdate(p, force))
+				.map(p -> p.getPropertyDefinition())
+				.collect(Collectors.toList());
+	}
+	
+	static boolean isPolledCategory(String category) {
+		return MBEAN_CATEGORY.equals(category) || RATE_CATEGORY.equals(category) || DELTA_CATEGORY.equals(category)
+				|| isAggregateCategory(category);
+	}
+
+	static boolean isAggregateCategory(String category) {
+		return SUM_CATEGORY.equals(category) || MIN_CATEGORY.equals(category) || MAX_CATEGORY.equals(category)
+				|| AVG_CATEGORY.equals(category) || COUNT_CATEGORY.equals(category);
+	}
+
+	/**
+	 * True for the bindings whose property name is suffixed by the binding (e.g.
+	 * _rate), so it can live next to the property of the raw attribute.
+	 */
+	static boolean isSuffixedCategory(String category) {
+		return RATE_CATEGORY.equals(category) || DELTA_CATEGORY.equals(category) || isAggregateCategory(category);
+	}
+
+	/**
+	 * Returns the attribute[_key] bound to the property, i.e. its name without
+	 * the _rate / _delta suffix of the counter bindings.
+	 */
+	static String getAttributePath(PropertyDefinition prop_def) {
+		final String name = prop_def.getName();
+		final String category = prop_def.getCategory();
+		if (isSuffixedCategory(category)) {
+			final String suffix = JMXServerTemplate.COMPOSITE_SEP + category.substring(CATEGORY_PREFIX.length());
+			if (name.endsWith(suffix)) {
+				return name.substring(0, name.length() - suffix.length());
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * Returns the name of the property bound to the attribute[_key], suffixed
+	 * by _rate / _delta for the counter bindings.
+	 */
+	static String getPropertyName(String attributePath, String category) {
+		if (isSuffixedCategory(category)) {
+			return attributePath + JMXServerTemplate.COMPOSITE_SEP + category.substring(CATEGORY_PREFIX.length());
+		}
+		return attributePath;
+	}
+
+	static boolean isMBeanProperty(PropertyDefinition prop_def) {
+		return prop_def.getCategory() != null && prop_def.getCategory().startsWith(CATEGORY_PREFIX);
+	}
+
+	List<ThingProperty> getLoggedMBeanProperties() {
+		return getProperties().values()
+				.stream()
+				.filter(p -> 
+					p.getPropertyDefinition().isLogged() && isMBeanProperty(p.getPropertyDefinition()))
+				.collect(Collectors.toList());
+	}
+	
+	void addValueStreamEntry(String prop_name, IPrimitiveType value, DateTime timestamp) throws Exception {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			writeValueStreamEntry(prop_name, value, timestamp);
+			success = true;
+		} finally {
+			final long elapsed = System.nanoTime() - start;
+			_collectorStatistics.valueStreamWritten(elapsed, success);
+			final JMXServerTemplate server = _server;
+			if (server != null) {
+				server.getCollectorStatistics().valueStreamWritten(elapsed, success);
+			}
+		}
+	}
+
+	private void writeValueStreamEntry(String prop_name, IPrimitiveType value, DateTime timestamp) throws Exception {
+
+		switch (value.getBaseType()) {
+		case STRING:
+			AddStringValueStreamEntry(timestamp, prop_name, (String) value.getValue());
+			break;
+		case BOOLEAN:
+			this.AddBooleanValueStreamEntry(timestamp, prop_name, (Boolean) value.getValue());
+			break;
+		case DATETIME:
+			this.AddDateTimeValueStreamEntry(timestamp, prop_name, (DateTime) value.getValue());
+			break;
+		case IMAGE:	
+			this.AddImageValueStreamEntry(timestamp, prop_name, (byte[]) value.getValue());
+			break;
+		case INFOTABLE:	
+			this.AddInfoTableValueStreamEntry(timestamp, prop_name, (InfoTable) value.getValue());
+			break;
+		case INTEGER:	
+			this.AddIntegerValueStreamEntry(timestamp, prop_name,  (Integer) value.getValue());
+			break;
+		case LOCATION:			
+			this.AddLocationValueStreamEntry(timestamp, prop_name,  (Location) value.getValue());
+			break;
+		case LONG:
+			this.AddLongValueStreamEntry(timestamp, prop_name,  (Long) value.getValue());
+			break;
+		case NUMBER:
+			this.AddNumberValueStreamEntry(timestamp, prop_name,  (Double) value.getValue());
+			break;
+		case THINGCODE:	
+			this.AddThingCodeValueStreamEntry(timestamp, prop_name, (ThingCode) value.getValue());
+			break;
+		case VEC2:		
+			this.AddVec2ValueStreamEntry(timestamp, prop_name, (Vec2) value.getValue());
+			break;
+		case VEC3:	
+			this.AddVec3ValueStreamEntry(timestamp, prop_name, (Vec3) value.getValue());
+			break;
+		case VEC4:	
+			this.AddVec4ValueStreamEntry(timestamp, prop_name, (Vec4) value.getValue());
+			break;
+		default:
+		}
+	}
+
+	@Override
+	public void checkDemandRead(ThingProperty property) throws Exception {
+
+		if (isCandiateForUpdate(property, false)) {
+			refreshStaleProperties();
+		}
+		super.checkDemandRead(property);
+	}
+
+	/**
+	 * Refreshes all the stale properties of the container in one batch. Threads
+	 * asking for a refresh while a batch is running wait for it instead of
+	 * starting their own.
+	 */
+	private void refreshStaleProperties() throws Exception {
+		final CompletableFuture<Void> batch;
+		final boolean owner;
+		synchronized (_demandReadLock) {
+			owner = _demandRead == null;
+			if (owner) {
+				_demandRead = new CompletableFuture<Void>();
+			}
+			batch = _demandRead;
+		}
+
+		if (!owner) {
+			try {
+				batch.get();
+			} catch (ExecutionException ex) {
+				// the failure of the batch, as thrown to its owner
+				final Throwable cause = ex.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new Exception(cause);
+			}
+			return;
+		}
+
+		Throwable failure = null;
+		try {
+			final JMXServerTemplate server = getJMXServer();
+			server.pushMBeanAttributes(this, getMBeanPropertiesDefinitionForUpdate(false));
+		} catch (Throwable ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			synchronized (_demandReadLock) {
+				_demandRead = null;
+			}
+			if (failure == null) {
+				batch.complete(null);
+			} else {
+				batch.completeExceptionally(failure);
+			}
+		}
+	}
+	
+	@ThingworxServiceDefinition(name = "AddMBeanPropertyDefinition", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public void AddMBeanPropertyDefinition(
+			@ThingworxServiceParameter(name = "mbeanName", description = "", baseType = "STRING", aspects = {
+					"isRequired:true" }) String mbeanName,
+			@ThingworxServiceParameter(name = "attributeName", description = "", baseType = "STRING", aspects = {
+					"isRequired:true" }) String attributeName,
+			@ThingworxServiceParameter(name = "type", description = "", baseType = "BASETYPENAME", aspects = {
+					"isRequired:true" }) String type,
+			@ThingworxServiceParameter(name = "binding", description = BINDING_DESCRIPTION, baseType = "STRING", aspects = {
+					"defaultValue:attr" }) String binding)
+			throws Exception {
+
+		final String category = getBindingCategory(binding);
+		final String data_shape = BaseTypes.INFOTABLE.name().equals(type) && ObjectNameResolver.isPattern(mbeanName)
+				? PATTERN_DATASHAPE
+				: null;
+		AddPropertyDefinition(getPropertyName(attributeName, category), mbeanName, type, category, data_shape, false,
+				false, false, null, null, false, null, null, null, null, null, null);
+	}
+
+	static String getBindingCategory(String binding) throws Exception {
+		if (binding == null || binding.isEmpty()) {
+			return MBEAN_CATEGORY;
+		}
+		final String category = CATEGORY_PREFIX + binding;
+		if (!isPolledCategory(category) && !NOTIFICATION_CATEGORY.equals(category)) {
+			throw new Exception("Unknown MBean binding " + binding + ".");
+		}
+		return category;
+	}
+
+	@ThingworxServiceDefinition(name = "GetMBeanPropertyDefinitions", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:PropertyDefinition" })
+	public InfoTable GetMBeanPropertyDefinitions() throws Exception {
+		final InfoTable all = GetPropertyDefinitions(null, null, null);
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("PropertyDefinition");
+		for (ValueCollection row : all.getRows()) {
+			final String category = row.getStringValue("category");
+			if (category != null && category.startsWith(CATEGORY_PREFIX)) {
+				result.addRow(row);
+			}
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "RefreshMBeanAttributes", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public void RefreshMBeanAttributes(
+			@ThingworxServiceParameter(name = "ignoreCache", description = "", baseType = "BOOLEAN", aspects = {
+					"isRequired:true", "defaultValue:false" }) Boolean ignoreCache)
+			throws Exception {
+
+		final JMXServerTemplate server = getJMXServer();
+		server.pushMBeanAttributes(this, getMBeanPropertiesDefinitionForUpdate(ignoreCache));
+	}
+
+	@ThingworxServiceDefinition(name = "WriteMBeanPropertiesToValueStream", description = "", category = "", isAllowOverride = false, aspects = {
+			"isAsync:true" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public void WriteMBeanPropertiesToValueStream(
+			@ThingworxServiceParameter(name = "forceRefresh", description = "", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean forceRefresh) throws Exception {
+
+		if (forceRefresh) {
+			RefreshMBeanAttributes(true);
+		}
+		
+		final DateTime now = DateTime.now();
+		final DeadbandFilter deadbands = _deadbands;
+		List<ThingProperty> properties = getLoggedMBeanProperties();
+		final ValueStreamBuffer buffer = _valueStreamBuffer;
+		for (ThingProperty property : properties) {
+			final IPrimitiveType value = property.getValue();
+			if (deadbands.acceptWrite(property.getName(), value.getValue(), now.getMillis())) {
+				if (buffer != null) {
+					buffer.add(property.getName(), value, now);
+				} else {
+					this.addValueStreamEntry(property.getName(), value, now);
+				}
+			}
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "GetPropertyStatistics", description = "Statistics of the numeric MBean properties over a time window, with the time span actually covered by the samples (start / end)", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.PropertyStatistics" })
+	public InfoTable GetPropertyStatistics(
+			@ThingworxServiceParameter(name = "window", description = "Time window (s)", baseType = "INTEGER", aspects = {
+					"defaultValue:300" }) Integer window,
+			@ThingworxServiceParameter(name = "propertyName", description = "Optional, all the properties if empty", baseType = "STRING", aspects = {
+					"isRequired:false" }) String propertyName)
+			throws Exception {
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.PropertyStatistics");
+		final long since = System.currentTimeMillis() - (window == null ? 300 : window) * 1000L;
+		for (ValueCollection row : _statistics.getStatistics(propertyName, since)) {
+			result.addRow(row);
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "GetValueStreamBufferStatistics", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.ValueStreamBufferStatistics" })
+	public InfoTable GetValueStreamBufferStatistics() throws Exception {
+		final InfoTable result = InfoTableInstanceFactory
+				.createInfoTableFromDataShape("JMX.ValueStreamBufferStatistics");
+		final ValueStreamBuffer buffer = _valueStreamBuffer;
+		if (buffer != null) {
+			result.addRow(buffer.getStatistics());
+		}
+		return result;
+	}
+}
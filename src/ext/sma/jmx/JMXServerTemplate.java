@@ -1,379 +1,1376 @@
-package ext.sma.jmx;
-
-import java.lang.management.ManagementFactory;
-import java.util.List;
-import java.util.Set;
-
-import javax.management.MBeanAttributeInfo;
-import javax.management.MBeanInfo;
-import javax.management.MBeanServer;
-import javax.management.ObjectName;
-import javax.management.openmbean.CompositeData;
-import javax.management.openmbean.CompositeType;
-
-import org.joda.time.DateTime;
-import org.slf4j.Logger;
-
-import com.thingworx.data.util.InfoTableInstanceFactory;
-import com.thingworx.entities.utils.ThingUtilities;
-import com.thingworx.logging.LogUtilities;
-import com.thingworx.metadata.PropertyDefinition;
-import com.thingworx.metadata.annotations.ThingworxBaseTemplateDefinition;
-import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
-import com.thingworx.metadata.annotations.ThingworxServiceParameter;
-import com.thingworx.metadata.annotations.ThingworxServiceResult;
-import com.thingworx.system.ContextType;
-import com.thingworx.things.Thing;
-import com.thingworx.types.BaseTypes;
-import com.thingworx.types.InfoTable;
-import com.thingworx.types.collections.ValueCollection;
-import com.thingworx.types.primitives.BooleanPrimitive;
-import com.thingworx.types.primitives.DatetimePrimitive;
-import com.thingworx.types.primitives.StringPrimitive;
-
-@ThingworxBaseTemplateDefinition(name = "GenericThing")
-public class JMXServerTemplate extends Thing {
-
-	static final String TEMPLATE_NAME = "JMX.ServerTemplate";
-	static final String C3P0_MACRO = "_C3P0_";
-	static final String C3P0_ROOT = "com.mchange.v2.c3p0:type=PooledDataSource,";
-	static final String THINGNAME_MACRO = "_THINGNAME_";
-	static final String COMPOSITE_SEP = "_";
-
-	static final String THING_URL_TEMPLATE = "/Thingworx/Composer/index.html#/modeler/details/Thing~_THINGNAME_/properties";
-
-	private String _c3p0PoolName = null;
-
-	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(JMXServerTemplate.class);
-
-	public JMXServerTemplate() {
-	}
-
-	private String getC3p0PoolMBeanName() throws Exception {
-		if (_c3p0PoolName == null) {
-			ObjectName oname = null;
-			final MBeanServer mbs = getMBeanServer();
-			final Set<ObjectName> onames = mbs.queryNames(new ObjectName(C3P0_ROOT + "*"), null);
-			if (!onames.isEmpty()) {
-				oname = onames.iterator().next();
-			}
-			_c3p0PoolName = oname.toString();
-		}
-		return _c3p0PoolName;
-	}
-
-	private static MBeanServer getMBeanServer() {
-		return ManagementFactory.getPlatformMBeanServer();
-	}
-
-	JMXMBeanContainerTemplate getContainerByName(String containerName) throws Exception {
-		Thing thing = ThingUtilities.findThing(containerName);
-		if (thing != null && thing instanceof JMXMBeanContainerTemplate) {
-			return (JMXMBeanContainerTemplate) thing;
-		} else {
-			throw new Exception("MBean Container " + containerName + " not found.");
-		}
-	}
-
-	static BaseTypes JavaTypeToBaseType(String javaType) {
-		switch (javaType) {
-		case "java.lang.Double":
-		case "double":
-		case "java.lang.Float":
-		case "float":
-			return BaseTypes.NUMBER;
-		case "java.lang.Long":
-		case "long":
-			return BaseTypes.LONG;
-		case "java.lang.Short":
-		case "java.lang.Integer":
-		case "int":
-			return BaseTypes.INTEGER;
-		case "java.lang.Boolean":
-		case "boolean":
-			return BaseTypes.BOOLEAN;
-		default:
-		}
-		return BaseTypes.STRING;
-	}
-
-	void pushMBeanAttributes(JMXMBeanContainerTemplate container, List<PropertyDefinition> properties)
-			throws Exception {
-
-		if (container == null || properties == null)
-			return;
-
-		final MBeanServer mbs = getMBeanServer();
-
-		final InfoTable vtqs = InfoTableInstanceFactory.createInfoTableFromDataShape("NamedVTQ");
-		final DateTime now = DateTime.now();
-
-		for (PropertyDefinition prop : properties) {
-
-			String name = prop.getName();
-			String obj_name = prop.getDescription();
-			final BaseTypes type = prop.getBaseType();
-
-			if (C3P0_MACRO.equals(obj_name)) {
-				obj_name = getC3p0PoolMBeanName();
-				if (obj_name == null) {
-					_logger.warn("Could not resolve {} macro.", C3P0_MACRO);
-					continue;
-				}
-			}
-
-			String comp_key = null;
-			String attr_name = null;
-			int t = name.lastIndexOf(COMPOSITE_SEP);
-			if (t > 0) {
-				attr_name = name.substring(0, t);
-				comp_key = name.substring(t + 1);
-			} else {
-				attr_name = name;
-			}
-
-			try {
-				Object attr_value = mbs.getAttribute(new ObjectName(obj_name), attr_name);
-				if (comp_key != null && attr_value != null && attr_value instanceof CompositeData) {
-					CompositeData cd = (CompositeData) attr_value;
-					attr_value = cd.get(comp_key);
-				}
-
-				final ValueCollection values = new ValueCollection();
-				values.put("name", new StringPrimitive(name));
-				values.put("time", new DatetimePrimitive(now));
-				values.put("value", BaseTypes.ConvertToPrimitive(attr_value, type));
-				vtqs.addRow(values);
-
-			} catch (Exception ex) {
-				_logger.warn("Error pushing MBean attribute {} / {} onto {} because {}.", obj_name, name,
-						container.getName(), ex.getMessage());
-				continue;
-			}
-		}
-		container.UpdatePropertyValues(vtqs);
-	}
-
-	@ThingworxServiceDefinition(name = "QueryMBeans", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
-			"isEntityDataShape:true", "dataShape:JMX.MBeanInfoDataShape" })
-	public InfoTable QueryMBeans(
-			@ThingworxServiceParameter(name = "filter", description = "", baseType = "STRING", aspects = {
-					"isRequired:false" }) String filter)
-			throws Exception {
-		final MBeanServer mbs = getMBeanServer();
-		final InfoTable it = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanInfoDataShape");
-
-		final Set<ObjectName> onames = mbs.queryNames(filter == null ? null : new ObjectName(filter), null);
-		for (ObjectName oname : onames) {
-			MBeanInfo bean_info = mbs.getMBeanInfo(oname);
-			final ValueCollection values = new ValueCollection();
-			values.put("objectName", new StringPrimitive(oname.toString()));
-			values.put("className", new StringPrimitive(bean_info.getClassName()));
-			values.put("description", new StringPrimitive(bean_info.getDescription()));
-			it.addRow(values);
-		}
-		return it;
-	}
-
-	@ThingworxServiceDefinition(name = "QueryMBeansTree", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
-			"isEntityDataShape:true", "dataShape:JMX.MBeanTreeDataShape" })
-	public InfoTable QueryMBeansTree(
-			@ThingworxServiceParameter(name = "filter", description = "", baseType = "STRING", aspects = {
-					"isRequired:false" }) String filter)
-			throws Exception {
-		final MBeanServer mbs = getMBeanServer();
-		final Set<ObjectName> onames = mbs.queryNames(filter == null ? null : new ObjectName(filter), null);
-		final MBeanTreeBuilder tb = new MBeanTreeBuilder();
-		tb.addMBeans(onames);
-		return tb.toInfoTable();
-	}
-
-	@ThingworxServiceDefinition(name = "GetMBeanAttributesInfo", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
-			"isEntityDataShape:true", "dataShape:JMX.MBeanAttributeInfoDataShape" })
-	public InfoTable GetMBeanAttributesInfo(
-			@ThingworxServiceParameter(name = "mbeanName", description = "", baseType = "STRING", aspects = {
-					"isRequired:true" }) String mbeanName,
-			@ThingworxServiceParameter(name = "notWritableOnly", description = "", baseType = "BOOLEAN", aspects = {
-					"isRequired:true", "defaultValue:true" }) Boolean notWritableOnly,
-			@ThingworxServiceParameter(name = "showPreview", description = "", baseType = "BOOLEAN", aspects = {
-					"isRequired:true", "defaultValue:false" }) Boolean showPreview)
-			throws Exception {
-
-		final InfoTable it = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanAttributeInfoDataShape");
-
-		if (mbeanName == null || mbeanName.isEmpty())
-			return it;
-
-		final MBeanServer mbs = getMBeanServer();
-		ObjectName oname = new ObjectName(mbeanName);
-		final MBeanAttributeInfo attrs[] = mbs.getMBeanInfo(oname).getAttributes();
-		for (MBeanAttributeInfo attr_info : attrs) {
-			final boolean is_writable = attr_info.isWritable();
-			if (notWritableOnly && is_writable) {
-				continue;
-			}
-
-			boolean isComposite = false;
-			final String type = attr_info.getType();
-			if ("javax.management.openmbean.CompositeData".equals(type)) {
-				Object attr_value = null;
-				try {
-					attr_value = mbs.getAttribute(oname, attr_info.getName());
-				} catch (Exception ex) {
-				}
-
-				if (attr_value != null) {
-					CompositeData cd = (CompositeData) attr_value;
-					CompositeType ct = cd.getCompositeType();
-					Set<String> keys = ct.keySet();
-					for (String key : keys) {
-						Object value = cd.get(key);
-						final ValueCollection values = new ValueCollection();
-						values.put("name", new StringPrimitive(attr_info.getName() + COMPOSITE_SEP + key));
-						values.put("type", new StringPrimitive(ct.getType(key).getClassName()));
-						values.put("description", new StringPrimitive(ct.getDescription()));
-						values.put("isWritable", new BooleanPrimitive(is_writable));
-						values.put("objectName", new StringPrimitive(mbeanName));
-						if (showPreview) {
-							values.put("preview", new StringPrimitive(value.toString()));
-						}
-						it.addRow(values);
-					}
-					isComposite = true;
-				} else {
-					isComposite = false;
-				}
-
-			}
-			if (isComposite == false) {
-				final ValueCollection values = new ValueCollection();
-				values.put("name", new StringPrimitive(attr_info.getName()));
-				values.put("type", new StringPrimitive(attr_info.getType()));
-				values.put("description", new StringPrimitive(attr_info.getDescription()));
-				values.put("isWritable", new BooleanPrimitive(is_writable));
-				values.put("objectName", new StringPrimitive(mbeanName));
-
-				if (showPreview) {
-					Object attr_value = null;
-					try {
-						attr_value = mbs.getAttribute(oname, attr_info.getName());
-					} catch (Exception ex) {
-						attr_value = "[ERROR] - " + ex.getMessage();
-					}
-					if (attr_value != null) {
-						values.put("preview", new StringPrimitive(attr_value.toString()));
-					}
-				}
-				it.addRow(values);
-			}
-		}
-		return it;
-	}
-
-	@ThingworxServiceDefinition(name = "CreateMBeanContainer", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
-	public void CreateMBeanContainer(
-			@ThingworxServiceParameter(name = "containerName", description = "", baseType = "STRING", aspects = {
-					"isRequired:true" }) String containerName) {
-
-		JMXMBeanContainerTemplate.createMBeanContainer(containerName, this.getName());
-	}
-
-	@ThingworxServiceDefinition(name = "GetMBeanContainers", description = "", category = "Jmx", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "Result", description = "", baseType = "INFOTABLE", aspects = {
-			"isEntityDataShape:true", "dataShape: JMX.MBeanContainerList" })
-	public InfoTable GetMBeanContainers(
-			@ThingworxServiceParameter(name = "viewLinkURL", description = "", baseType = "STRING", aspects = {
-					"defaultValue:" + THING_URL_TEMPLATE }) String viewLinkURL)
-			throws Exception {
-
-		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanContainerList");
-
-		InfoTable containers = JMXMBeanContainerTemplate.listMBeanContainers(this.getName());
-
-		for (ValueCollection container : containers.getRows()) {
-			final String name = container.getStringValue("name");
-			container.put("viewLink", new StringPrimitive(viewLinkURL.replace(THINGNAME_MACRO, name)));
-			result.addRow(container);
-		}
-		return result;
-	}
-
-	@ThingworxServiceDefinition(name = "AddMBeanAttributesToContainer", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
-	public void AddMBeanAttributesToContainer(
-			@ThingworxServiceParameter(name = "containerName", description = "", baseType = "THINGNAME", aspects = {
-					"isRequired:true", "thingTemplate:JMX.MBeanContainerTemplate" }) String containerName,
-			@ThingworxServiceParameter(name = "attributes", description = "", baseType = "INFOTABLE", aspects = {
-					"isRequired:true", "isEntityDataShape:true",
-					"dataShape:JMX.MBeanAttributeInfoDataShape" }) InfoTable attributes,
-			@ThingworxServiceParameter(name = "logged", description = "", baseType = "BOOLEAN", aspects = {
-					"isRequired:true", "defaultValue:false" }) Boolean isLogged)
-			throws Exception {
-
-		JMXMBeanContainerTemplate container = getContainerByName(containerName);
-
-		final InfoTable properties = InfoTableInstanceFactory
-				.createInfoTableFromDataShape("PropertyDefinitionWithDetails");
-
-		for (ValueCollection attr : attributes.getRows()) {
-			final String name = attr.getStringValue("name");
-			String mbean = attr.getStringValue("objectName");
-			final String type = attr.getStringValue("type");
-
-			if (mbean.startsWith(C3P0_ROOT)) {
-				mbean = C3P0_MACRO;
-			}
-
-			final ValueCollection values = new ValueCollection();
-			values.put("name", new StringPrimitive(name));
-			values.put("baseType", new StringPrimitive(JavaTypeToBaseType(type).name()));
-			values.put("description", new StringPrimitive(mbean));
-			values.put("category", new StringPrimitive(JMXMBeanContainerTemplate.MBEAN_CATEGORY));
-			values.put("isLogged", new BooleanPrimitive(isLogged));
-			values.put("isReadOnly", new BooleanPrimitive(false));
-			values.put("isPersistent", new BooleanPrimitive(false));
-			values.put("isRemote", new BooleanPrimitive(false));
-			// values.put("remotePropertyName", new StringPrimitive(name));
-			// values.put("timeout", new IntegerPrimitive((Number) 2));
-			properties.addRow(values);
-		}
-		container.AddPropertyDefinitions(properties, true);
-	}
-
-	@ThingworxServiceDefinition(name = "GetMBeanContainerAttributesInfo", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
-			"isEntityDataShape:true", "dataShape:PropertyDefinition" })
-	public InfoTable GetMBeanContainerAttributesInfo(
-			@ThingworxServiceParameter(name = "containerName", description = "", baseType = "STRING", aspects = {
-					"isRequired:true" }) String containerName)
-			throws Exception {
-
-		if (containerName == null || containerName.isEmpty())
-			return InfoTableInstanceFactory.createInfoTableFromDataShape("PropertyDefinition");
-
-		JMXMBeanContainerTemplate container = getContainerByName(containerName);
-		return container.GetMBeanPropertyDefinitions();
-	}
-
-	@ThingworxServiceDefinition(name = "ResetC3p0Bean", description = "", category = "Jmx", isAllowOverride = false, aspects = {
-			"isAsync:false" })
-	@ThingworxServiceResult(name = "Result", description = "", baseType = "STRING", aspects = {})
-	public String ResetC3p0Bean() throws Exception {
-		_logger.trace("Entering Service: ResetC3p0Bean");
-		_c3p0PoolName = null;
-		_logger.trace("Exiting Service: ResetC3p0Bean");
-		return this.getC3p0PoolMBeanName();
-	}
-	
-}
+package ext.sma.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenMBeanAttributeInfo;
+
+import org.joda.time.DateTime;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.entities.utils.ThingUtilities;
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.metadata.annotations.ThingworxBaseTemplateDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinitions;
+import com.thingworx.metadata.annotations.ThingworxDataShapeDefinition;
+import com.thingworx.metadata.annotations.ThingworxFieldDefinition;
+import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
+import com.thingworx.metadata.annotations.ThingworxServiceParameter;
+import com.thingworx.metadata.annotations.ThingworxServiceResult;
+import com.thingworx.system.ContextType;
+import com.thingworx.things.Thing;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.ConfigurationTable;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.BooleanPrimitive;
+import com.thingworx.types.primitives.DatetimePrimitive;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.LongPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+import com.thingworx.types.primitives.TagsPrimitive;
+
+@ThingworxConfigurationTableDefinitions(tables = {
+		@ThingworxConfigurationTableDefinition(name = JMXServerTemplate.CONNECTION_TABLE, description = "Remote JMX agent (leave serviceUrl empty to monitor the local platform)", isMultiRow = false, ordinal = 0, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "serviceUrl", description = "e.g. service:jmx:rmi:///jndi/rmi://host:9010/jmxrmi", baseType = "STRING", ordinal = 0, aspects = {
+						"defaultValue:" }),
+				@ThingworxFieldDefinition(name = "username", description = "", baseType = "STRING", ordinal = 1, aspects = {
+						"defaultValue:" }),
+				@ThingworxFieldDefinition(name = "password", description = "", baseType = "PASSWORD", ordinal = 2, aspects = {}),
+				@ThingworxFieldDefinition(name = "connectTimeout", description = "Connect timeout (ms)", baseType = "INTEGER", ordinal = 3, aspects = {
+						"defaultValue:5000" }),
+				@ThingworxFieldDefinition(name = "readTimeout", description = "Timeout of each remote call (ms)", baseType = "INTEGER", ordinal = 4, aspects = {
+						"defaultValue:10000" }),
+				@ThingworxFieldDefinition(name = "maxReconnectDelay", description = "Maximum delay between two reconnect attempts (ms)", baseType = "INTEGER", ordinal = 5, aspects = {
+						"defaultValue:60000" }) })),
+		@ThingworxConfigurationTableDefinition(name = JMXServerTemplate.BROWSING_TABLE, description = "MBean browsing services", isMultiRow = false, ordinal = 1, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "maxResultRows", description = "Maximum number of rows returned by QueryMBeans / GetMBeanAttributesInfo", baseType = "INTEGER", ordinal = 0, aspects = {
+						"defaultValue:5000" }),
+				@ThingworxFieldDefinition(name = "previewTimeout", description = "Time budget (ms) to read the attribute values of GetMBeanAttributesInfo", baseType = "INTEGER", ordinal = 1, aspects = {
+						"defaultValue:2000" }) })),
+		@ThingworxConfigurationTableDefinition(name = JMXServerTemplate.READ_POLICY_TABLE, description = "Attribute reads of the container refreshes", isMultiRow = false, ordinal = 2, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "readTimeout", description = "Time budget (ms) to read the attributes of the MBeans during a refresh", baseType = "INTEGER", ordinal = 0, aspects = {
+						"defaultValue:5000" }),
+				@ThingworxFieldDefinition(name = "failureThreshold", description = "Consecutive failures before an attribute is quarantined", baseType = "INTEGER", ordinal = 1, aspects = {
+						"defaultValue:3" }),
+				@ThingworxFieldDefinition(name = "minBackoff", description = "First quarantine delay (ms), doubled on each new failure", baseType = "INTEGER", ordinal = 2, aspects = {
+						"defaultValue:10000" }),
+				@ThingworxFieldDefinition(name = "maxBackoff", description = "Maximum quarantine delay (ms)", baseType = "INTEGER", ordinal = 3, aspects = {
+						"defaultValue:600000" }),
+				@ThingworxFieldDefinition(name = "maxTableRows", description = "Maximum number of rows of the INFOTABLE properties bound to TabularData or array attributes", baseType = "INTEGER", ordinal = 4, aspects = {
+						"defaultValue:1000" }) })),
+		@ThingworxConfigurationTableDefinition(name = JMXServerTemplate.ALIAS_TABLE, description = "MBean aliases usable instead of an ObjectName in the bindings (_C3P0_ is built in)", isMultiRow = true, ordinal = 3, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "alias", description = "e.g. _ORDERS_POOL_", baseType = "STRING", ordinal = 0, aspects = {}),
+				@ThingworxFieldDefinition(name = "pattern", description = "ObjectName pattern, e.g. com.zaxxer.hikari:type=Pool (*),*", baseType = "STRING", ordinal = 1, aspects = {}),
+				@ThingworxFieldDefinition(name = "selection", description = "MBean to use when several match: first, last (in name order) or newest (last registered)", baseType = "STRING", ordinal = 2, aspects = {
+						"defaultValue:newest" }) })),
+		@ThingworxConfigurationTableDefinition(name = JMXServerTemplate.METRICS_TABLE, description = "OpenMetrics (Prometheus) endpoint serving the latest values of the containers", isMultiRow = false, ordinal = 4, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "enabled", description = "Render the values of the containers as metrics at each refresh, served by GetOpenMetrics", baseType = "BOOLEAN", ordinal = 0, aspects = {
+						"defaultValue:false" }),
+				@ThingworxFieldDefinition(name = "httpPort", description = "Port of the local HTTP listener also serving them on /metrics, 0 to disable it", baseType = "INTEGER", ordinal = 1, aspects = {
+						"defaultValue:0" }),
+				@ThingworxFieldDefinition(name = "bindAddress", description = "Address the HTTP listener binds to", baseType = "STRING", ordinal = 2, aspects = {
+						"defaultValue:127.0.0.1" }) })) })
+
+@ThingworxBaseTemplateDefinition(name = "GenericThing")
+public class JMXServerTemplate extends Thing {
+
+	static final String TEMPLATE_NAME = "JMX.ServerTemplate";
+	static final String CONNECTION_TABLE = "ConnectionInfo";
+	static final String BROWSING_TABLE = "Browsing";
+	static final String READ_POLICY_TABLE = "ReadPolicy";
+	static final String ALIAS_TABLE = "Aliases";
+	static final String METRICS_TABLE = "OpenMetrics";
+	static final String COMPOSITE_TYPE = "javax.management.openmbean.CompositeData";
+	static final String C3P0_MACRO = "_C3P0_";
+	static final String C3P0_ROOT = "com.mchange.v2.c3p0:type=PooledDataSource,";
+	static final String THINGNAME_MACRO = "_THINGNAME_";
+	static final String COMPOSITE_SEP = "_";
+	static final int MAX_BLOCKED_READS = 16;
+
+	static final String THING_URL_TEMPLATE = "/Thingworx/Composer/index.html#/modeler/details/Thing~_THINGNAME_/properties";
+
+	private volatile JMXConnection _connection = JMXConnection.platform();
+	private volatile AttributeCircuitBreaker _breaker = new AttributeCircuitBreaker(3, 10000, 600000);
+	private volatile int _readTimeout = 5000;
+	private volatile int _maxTableRows = 1000;
+	private volatile MBeanAliases _aliases = new MBeanAliases(null);
+	private volatile CollectorStatistics _collectorStatistics = new CollectorStatistics(
+			CollectorStatistics.SERVER_SCOPE, "");
+	private ThreadProfiler _threadProfiler = null;
+	private final BlockedReads _blockedReads = new BlockedReads(MAX_BLOCKED_READS);
+	private volatile boolean _metricsEnabled = false;
+	private OpenMetricsEndpoint _metricsEndpoint = null;
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(JMXServerTemplate.class);
+
+	public JMXServerTemplate() {
+	}
+
+	@Override
+	protected void startThing(ContextType contextType) throws Exception {
+		super.startThing(contextType);
+
+		final String url = (String) getConfigurationSetting(CONNECTION_TABLE, "serviceUrl");
+		if (url != null && !url.isEmpty()) {
+			try {
+				_connection = JMXConnection.remote(url,
+						(String) getConfigurationSetting(CONNECTION_TABLE, "username"),
+						(String) getConfigurationSetting(CONNECTION_TABLE, "password"),
+						getIntegerSetting(CONNECTION_TABLE, "connectTimeout", 5000),
+						getIntegerSetting(CONNECTION_TABLE, "readTimeout", 10000),
+						getIntegerSetting(CONNECTION_TABLE, "maxReconnectDelay", 60000));
+			} catch (Exception ex) {
+				// never the local JVM in place of the configured one
+				_connection = JMXConnection
+						.unavailable("Invalid JMX service URL " + url + " (" + ex.getMessage() + ")");
+				throw ex;
+			}
+		} else {
+			_connection = JMXConnection.platform();
+		}
+
+		_readTimeout = Math.max(getIntegerSetting(READ_POLICY_TABLE, "readTimeout", 5000), 1);
+		_maxTableRows = Math.max(getIntegerSetting(READ_POLICY_TABLE, "maxTableRows", 1000), 1);
+		_breaker = new AttributeCircuitBreaker(getIntegerSetting(READ_POLICY_TABLE, "failureThreshold", 3),
+				getIntegerSetting(READ_POLICY_TABLE, "minBackoff", 10000),
+				getIntegerSetting(READ_POLICY_TABLE, "maxBackoff", 600000));
+
+		final ConfigurationTable aliases = getConfigurationTable(ALIAS_TABLE);
+		_aliases = new MBeanAliases(aliases != null ? aliases.getRows() : null);
+
+		_collectorStatistics = new CollectorStatistics(CollectorStatistics.SERVER_SCOPE, getName());
+		_collectorStatistics.register();
+
+		// the snapshots of a previous run are outdated
+		ContainerRegistry.resetMetrics(getName());
+		_metricsEnabled = Boolean.TRUE.equals(getConfigurationSetting(METRICS_TABLE, "enabled"));
+		final int metrics_port = getIntegerSetting(METRICS_TABLE, "httpPort", 0);
+		if (_metricsEnabled && metrics_port > 0) {
+			final Object address = getConfigurationSetting(METRICS_TABLE, "bindAddress");
+			try {
+				_metricsEndpoint = new OpenMetricsEndpoint(getName(),
+						address instanceof String && !((String) address).isEmpty() ? (String) address : "127.0.0.1",
+						metrics_port);
+			} catch (Exception ex) {
+				_logger.warn("Error starting the metrics listener of {} on port {} because {}.", getName(),
+						metrics_port, ex.getMessage());
+			}
+		}
+	}
+
+	@Override
+	protected void stopThing(ContextType contextType) throws Exception {
+		StopThreadProfiler();
+		_metricsEnabled = false;
+		if (_metricsEndpoint != null) {
+			_metricsEndpoint.close();
+			_metricsEndpoint = null;
+		}
+		_collectorStatistics.unregister();
+		_connection.close();
+		// the containers still holding this server fail their reads instead of reading the local JVM
+		_connection = JMXConnection.unavailable("JMX server " + getName() + " is stopped");
+		super.stopThing(contextType);
+	}
+
+	private int getIntegerSetting(String table, String field, int defaultValue) throws Exception {
+		final Object value = getConfigurationSetting(table, field);
+		return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+	}
+
+	/**
+	 * Returns the ObjectName an alias (e.g. _C3P0_) currently stands for, or
+	 * null if no MBean matches.
+	 */
+	String resolveAlias(String alias) throws Exception {
+		return _aliases.resolve(_connection, getMBeanServer(), alias);
+	}
+
+	MBeanServerConnection getMBeanServer() throws IOException {
+		return _connection.getConnection();
+	}
+
+	JMXMBeanContainerTemplate getContainerByName(String containerName) throws Exception {
+		Thing thing = ThingUtilities.findThing(containerName);
+		if (thing != null && thing instanceof JMXMBeanContainerTemplate) {
+			return (JMXMBeanContainerTemplate) thing;
+		} else {
+			throw new Exception("MBean Container " + containerName + " not found.");
+		}
+	}
+
+	private static final Map<String, BaseTypes> JAVA_BASE_TYPES = new HashMap<String, BaseTypes>();
+	static {
+		for (String type : new String[] { "double", "float", "java.lang.Double", "java.lang.Float",
+				"java.math.BigDecimal", "java.math.BigInteger", "java.util.concurrent.atomic.DoubleAdder" }) {
+			JAVA_BASE_TYPES.put(type, BaseTypes.NUMBER);
+		}
+		for (String type : new String[] { "long", "java.lang.Long", "java.util.concurrent.atomic.AtomicLong",
+				"java.util.concurrent.atomic.LongAdder" }) {
+			JAVA_BASE_TYPES.put(type, BaseTypes.LONG);
+		}
+		for (String type : new String[] { "int", "short", "byte", "java.lang.Integer", "java.lang.Short",
+				"java.lang.Byte", "java.util.concurrent.atomic.AtomicInteger" }) {
+			JAVA_BASE_TYPES.put(type, BaseTypes.INTEGER);
+		}
+		for (String type : new String[] { "boolean", "java.lang.Boolean" }) {
+			JAVA_BASE_TYPES.put(type, BaseTypes.BOOLEAN);
+		}
+	}
+
+	/**
+	 * Returns the base type of the properties bound to an attribute of the Java
+	 * type: INFOTABLE for TabularData, CompositeData and arrays, STRING for the
+	 * types not listed (including char / Character).
+	 */
+	static BaseTypes JavaTypeToBaseType(String javaType) {
+		final BaseTypes base_type = JAVA_BASE_TYPES.get(javaType);
+		if (base_type != null) {
+			return base_type;
+		}
+		return OpenDataTables.isTableType(javaType) ? BaseTypes.INFOTABLE : BaseTypes.STRING;
+	}
+
+	static String[] splitAttributeName(String name) {
+		final int t = name.lastIndexOf(COMPOSITE_SEP);
+		if (t > 0) {
+			return new String[] { name.substring(0, t), name.substring(t + 1) };
+		}
+		return new String[] { name, null };
+	}
+
+	int pushMBeanAttributes(JMXMBeanContainerTemplate container, List<PropertyDefinition> properties)
+			throws Exception {
+
+		if (container == null || properties == null)
+			return 0;
+
+		final long start = System.nanoTime();
+		try {
+			return pushMBeanAttributes(container, properties, start);
+		} catch (Exception ex) {
+			final long elapsed = System.nanoTime() - start;
+			container.getCollectorStatistics().refreshFailed(elapsed);
+			_collectorStatistics.refreshFailed(elapsed);
+			throw ex;
+		}
+	}
+
+	private int pushMBeanAttributes(JMXMBeanContainerTemplate container, List<PropertyDefinition> properties,
+			long start) throws Exception {
+
+		final MBeanServerConnection mbs = getMBeanServer();
+		final JMXConnection connection = _connection;
+		final MBeanAliases aliases = _aliases;
+		final AttributeCircuitBreaker breaker = _breaker;
+		final int max_table_rows = _maxTableRows;
+		int read_count = 0;
+		int failed_count = 0;
+		int skipped_count = 0;
+
+		final InfoTable vtqs = createNamedVTQ();
+		final DateTime now = DateTime.now();
+		final DatetimePrimitive time = new DatetimePrimitive(now);
+		final ReadPlan plan = container.getReadPlan();
+		final String server_name = getName();
+		// nothing rendered while the metrics are off
+		final Map<String, OpenMetricsSnapshot.Sample[]> metrics = _metricsEnabled
+				? new HashMap<String, OpenMetricsSnapshot.Sample[]>()
+				: null;
+
+		// group the properties by MBean, so each MBean is read only once per refresh
+		final Map<String, GroupRead> groups = new LinkedHashMap<String, GroupRead>();
+		final List<PatternRead> patterns = new ArrayList<PatternRead>();
+		for (PropertyDefinition prop : properties) {
+
+			final ReadPlan.Binding binding = plan.get(prop);
+			if (metrics != null && binding.exported) {
+				// dropped from the metrics unless read below
+				metrics.put(binding.name, OpenMetricsSnapshot.NO_SAMPLES);
+			}
+			String obj_name = binding.mbean;
+			ObjectName oname = binding.objectName;
+
+			if (aliases.isAlias(obj_name)) {
+				obj_name = aliases.resolve(connection, mbs, obj_name);
+				if (obj_name == null) {
+					// no matching MBean (yet), logged by the alias on change
+					skipped_count++;
+					continue;
+				}
+				oname = null;
+			}
+			final String attr_name = binding.attribute;
+
+			if (binding.pattern) {
+				// read the attribute on each matching MBean, along with their other attributes
+				final Set<ObjectName> names;
+				try {
+					names = connection.getObjectNameResolver().resolve(mbs, oname);
+				} catch (Exception ex) {
+					_logger.warn("Error resolving MBean pattern {} for {} because {}.", obj_name,
+							container.getName(), ex.getMessage());
+					continue;
+				}
+				final PatternRead pattern = new PatternRead(binding);
+				for (ObjectName name : names) {
+					final String match = name.toString();
+					final GroupRead group = groups.computeIfAbsent(match, k -> new GroupRead(k, name));
+					if (group.acquire(breaker, attr_name, now.getMillis())) {
+						pattern.names.add(match);
+					} else {
+						skipped_count++;
+					}
+				}
+				patterns.add(pattern);
+				continue;
+			}
+			if (oname == null && ObjectNameResolver.isPattern(obj_name)) {
+				_logger.warn("Error reading MBean alias {} for {} because it resolved to a pattern ({}).",
+						binding.mbean, container.getName(), obj_name);
+				continue;
+			}
+
+			final ObjectName group_name = oname;
+			final GroupRead group = groups.computeIfAbsent(obj_name, k -> new GroupRead(k, group_name));
+			if (group.acquire(breaker, attr_name, now.getMillis())) {
+				group.bindings.add(binding);
+			} else {
+				skipped_count++;
+			}
+		}
+
+		// one timeout layer per read: the timeout proxy of a remote connection, on which the
+		// MBeans are read inline, or the read timeout on the io pool for the platform MBeanServer
+		final long deadline = System.currentTimeMillis() + _readTimeout;
+		final boolean remote = connection.isRemote();
+		if (!remote) {
+			for (GroupRead group : groups.values()) {
+				if (group.isEmpty()) {
+					continue;
+				}
+				// a getter blocked past its timeout keeps its thread, bound them per server
+				group.pending = _blockedReads.submit(() -> group.read(mbs));
+			}
+		}
+
+		for (GroupRead group : groups.values()) {
+
+			if (group.isEmpty()) {
+				continue;
+			}
+			final String obj_name = group.objectName;
+			if (remote) {
+				if (System.currentTimeMillis() >= deadline) {
+					// out of the time budget of the refresh, read on the next one
+					skipped_count += group.getAttributeNames().size();
+					continue;
+				}
+				group.read(mbs);
+			} else if (group.pending == null) {
+				// too many reads still blocked in their getters
+				skipped_count += group.getAttributeNames().size();
+				continue;
+			} else {
+				// errors are recorded per attribute, timeouts are the attributes left unread
+				group.pending.await(deadline);
+			}
+			group.result = group.getValues();
+			for (String attr_name : group.getAttributeNames()) {
+				if (group.result.containsKey(attr_name)) {
+					read_count++;
+					breaker.recordSuccess(obj_name, attr_name);
+				} else {
+					failed_count++;
+					final String error = group.errors.get(attr_name);
+					breaker.recordFailure(obj_name, attr_name,
+							error != null ? error : "read timeout (" + _readTimeout + " ms)", now.getMillis());
+				}
+			}
+
+			for (ReadPlan.Binding binding : group.bindings) {
+				if (!group.result.containsKey(binding.attribute)) {
+					// failure reported by the circuit breaker
+					continue;
+				}
+				try {
+					Object attr_value = binding.getValue(group.result);
+					if (metrics != null && binding.exported) {
+						final OpenMetricsSnapshot.Series series = OpenMetricsSnapshot.getSeries(binding, server_name,
+								container.getName(), obj_name, group.oname);
+						final OpenMetricsSnapshot.Sample sample = series != null
+								? OpenMetricsSnapshot.sample(series, attr_value, now.getMillis())
+								: null;
+						if (sample != null) {
+							metrics.put(binding.name, new OpenMetricsSnapshot.Sample[] { sample });
+						}
+					}
+					if (binding.table && OpenDataTables.isTable(attr_value)) {
+						attr_value = OpenDataTables.toInfoTable(attr_value, max_table_rows);
+					}
+					addValue(vtqs, container, binding, attr_value, now.getMillis(), time);
+				} catch (Exception ex) {
+					_logger.warn("Error pushing MBean attribute {} / {} onto {} because {}.", obj_name,
+							binding.name, container.getName(), ex.getMessage());
+				}
+			}
+		}
+
+		for (PatternRead pattern : patterns) {
+			final ReadPlan.Binding binding = pattern.binding;
+			try {
+				final List<String> names = new ArrayList<String>();
+				final List<Object> attr_values = new ArrayList<Object>();
+				final List<OpenMetricsSnapshot.Sample> samples = new ArrayList<OpenMetricsSnapshot.Sample>();
+				final boolean exported = metrics != null && binding.exported;
+				for (String name : pattern.names) {
+					final GroupRead group = groups.get(name);
+					final Map<String, Object> result = group.result;
+					if (result != null && result.containsKey(binding.attribute)) {
+						final Object attr_value = binding.getValue(result);
+						names.add(name);
+						attr_values.add(attr_value);
+						if (exported) {
+							final OpenMetricsSnapshot.Series series = OpenMetricsSnapshot.getSeries(binding,
+									server_name, container.getName(), name, group.oname);
+							final OpenMetricsSnapshot.Sample sample = series != null
+									? OpenMetricsSnapshot.sample(series, attr_value, now.getMillis())
+									: null;
+							if (sample != null) {
+								samples.add(sample);
+							}
+						}
+					}
+				}
+				if (!samples.isEmpty()) {
+					metrics.put(binding.name, samples.toArray(OpenMetricsSnapshot.NO_SAMPLES));
+				}
+				final Object attr_value = BaseTypes.INFOTABLE.equals(binding.property.getBaseType())
+						? PatternValues.toInfoTable(names, attr_values)
+						: PatternValues.aggregate(binding.category, attr_values);
+				if (attr_value != null) {
+					addValue(vtqs, container, binding, attr_value, now.getMillis(), time);
+				}
+			} catch (Exception ex) {
+				_logger.warn("Error pushing MBean pattern {} / {} onto {} because {}.", binding.mbean,
+						binding.name, container.getName(), ex.getMessage());
+			}
+		}
+
+		final long update_start = System.nanoTime();
+		container.UpdatePropertyValues(vtqs);
+		if (metrics != null) {
+			container.updateMetrics(metrics);
+		}
+		final long end = System.nanoTime();
+
+		final CollectorStatistics container_stats = container.getCollectorStatistics();
+		container_stats.updated(end - update_start);
+		container_stats.refreshed(end - start, read_count, failed_count, skipped_count, vtqs.getRowCount());
+		_collectorStatistics.updated(end - update_start);
+		_collectorStatistics.refreshed(end - start, read_count, failed_count, skipped_count, vtqs.getRowCount());
+		return vtqs.getRowCount();
+	}
+
+	/**
+	 * Converts the value read for the property and adds it to the pushed values,
+	 * unless filtered out by the deadbands (or first sample of a counter).
+	 */
+	private static void addValue(InfoTable vtqs, JMXMBeanContainerTemplate container, ReadPlan.Binding binding,
+			Object attr_value, long now, DatetimePrimitive time) throws Exception {
+
+		final String name = binding.name;
+		if (binding.counter) {
+			if (!(attr_value instanceof Number)) {
+				throw new Exception("not a numeric counter");
+			}
+			attr_value = container.getCounters().update(name, binding.rate, ((Number) attr_value).doubleValue(),
+					now);
+			if (attr_value == null) {
+				// first sample of the counter
+				return;
+			}
+		}
+
+		final IPrimitiveType value = binding.converter.convert(attr_value);
+		final RollingStatistics statistics = container.getStatistics();
+		if (statistics.isEnabled() && attr_value instanceof Number) {
+			statistics.add(name, now, ((Number) attr_value).doubleValue());
+		}
+		if (!container.getDeadbands().acceptUpdate(name, value != null ? value.getValue() : null, now)) {
+			return;
+		}
+
+		// the name and time primitives are immutable, shared by the rows
+		final ValueCollection values = new ValueCollection();
+		values.put("name", binding.namePrimitive);
+		values.put("time", time);
+		values.put("value", value);
+		vtqs.addRow(values);
+	}
+
+	/**
+	 * Creates the table of values pushed by UpdatePropertyValues, the benchmarks
+	 * override it to run outside of the platform.
+	 */
+	InfoTable createNamedVTQ() throws Exception {
+		return InfoTableInstanceFactory.createInfoTableFromDataShape("NamedVTQ");
+	}
+
+	CollectorStatistics getCollectorStatistics() {
+		return _collectorStatistics;
+	}
+
+	@ThingworxServiceDefinition(name = "QueryMBeans", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.MBeanInfoDataShape" })
+	public InfoTable QueryMBeans(
+			@ThingworxServiceParameter(name = "filter", description = "", baseType = "STRING", aspects = {
+					"isRequired:false" }) String filter,
+			@ThingworxServiceParameter(name = "offset", description = "", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer offset,
+			@ThingworxServiceParameter(name = "limit", description = "Maximum number of rows (capped by maxResultRows), 0 for the cap", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer limit,
+			@ThingworxServiceParameter(name = "sortBy", description = "objectName, className or description", baseType = "STRING", aspects = {
+					"defaultValue:objectName" }) String sortBy,
+			@ThingworxServiceParameter(name = "descending", description = "", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean descending)
+			throws Exception {
+		final MBeanServerConnection mbs = getMBeanServer();
+		final InfoTable it = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanInfoDataShape");
+
+		final MBeanInfoCache infos = _connection.getMBeanInfoCache();
+		final Set<ObjectName> onames = mbs.queryNames(filter == null || filter.isEmpty() ? null : new ObjectName(filter), null);
+
+		List<ValueCollection> rows = new ArrayList<ValueCollection>();
+		final boolean sort_by_name = sortBy == null || sortBy.isEmpty() || "objectName".equals(sortBy);
+		if (sort_by_name) {
+			// only the MBeanInfo of the returned page is needed
+			final List<ObjectName> names = new ArrayList<ObjectName>(onames);
+			names.sort(Comparator.comparing(ObjectName::toString));
+			if (descending != null && descending) {
+				Collections.reverse(names);
+			}
+			for (ObjectName oname : page(names, offset, limit)) {
+				addMBeanInfoRow(rows, mbs, infos, oname);
+			}
+		} else {
+			for (ObjectName oname : onames) {
+				addMBeanInfoRow(rows, mbs, infos, oname);
+			}
+			sortRows(rows, sortBy, descending);
+			rows = page(rows, offset, limit);
+		}
+
+		for (ValueCollection values : rows) {
+			it.addRow(values);
+		}
+		return it;
+	}
+
+	private static void addMBeanInfoRow(List<ValueCollection> rows, MBeanServerConnection mbs, MBeanInfoCache infos,
+			ObjectName oname) throws Exception {
+		final MBeanInfo bean_info;
+		try {
+			bean_info = infos.getMBeanInfo(mbs, oname);
+		} catch (InstanceNotFoundException ex) {
+			// unregistered meanwhile
+			return;
+		}
+		final ValueCollection values = new ValueCollection();
+		values.put("objectName", new StringPrimitive(oname.toString()));
+		values.put("className", new StringPrimitive(bean_info.getClassName()));
+		values.put("description", new StringPrimitive(bean_info.getDescription()));
+		rows.add(values);
+	}
+
+	private int getMaxResultRows() throws Exception {
+		return Math.max(getIntegerSetting(BROWSING_TABLE, "maxResultRows", 5000), 1);
+	}
+
+	/**
+	 * Returns the [offset, offset + limit) slice of the list, limit being capped
+	 * by the maxResultRows setting.
+	 */
+	private <T> List<T> page(List<T> list, Integer offset, Integer limit) throws Exception {
+		final int max_rows = getMaxResultRows();
+		final int count = limit == null || limit <= 0 ? max_rows : Math.min(limit, max_rows);
+		final int from = Math.min(offset == null ? 0 : Math.max(offset, 0), list.size());
+		return list.subList(from, Math.min(from + count, list.size()));
+	}
+
+	private static void sortRows(List<ValueCollection> rows, String field, Boolean descending) {
+		Comparator<ValueCollection> comparator = Comparator.comparing(v -> v.getStringValue(field),
+				Comparator.nullsFirst(Comparator.naturalOrder()));
+		if (descending != null && descending) {
+			comparator = comparator.reversed();
+		}
+		rows.sort(comparator);
+	}
+
+	@ThingworxServiceDefinition(name = "QueryMBeansTree", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.MBeanTreeDataShape" })
+	public InfoTable QueryMBeansTree(
+			@ThingworxServiceParameter(name = "filter", description = "", baseType = "STRING", aspects = {
+					"isRequired:false" }) String filter)
+			throws Exception {
+		final MBeanServerConnection mbs = getMBeanServer();
+		if (filter == null || filter.isEmpty()) {
+			return getMBeanTree(mbs).toInfoTable();
+		}
+		final Set<ObjectName> onames = mbs.queryNames(new ObjectName(filter), null);
+		final MBeanTreeBuilder tb = new MBeanTreeBuilder();
+		tb.addMBeans(onames);
+		return tb.toInfoTable();
+	}
+
+	@ThingworxServiceDefinition(name = "QueryMBeansTreeChildren", description = "Direct children of a node of the MBean tree (the domains for parentId 0)", category = "Jmx:mashup", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.MBeanTreeDataShape" })
+	public InfoTable QueryMBeansTreeChildren(
+			@ThingworxServiceParameter(name = "parentId", description = "", baseType = "STRING", aspects = {
+					"isRequired:false", "defaultValue:" + MBeanTreeBuilder.ROOT_ID }) String parentId)
+			throws Exception {
+		return getMBeanTree(getMBeanServer()).childrenToInfoTable(parentId);
+	}
+
+	private MBeanTreeBuilder getMBeanTree(MBeanServerConnection mbs) throws Exception {
+		final JMXConnection connection = _connection;
+		// registers the tree, which starts tracking the registrations if needed
+		final MBeanTreeBuilder tree = connection.getMBeanTree();
+		if (!connection.isTrackingRegistrations()) {
+			// not notified of the changes, cannot keep the tree between calls
+			final MBeanTreeBuilder tb = new MBeanTreeBuilder();
+			tb.ensureLoaded(mbs);
+			return tb;
+		}
+		tree.ensureLoaded(mbs);
+		return tree;
+	}
+
+	@ThingworxServiceDefinition(name = "GetMBeanAttributesInfo", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.MBeanAttributeInfoDataShape" })
+	public InfoTable GetMBeanAttributesInfo(
+			@ThingworxServiceParameter(name = "mbeanName", description = "", baseType = "STRING", aspects = {
+					"isRequired:true" }) String mbeanName,
+			@ThingworxServiceParameter(name = "notWritableOnly", description = "", baseType = "BOOLEAN", aspects = {
+					"isRequired:true", "defaultValue:true" }) Boolean notWritableOnly,
+			@ThingworxServiceParameter(name = "showPreview", description = "", baseType = "BOOLEAN", aspects = {
+					"isRequired:true", "defaultValue:false" }) Boolean showPreview,
+			@ThingworxServiceParameter(name = "offset", description = "", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer offset,
+			@ThingworxServiceParameter(name = "limit", description = "Maximum number of rows (capped by maxResultRows), 0 for the cap", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer limit,
+			@ThingworxServiceParameter(name = "sortBy", description = "name or type, declaration order if empty", baseType = "STRING", aspects = {
+					"isRequired:false" }) String sortBy,
+			@ThingworxServiceParameter(name = "descending", description = "", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean descending)
+			throws Exception {
+
+		final InfoTable it = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanAttributeInfoDataShape");
+
+		if (mbeanName == null || mbeanName.isEmpty())
+			return it;
+
+		final long deadline = System.currentTimeMillis() + getIntegerSetting(BROWSING_TABLE, "previewTimeout", 2000);
+		final MBeanServerConnection mbs = getMBeanServer();
+		ObjectName oname = new ObjectName(mbeanName);
+		final MBeanAttributeInfo attrs[] = _connection.getMBeanInfoCache().getMBeanInfo(mbs, oname).getAttributes();
+
+		// the keys of the composites are taken from their open type when the MBean publishes it,
+		// the other composites must be read (once) to list their keys
+		final List<String> unknown_composites = new ArrayList<String>();
+		for (MBeanAttributeInfo attr_info : attrs) {
+			if ((!notWritableOnly || !attr_info.isWritable()) && COMPOSITE_TYPE.equals(attr_info.getType())
+					&& getCompositeType(attr_info) == null) {
+				unknown_composites.add(attr_info.getName());
+			}
+		}
+		final AttributePreview composites = AttributePreview.read(_blockedReads, mbs, oname, unknown_composites,
+				deadline);
+
+		final List<ValueCollection> rows = new ArrayList<ValueCollection>();
+		for (MBeanAttributeInfo attr_info : attrs) {
+			final boolean is_writable = attr_info.isWritable();
+			if (notWritableOnly && is_writable) {
+				continue;
+			}
+
+			CompositeType ct = null;
+			final String type = attr_info.getType();
+			if (COMPOSITE_TYPE.equals(type)) {
+				ct = getCompositeType(attr_info);
+				if (ct == null && composites.getValue(attr_info.getName()) instanceof CompositeData) {
+					ct = ((CompositeData) composites.getValue(attr_info.getName())).getCompositeType();
+				}
+			}
+
+			if (ct != null) {
+				Set<String> keys = ct.keySet();
+				for (String key : keys) {
+					final ValueCollection values = new ValueCollection();
+					values.put("name", new StringPrimitive(attr_info.getName() + COMPOSITE_SEP + key));
+					values.put("type", new StringPrimitive(ct.getType(key).getClassName()));
+					values.put("description", new StringPrimitive(ct.getDescription()));
+					values.put("isWritable", new BooleanPrimitive(is_writable));
+					values.put("objectName", new StringPrimitive(mbeanName));
+					rows.add(values);
+				}
+			} else {
+				final ValueCollection values = new ValueCollection();
+				values.put("name", new StringPrimitive(attr_info.getName()));
+				values.put("type", new StringPrimitive(attr_info.getType()));
+				values.put("description", new StringPrimitive(attr_info.getDescription()));
+				values.put("isWritable", new BooleanPrimitive(is_writable));
+				values.put("objectName", new StringPrimitive(mbeanName));
+				rows.add(values);
+			}
+		}
+
+		if (sortBy != null && !sortBy.isEmpty()) {
+			sortRows(rows, sortBy, descending);
+		}
+		final List<ValueCollection> page = page(rows, offset, limit);
+
+		if (showPreview) {
+			// one bulk read for the attributes of the page not read yet
+			final Set<String> attr_names = new LinkedHashSet<String>();
+			for (ValueCollection values : page) {
+				final String attr_name = getPreviewAttributeName(values.getStringValue("name"), attrs);
+				if (!composites.isRead(attr_name)) {
+					attr_names.add(attr_name);
+				}
+			}
+			final AttributePreview preview = AttributePreview.read(_blockedReads, mbs, oname, attr_names, deadline);
+
+			for (ValueCollection values : page) {
+				final String name = values.getStringValue("name");
+				final String attr_name = getPreviewAttributeName(name, attrs);
+				final AttributePreview source = composites.isRead(attr_name) ? composites : preview;
+				String text = source.getPreview(attr_name);
+				if (!attr_name.equals(name)) {
+					final Object value = source.getValue(attr_name);
+					if (value instanceof CompositeData) {
+						final Object key_value = ((CompositeData) value).get(name.substring(attr_name.length() + 1));
+						text = AttributePreview.toText(key_value);
+					}
+				}
+				if (text != null) {
+					values.put("preview", new StringPrimitive(text));
+				}
+			}
+		}
+
+		for (ValueCollection values : page) {
+			it.addRow(values);
+		}
+		return it;
+	}
+
+	/**
+	 * Returns the attribute behind a row of GetMBeanAttributesInfo (the
+	 * composite attribute for a attr_key row).
+	 */
+	private static String getPreviewAttributeName(String name, MBeanAttributeInfo[] attrs) {
+		for (MBeanAttributeInfo attr_info : attrs) {
+			if (attr_info.getName().equals(name)) {
+				return name;
+			}
+		}
+		return splitAttributeName(name)[0];
+	}
+
+	/**
+	 * Returns the CompositeType of an attribute from the "openType" field of its
+	 * descriptor (set by the MXBeans and the OpenMBeans), or null if unknown.
+	 */
+	static CompositeType getCompositeType(MBeanAttributeInfo attr_info) {
+		if (attr_info instanceof OpenMBeanAttributeInfo
+				&& ((OpenMBeanAttributeInfo) attr_info).getOpenType() instanceof CompositeType) {
+			return (CompositeType) ((OpenMBeanAttributeInfo) attr_info).getOpenType();
+		}
+		final Object open_type = attr_info.getDescriptor() != null
+				? attr_info.getDescriptor().getFieldValue("openType")
+				: null;
+		return open_type instanceof CompositeType ? (CompositeType) open_type : null;
+	}
+
+	@ThingworxServiceDefinition(name = "CreateMBeanContainer", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public void CreateMBeanContainer(
+			@ThingworxServiceParameter(name = "containerName", description = "", baseType = "STRING", aspects = {
+					"isRequired:true" }) String containerName) {
+
+		JMXMBeanContainerTemplate.createMBeanContainer(containerName, this.getName());
+	}
+
+	@ThingworxServiceDefinition(name = "GetMBeanContainers", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "Result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape: JMX.MBeanContainerList" })
+	public InfoTable GetMBeanContainers(
+			@ThingworxServiceParameter(name = "viewLinkURL", description = "", baseType = "STRING", aspects = {
+					"defaultValue:" + THING_URL_TEMPLATE }) String viewLinkURL)
+			throws Exception {
+
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanContainerList");
+
+		for (JMXMBeanContainerTemplate container : JMXMBeanContainerTemplate.listMBeanContainers(this.getName())) {
+			final String name = container.getName();
+			final ValueCollection values = new ValueCollection();
+			values.put("name", new StringPrimitive(name));
+			values.put("description", new StringPrimitive(container.getDescription()));
+			values.put("tags", new TagsPrimitive(container.getTags()));
+			values.put("viewLink", new StringPrimitive(viewLinkURL.replace(THINGNAME_MACRO, name)));
+			result.addRow(values);
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "RefreshAllContainers", description = "Refresh all the containers of this server in parallel", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.ContainerRefreshStatus" })
+	public InfoTable RefreshAllContainers(
+			@ThingworxServiceParameter(name = "ignoreCache", description = "", baseType = "BOOLEAN", aspects = {
+					"isRequired:true", "defaultValue:false" }) Boolean ignoreCache,
+			@ThingworxServiceParameter(name = "maxConcurrency", description = "Maximum number of containers refreshed at the same time", baseType = "INTEGER", aspects = {
+					"defaultValue:8" }) Integer maxConcurrency,
+			@ThingworxServiceParameter(name = "timeout", description = "Deadline of the whole refresh (ms), containers not started by then are skipped", baseType = "INTEGER", aspects = {
+					"defaultValue:5000" }) Integer timeout)
+			throws Exception {
+
+		final long deadline = System.currentTimeMillis() + (timeout == null ? 5000 : timeout);
+		final Semaphore permits = new Semaphore(maxConcurrency == null || maxConcurrency < 1 ? 8 : maxConcurrency);
+		final boolean ignore_cache = ignoreCache != null && ignoreCache;
+
+		final List<ContainerRefresh> refreshes = new ArrayList<ContainerRefresh>();
+
+		for (JMXMBeanContainerTemplate container : JMXMBeanContainerTemplate.listMBeanContainers(this.getName())) {
+			final ContainerRefresh refresh = new ContainerRefresh(container.getName());
+			refreshes.add(refresh);
+
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0 || !permits.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+				refresh.status = "skipped";
+				continue;
+			}
+
+			// a container still busy with the previous tick is skipped rather than queued
+			if (!container.tryBeginRefresh()) {
+				permits.release();
+				refresh.status = "busy";
+				continue;
+			}
+
+			refresh.future = JMXExecutors.refresh().submit(JMXExecutors.withCallerContext(() -> {
+				refresh.start = System.currentTimeMillis();
+				try {
+					return pushMBeanAttributes(container, container.getMBeanPropertiesDefinitionForUpdate(ignore_cache));
+				} finally {
+					refresh.end = System.currentTimeMillis();
+					container.endRefresh();
+					permits.release();
+				}
+			}));
+		}
+
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.ContainerRefreshStatus");
+		for (ContainerRefresh refresh : refreshes) {
+			if (refresh.future != null) {
+				try {
+					refresh.count = refresh.future.get(Math.max(0, deadline - System.currentTimeMillis()),
+							TimeUnit.MILLISECONDS);
+					refresh.status = "ok";
+				} catch (TimeoutException ex) {
+					refresh.status = "timeout";
+				} catch (ExecutionException ex) {
+					refresh.status = "error";
+					refresh.message = ex.getCause().getMessage();
+					_logger.warn("Error refreshing MBean container {} because {}.", refresh.name, refresh.message);
+				}
+			}
+			result.addRow(refresh.toValueCollection());
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "AddMBeanAttributesToContainer", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public void AddMBeanAttributesToContainer(
+			@ThingworxServiceParameter(name = "containerName", description = "", baseType = "THINGNAME", aspects = {
+					"isRequired:true", "thingTemplate:JMX.MBeanContainerTemplate" }) String containerName,
+			@ThingworxServiceParameter(name = "attributes", description = "", baseType = "INFOTABLE", aspects = {
+					"isRequired:true", "isEntityDataShape:true",
+					"dataShape:JMX.MBeanAttributeInfoDataShape" }) InfoTable attributes,
+			@ThingworxServiceParameter(name = "logged", description = "", baseType = "BOOLEAN", aspects = {
+					"isRequired:true", "defaultValue:false" }) Boolean isLogged,
+			@ThingworxServiceParameter(name = "binding", description = JMXMBeanContainerTemplate.BINDING_DESCRIPTION, baseType = "STRING", aspects = {
+					"defaultValue:attr" }) String binding,
+			@ThingworxServiceParameter(name = "mbeanPattern", description = "Optional ObjectName pattern (e.g. java.lang:type=GarbageCollector,*) to bind instead of the attribute MBeans: one row per MBean (attr binding) or an aggregate", baseType = "STRING", aspects = {
+					"isRequired:false" }) String mbeanPattern)
+			throws Exception {
+
+		JMXMBeanContainerTemplate container = getContainerByName(containerName);
+		final String category = JMXMBeanContainerTemplate.getBindingCategory(binding);
+		final boolean is_counter = JMXMBeanContainerTemplate.RATE_CATEGORY.equals(category)
+				|| JMXMBeanContainerTemplate.DELTA_CATEGORY.equals(category)
+				|| JMXMBeanContainerTemplate.isAggregateCategory(category);
+		final boolean is_pattern = mbeanPattern != null && !mbeanPattern.isEmpty();
+
+		final InfoTable properties = InfoTableInstanceFactory
+				.createInfoTableFromDataShape("PropertyDefinitionWithDetails");
+
+		for (ValueCollection attr : attributes.getRows()) {
+			final String name = attr.getStringValue("name");
+			String mbean = attr.getStringValue("objectName");
+			final String type = attr.getStringValue("type");
+
+			if (is_pattern) {
+				mbean = mbeanPattern;
+			} else {
+				// bind through the alias standing for this very MBean, it may be re-created under another name
+				final String alias = _aliases.findAlias(_connection, getMBeanServer(), new ObjectName(mbean));
+				if (alias != null) {
+					mbean = alias;
+				}
+			}
+
+			final BaseTypes base_type;
+			if (JMXMBeanContainerTemplate.COUNT_CATEGORY.equals(category)) {
+				base_type = BaseTypes.INTEGER;
+			} else if (is_counter) {
+				base_type = BaseTypes.NUMBER;
+			} else if (is_pattern) {
+				base_type = BaseTypes.INFOTABLE;
+			} else {
+				base_type = JavaTypeToBaseType(type);
+			}
+
+			properties.addRow(newPropertyDefinition(JMXMBeanContainerTemplate.getPropertyName(name, category),
+					base_type, mbean, category, isLogged));
+		}
+		container.AddPropertyDefinitions(properties, true);
+	}
+
+	/**
+	 * Returns the PropertyDefinitionWithDetails row of an MBean property.
+	 */
+	static ValueCollection newPropertyDefinition(String name, BaseTypes baseType, String mbean, String category,
+			boolean logged) {
+		final ValueCollection values = new ValueCollection();
+		values.put("name", new StringPrimitive(name));
+		values.put("baseType", new StringPrimitive(baseType.name()));
+		// the tables of the other INFOTABLE properties have a DataShape generated from their open type
+		if (baseType == BaseTypes.INFOTABLE && ObjectNameResolver.isPattern(mbean)) {
+			values.put("dataShape", new StringPrimitive(JMXMBeanContainerTemplate.PATTERN_DATASHAPE));
+		}
+		values.put("description", new StringPrimitive(mbean));
+		values.put("category", new StringPrimitive(category));
+		values.put("isLogged", new BooleanPrimitive(logged));
+		values.put("isReadOnly", new BooleanPrimitive(false));
+		values.put("isPersistent", new BooleanPrimitive(false));
+		values.put("isRemote", new BooleanPrimitive(false));
+		// values.put("remotePropertyName", new StringPrimitive(name));
+		// values.put("timeout", new IntegerPrimitive((Number) 2));
+		return values;
+	}
+
+	/**
+	 * Returns the base type of the property bound to an attribute[_key] of an
+	 * MBean, alias or pattern, as AddMBeanAttributesToContainer would.
+	 */
+	BaseTypes getAttributeBaseType(String mbean, String attributePath, String category) throws Exception {
+		if (JMXMBeanContainerTemplate.COUNT_CATEGORY.equals(category)) {
+			return BaseTypes.INTEGER;
+		}
+		if (JMXMBeanContainerTemplate.isSuffixedCategory(category)) {
+			return BaseTypes.NUMBER;
+		}
+		if (ObjectNameResolver.isPattern(mbean)) {
+			return BaseTypes.INFOTABLE;
+		}
+
+		String obj_name = mbean;
+		if (_aliases.isAlias(mbean)) {
+			obj_name = resolveAlias(mbean);
+			if (obj_name == null) {
+				throw new Exception("MBean alias " + mbean + " does not match any MBean, the type is required");
+			}
+		}
+		final MBeanServerConnection mbs = getMBeanServer();
+		final ObjectName oname = new ObjectName(obj_name);
+		final Map<String, MBeanAttributeInfo> attrs = _connection.getMBeanInfoCache().getAttributes(mbs, oname);
+
+		MBeanAttributeInfo attr_info = attrs.get(attributePath);
+		if (attr_info != null) {
+			return JavaTypeToBaseType(attr_info.getType());
+		}
+		final String[] attr_and_key = splitAttributeName(attributePath);
+		attr_info = attr_and_key[1] != null ? attrs.get(attr_and_key[0]) : null;
+		if (attr_info == null) {
+			throw new Exception("Unknown attribute " + attributePath + " of " + obj_name);
+		}
+		CompositeType ct = getCompositeType(attr_info);
+		if (ct == null) {
+			final Object value = mbs.getAttribute(oname, attr_and_key[0]);
+			if (value instanceof CompositeData) {
+				ct = ((CompositeData) value).getCompositeType();
+			}
+		}
+		if (ct == null || !ct.containsKey(attr_and_key[1])) {
+			throw new Exception("Unknown attribute " + attributePath + " of " + obj_name);
+		}
+		return JavaTypeToBaseType(ct.getType(attr_and_key[1]).getClassName());
+	}
+
+	@ThingworxServiceDefinition(name = "GetMBeanContainerAttributesInfo", description = "", category = "Jmx:mashup", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:PropertyDefinition" })
+	public InfoTable GetMBeanContainerAttributesInfo(
+			@ThingworxServiceParameter(name = "containerName", description = "", baseType = "STRING", aspects = {
+					"isRequired:true" }) String containerName)
+			throws Exception {
+
+		if (containerName == null || containerName.isEmpty())
+			return InfoTableInstanceFactory.createInfoTableFromDataShape("PropertyDefinition");
+
+		JMXMBeanContainerTemplate container = getContainerByName(containerName);
+		return container.GetMBeanPropertyDefinitions();
+	}
+
+	@ThingworxServiceDefinition(name = "GetConnectionStatus", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "Result", description = "", baseType = "STRING", aspects = {})
+	public String GetConnectionStatus() {
+		return _connection.getStatus();
+	}
+
+	@ThingworxServiceDefinition(name = "ResetC3p0Bean", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "Result", description = "", baseType = "STRING", aspects = {})
+	public String ResetC3p0Bean() throws Exception {
+		_logger.trace("Entering Service: ResetC3p0Bean");
+		// kept for compatibility, the aliases are now re-resolved on the MBean registrations
+		_aliases.reset();
+		final String name = resolveAlias(C3P0_MACRO);
+		_logger.trace("Exiting Service: ResetC3p0Bean");
+		return name != null ? name : "";
+	}
+
+	@ThingworxServiceDefinition(name = "GetAttributeCircuitBreakers", description = "MBean attributes that failed since their last successful read", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.AttributeReadStatus" })
+	public InfoTable GetAttributeCircuitBreakers() throws Exception {
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.AttributeReadStatus");
+		for (ValueCollection row : _breaker.getStates()) {
+			result.addRow(row);
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "ResetAttributeCircuitBreakers", description = "Read again all the quarantined MBean attributes on the next refresh", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public void ResetAttributeCircuitBreakers() {
+		_breaker.reset();
+	}
+
+	@ThingworxServiceDefinition(name = "GetCollectorStatistics", description = "Cost of the collection: refreshes, attributes read / failed, update and value stream write times (ms)", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.CollectorStatistics" })
+	public InfoTable GetCollectorStatistics(
+			@ThingworxServiceParameter(name = "includeContainers", description = "Add one row per container of this server", baseType = "BOOLEAN", aspects = {
+					"defaultValue:true" }) Boolean includeContainers)
+			throws Exception {
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.CollectorStatistics");
+		result.addRow(_collectorStatistics.toValueCollection());
+		if (includeContainers == null || includeContainers) {
+			for (JMXMBeanContainerTemplate container : JMXMBeanContainerTemplate
+					.listMBeanContainers(this.getName())) {
+				result.addRow(container.getCollectorStatistics().toValueCollection());
+			}
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "GetOpenMetrics", description = "Latest values of the mbean:attr properties of the containers, in OpenMetrics text format (read from the last refreshes only, empty unless enabled in the OpenMetrics configuration table)", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "STRING", aspects = {})
+	public String GetOpenMetrics() {
+		return OpenMetricsSnapshot.write(_metricsEnabled ? ContainerRegistry.getMetrics(getName())
+				: Collections.<OpenMetricsSnapshot>emptyList());
+	}
+
+	/**
+	 * Attributes of one MBean read during a refresh, in bulk for the healthy ones
+	 * and one by one for the half-open ones.
+	 */
+	private static class GroupRead {
+		private final String objectName;
+		private final ObjectName oname;
+		private final List<ReadPlan.Binding> bindings = new ArrayList<ReadPlan.Binding>();
+		private final Set<String> bulk = new LinkedHashSet<String>();
+		private final Set<String> probes = new LinkedHashSet<String>();
+		private final Map<String, Object> values = Collections.synchronizedMap(new HashMap<String, Object>());
+		private final Map<String, String> errors = new ConcurrentHashMap<String, String>();
+		private BlockedReads.Read pending = null;
+		private Map<String, Object> result = null;
+
+		private GroupRead(String objectName, ObjectName oname) {
+			this.objectName = objectName;
+			this.oname = oname;
+		}
+
+		/**
+		 * Adds the attribute to the read unless quarantined by the circuit breaker.
+		 */
+		private boolean acquire(AttributeCircuitBreaker breaker, String attr_name, long now) {
+			switch (breaker.acquire(objectName, attr_name, now)) {
+			case CLOSED:
+				bulk.add(attr_name);
+				return true;
+			case HALF_OPEN:
+				probes.add(attr_name);
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		private void read(MBeanServerConnection mbs) {
+			final ObjectName oname;
+			try {
+				// parsed here only for the aliases, the others come from the read plan
+				oname = this.oname != null ? this.oname : new ObjectName(objectName);
+			} catch (Exception ex) {
+				for (String name : getAttributeNames()) {
+					errors.put(name, String.valueOf(ex.getMessage()));
+				}
+				return;
+			}
+			if (!bulk.isEmpty()) {
+				try {
+					final AttributeList attrs = mbs.getAttributes(oname, bulk.toArray(new String[bulk.size()]));
+					for (Attribute attr : attrs.asList()) {
+						values.put(attr.getName(), attr.getValue());
+					}
+				} catch (IOException ex) {
+					// timed out or disconnected, reading them one by one would only wait longer
+					for (String name : bulk) {
+						errors.put(name, String.valueOf(ex.getMessage()));
+					}
+				} catch (Exception ex) {
+					// read them one by one below to get the causes
+				}
+			}
+			// getAttributes() silently drops the failing attributes
+			for (String name : getAttributeNames()) {
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				if (!values.containsKey(name) && !errors.containsKey(name)) {
+					try {
+						values.put(name, mbs.getAttribute(oname, name));
+					} catch (Exception ex) {
+						errors.put(name, String.valueOf(ex.getMessage()));
+					}
+				}
+			}
+		}
+
+		private boolean isEmpty() {
+			return bulk.isEmpty() && probes.isEmpty();
+		}
+
+		private Set<String> getAttributeNames() {
+			final Set<String> names = new LinkedHashSet<String>(bulk);
+			names.addAll(probes);
+			return names;
+		}
+
+		/**
+		 * Returns the values read so far (the read may still be running after a
+		 * timeout).
+		 */
+		private Map<String, Object> getValues() {
+			synchronized (values) {
+				return new HashMap<String, Object>(values);
+			}
+		}
+	}
+
+	/**
+	 * Property bound to an ObjectName pattern, with the matching MBeans to read.
+	 */
+	private static class PatternRead {
+		private final ReadPlan.Binding binding;
+		private final List<String> names = new ArrayList<String>();
+
+		private PatternRead(ReadPlan.Binding binding) {
+			this.binding = binding;
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "StartThreadProfiler", description = "Samples the CPU time, contention and stacks of the threads of the JVM (restarted if already running)", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public synchronized void StartThreadProfiler(
+			@ThingworxServiceParameter(name = "interval", description = "Sampling interval (ms)", baseType = "INTEGER", aspects = {
+					"defaultValue:1000" }) Integer interval,
+			@ThingworxServiceParameter(name = "stackDepth", description = "Frames of the stacks sampled on the running threads, 0 for no stacks", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer stackDepth,
+			@ThingworxServiceParameter(name = "window", description = "Longest window (ms) of GetTopThreads", baseType = "INTEGER", aspects = {
+					"defaultValue:300000" }) Integer window,
+			@ThingworxServiceParameter(name = "overheadBudget", description = "Sampling time allowed (% of the interval), stacks and then samples are dropped beyond", baseType = "NUMBER", aspects = {
+					"defaultValue:1" }) Double overheadBudget)
+			throws Exception {
+		StopThreadProfiler();
+		final ThreadProfiler profiler = new ThreadProfiler(getName(), getMBeanServer(), !_connection.isRemote(),
+				interval != null ? interval : 1000, stackDepth != null ? stackDepth : 0,
+				window != null ? window : 300000, overheadBudget != null ? overheadBudget : 1);
+		profiler.start();
+		_threadProfiler = profiler;
+	}
+
+	@ThingworxServiceDefinition(name = "StopThreadProfiler", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING", aspects = {})
+	public synchronized void StopThreadProfiler() {
+		if (_threadProfiler != null) {
+			_threadProfiler.stop();
+			_threadProfiler = null;
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "GetTopThreads", description = "Busiest threads over the last window, from the thread profiler", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.ThreadProfile" })
+	public InfoTable GetTopThreads(
+			@ThingworxServiceParameter(name = "count", description = "", baseType = "INTEGER", aspects = {
+					"defaultValue:10" }) Integer count,
+			@ThingworxServiceParameter(name = "window", description = "Window (ms), 0 for the whole window of the profiler", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer window,
+			@ThingworxServiceParameter(name = "sortBy", description = "cpu, blocked or waited (time)", baseType = "STRING", aspects = {
+					"defaultValue:cpu" }) String sortBy)
+			throws Exception {
+		final ThreadProfiler profiler;
+		synchronized (this) {
+			profiler = _threadProfiler;
+		}
+		if (profiler == null) {
+			throw new Exception("The thread profiler of " + getName() + " is not started.");
+		}
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.ThreadProfile");
+		for (ValueCollection row : profiler.getTopThreads(count != null ? count : 10, window != null ? window : 0,
+				sortBy)) {
+			result.addRow(row);
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "GetThreadProfilerStatus", description = "", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "Result", description = "", baseType = "STRING", aspects = {})
+	public synchronized String GetThreadProfilerStatus() {
+		return _threadProfiler != null ? _threadProfiler.getStatus() : "stopped";
+	}
+
+	@ThingworxServiceDefinition(name = "ResolveMBeanAlias", description = "ObjectName an alias of the Aliases table currently stands for (empty if none)", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "Result", description = "", baseType = "STRING", aspects = {})
+	public String ResolveMBeanAlias(
+			@ThingworxServiceParameter(name = "alias", description = "", baseType = "STRING", aspects = {
+					"isRequired:true", "defaultValue:_C3P0_" }) String alias)
+			throws Exception {
+		if (!_aliases.isAlias(alias)) {
+			throw new Exception("Unknown MBean alias " + alias + ".");
+		}
+		final String name = resolveAlias(alias);
+		return name != null ? name : "";
+	}
+
+	@ThingworxServiceDefinition(name = "ApplyMonitoringProfile", description = "Creates or updates the containers and their bindings from a JSON profile, with one restart per changed container", category = "Jmx", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "result", description = "", baseType = "INFOTABLE", aspects = {
+			"isEntityDataShape:true", "dataShape:JMX.ProfileChange" })
+	public InfoTable ApplyMonitoringProfile(
+			@ThingworxServiceParameter(name = "profile", description = "", baseType = "JSON", aspects = {
+					"isRequired:true" }) JSONObject profile,
+			@ThingworxServiceParameter(name = "prune", description = "Remove the MBean properties not in the profile", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean prune,
+			@ThingworxServiceParameter(name = "dryRun", description = "Only report the changes", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean dryRun)
+			throws Exception {
+		return MonitoringProfile.parse(profile.toString()).apply(this, Boolean.TRUE.equals(prune),
+				Boolean.TRUE.equals(dryRun));
+	}
+
+	private static class ContainerRefresh {
+		private final String name;
+		private String status = null;
+		private String message = null;
+		private int count = 0;
+		private volatile long start = 0;
+		private volatile long end = 0;
+		private Future<Integer> future = null;
+
+		private ContainerRefresh(String name) {
+			this.name = name;
+		}
+
+		private ValueCollection toValueCollection() {
+			final long duration = start == 0 ? 0 : (end == 0 ? System.currentTimeMillis() : end) - start;
+			final ValueCollection values = new ValueCollection();
+			values.put("name", new StringPrimitive(name));
+			values.put("status", new StringPrimitive(status));
+			values.put("duration", new LongPrimitive(duration));
+			values.put("count", new IntegerPrimitive(count));
+			if (message != null) {
+				values.put("message", new StringPrimitive(message));
+			}
+			return values;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.metadata.annotations.ThingworxBaseTemplateDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinitions;
+import com.thingworx.metadata.annotations.ThingworxDataShapeDefinition;
+import com.thingworx.metadata.annotations.ThingworxFieldDefinition;
+import com.thingworx.metadata.annotations.ThingworxPropertyDefinition;
+import com.thingworx.metadata.annotations.ThingworxPropertyDefinitions;
+import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
+import com.thingworx.metadata.annotations.ThingworxServiceResult;
+import com.thingworx.system.ContextType;
+import com.thingworx.things.Thing;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.DatetimePrimitive;
+
+@ThingworxPropertyDefinitions(properties = {
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.GC_PAUSE_COUNT, description = "GC pauses during the last window", category = "jfr:gc", baseType = "LONG", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.GC_PAUSE_TIME, description = "Total GC pause time (ms) during the last window", category = "jfr:gc", baseType = "NUMBER", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.GC_PAUSE_MAX, description = "Longest GC pause (ms) during the last window", category = "jfr:gc", baseType = "NUMBER", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.GC_PAUSE_HISTOGRAM, description = "GC pauses of the last window by duration", category = "jfr:gc", baseType = "INFOTABLE", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true", "dataShape:" + JfrEventContainerTemplate.HISTOGRAM_DATASHAPE }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.SAFEPOINT_COUNT, description = "Safepoints during the last window", category = "jfr:safepoint", baseType = "LONG", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.SAFEPOINT_TIME, description = "Total safepoint time (ms) during the last window", category = "jfr:safepoint", baseType = "NUMBER", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.SAFEPOINT_MAX, description = "Longest safepoint (ms) during the last window", category = "jfr:safepoint", baseType = "NUMBER", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.ALLOCATION_RATE, description = "Estimated allocation rate (bytes/s) during the last window", category = "jfr:allocation", baseType = "NUMBER", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.CONTENTION_COUNT, description = "Contended monitor enters (over the threshold) during the last window", category = "jfr:monitor", baseType = "LONG", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.CONTENTION_TIME, description = "Total time (ms) blocked on contended monitors during the last window", category = "jfr:monitor", baseType = "NUMBER", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true" }),
+		@ThingworxPropertyDefinition(name = JfrEventContainerTemplate.CONTENTION_TOP, description = "Most contended monitor classes of the last window", category = "jfr:monitor", baseType = "INFOTABLE", isLocalOnly = false, aspects = {
+				"isPersistent:false", "isReadOnly:true", "dataShape:" + JfrEventContainerTemplate.MONITOR_DATASHAPE }) })
+
+@ThingworxConfigurationTableDefinitions(tables = {
+		@ThingworxConfigurationTableDefinition(name = JfrEventContainerTemplate.RECORDING_TABLE, description = "Flight Recorder events aggregated by the container", isMultiRow = false, ordinal = 0, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "window", description = "Aggregation window (ms), the properties are pushed at the end of each window", baseType = "INTEGER", ordinal = 0, aspects = {
+						"defaultValue:10000" }),
+				@ThingworxFieldDefinition(name = "gcPauses", description = "GC pauses (jdk.GCPhasePause)", baseType = "BOOLEAN", ordinal = 1, aspects = {
+						"defaultValue:true" }),
+				@ThingworxFieldDefinition(name = "safepoints", description = "Safepoints (jdk.SafepointBegin)", baseType = "BOOLEAN", ordinal = 2, aspects = {
+						"defaultValue:false" }),
+				@ThingworxFieldDefinition(name = "monitorContention", description = "Contended monitor enters (jdk.JavaMonitorEnter)", baseType = "BOOLEAN", ordinal = 3, aspects = {
+						"defaultValue:true" }),
+				@ThingworxFieldDefinition(name = "monitorThreshold", description = "Minimum duration (ms) of the monitor contentions recorded", baseType = "INTEGER", ordinal = 4, aspects = {
+						"defaultValue:10" }),
+				@ThingworxFieldDefinition(name = "topMonitors", description = "Number of monitor classes in monitorContentionTop", baseType = "INTEGER", ordinal = 5, aspects = {
+						"defaultValue:10" }),
+				@ThingworxFieldDefinition(name = "allocations", description = "Allocation samples (jdk.ObjectAllocationSample, Java 16+)", baseType = "BOOLEAN", ordinal = 6, aspects = {
+						"defaultValue:true" }) })) })
+
+/**
+ * Container of aggregates of the JDK Flight Recorder events of the platform
+ * JVM, streamed in-process (Java 14+) and pushed at the end of each window.
+ */
+@ThingworxBaseTemplateDefinition(name = "GenericThing")
+public class JfrEventContainerTemplate extends Thing {
+
+	static final String TEMPLATE_NAME = "JMX.JfrEventContainerTemplate";
+	static final String RECORDING_TABLE = "Recording";
+	static final String HISTOGRAM_DATASHAPE = "JMX.JfrPauseHistogram";
+	static final String MONITOR_DATASHAPE = "JMX.JfrMonitorContention";
+
+	static final String GC_PAUSE_COUNT = "gcPauseCount";
+	static final String GC_PAUSE_TIME = "gcPauseTime";
+	static final String GC_PAUSE_MAX = "gcPauseMax";
+	static final String GC_PAUSE_HISTOGRAM = "gcPauseHistogram";
+	static final String SAFEPOINT_COUNT = "safepointCount";
+	static final String SAFEPOINT_TIME = "safepointTime";
+	static final String SAFEPOINT_MAX = "safepointMax";
+	static final String ALLOCATION_RATE = "allocationRate";
+	static final String CONTENTION_COUNT = "monitorContentionCount";
+	static final String CONTENTION_TIME = "monitorContentionTime";
+	static final String CONTENTION_TOP = "monitorContentionTop";
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(JfrEventContainerTemplate.class);
+
+	private final AtomicReference<JfrWindow> _window = new AtomicReference<JfrWindow>(new JfrWindow(0));
+	private volatile AutoCloseable _stream = null;
+	private SamplingScheduler.Sampling _push = null;
+	private int _topMonitors = 10;
+	private volatile String _status = "stopped";
+
+	public JfrEventContainerTemplate() {
+	}
+
+	/**
+	 * True when the JVM can stream its Flight Recorder events (Java 14+, JFR
+	 * not disabled).
+	 */
+	static boolean isSupported() {
+		try {
+			Class.forName("jdk.jfr.consumer.RecordingStream");
+			return JfrEventStream.isAvailable();
+		} catch (ClassNotFoundException | LinkageError ex) {
+			return false;
+		}
+	}
+
+	@Override
+	protected void startThing(ContextType contextType) throws Exception {
+		super.startThing(contextType);
+
+		if (!isSupported()) {
+			_status = "Flight Recorder streaming not available (needs Java 14+)";
+			_logger.warn("Error starting the JFR container {} because the Flight Recorder streaming is not available (needs Java 14+).",
+					getName());
+			return;
+		}
+
+		final long window = Math.max(getIntegerSetting("window", 10000), 1000);
+		final long monitor_threshold = getBooleanSetting("monitorContention", true)
+				? Math.max(getIntegerSetting("monitorThreshold", 10), 0)
+				: -1;
+		_topMonitors = Math.max(getIntegerSetting("topMonitors", 10), 0);
+
+		_window.set(new JfrWindow(System.currentTimeMillis()));
+		try {
+			_stream = new JfrEventStream(_window, getBooleanSetting("gcPauses", true),
+					getBooleanSetting("safepoints", false), monitor_threshold, getBooleanSetting("allocations", true));
+		} catch (Exception ex) {
+			_status = "error: " + ex.getMessage();
+			_logger.warn("Error starting the Flight Recorder stream of {} because {}.", getName(), ex.getMessage());
+			return;
+		}
+		_push = SamplingScheduler.schedule(getName(), window, this::pushWindow);
+		_status = "streaming, window " + window + " ms";
+	}
+
+	@Override
+	protected void stopThing(ContextType contextType) throws Exception {
+		if (_push != null) {
+			_push.cancel();
+			_push = null;
+		}
+		if (_stream != null) {
+			_stream.close();
+			_stream = null;
+		}
+		_status = "stopped";
+		super.stopThing(contextType);
+	}
+
+	private int getIntegerSetting(String field, int defaultValue) throws Exception {
+		final Object value = getConfigurationSetting(RECORDING_TABLE, field);
+		return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+	}
+
+	private boolean getBooleanSetting(String field, boolean defaultValue) throws Exception {
+		final Object value = getConfigurationSetting(RECORDING_TABLE, field);
+		return value instanceof Boolean ? (Boolean) value : defaultValue;
+	}
+
+	/**
+	 * Starts a new window and pushes the aggregates of the ended one in a single
+	 * UpdatePropertyValues.
+	 */
+	private void pushWindow() {
+		final long now = System.currentTimeMillis();
+		final JfrWindow ended = _window.getAndSet(new JfrWindow(now));
+		try {
+			final List<ValueCollection> rows = new ArrayList<ValueCollection>();
+			ended.addValues(rows, now, _topMonitors);
+
+			final InfoTable vtqs = InfoTableInstanceFactory.createInfoTableFromDataShape("NamedVTQ");
+			final DatetimePrimitive time = new DatetimePrimitive(new DateTime(now));
+			for (ValueCollection row : rows) {
+				row.put("time", time);
+				vtqs.addRow(row);
+			}
+			UpdatePropertyValues(vtqs);
+			_status = "streaming, " + ended.getEvents() + " events in the last window";
+		} catch (Exception ex) {
+			_logger.warn("Error pushing the Flight Recorder window of {} because {}.", getName(), ex.getMessage());
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "GetRecordingStatus", description = "", category = "Jfr", isAllowOverride = false, aspects = {
+			"isAsync:false" })
+	@ThingworxServiceResult(name = "Result", description = "", baseType = "STRING", aspects = {})
+	public String GetRecordingStatus() {
+		return _status;
+	}
+}
@@ -0,0 +1,68 @@
+package ext.sma.jmx;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Flight Recorder stream of the platform JVM feeding the current window of a
+ * container.
+ * <p>
+ * The only class using jdk.jfr.consumer.RecordingStream (Java 14+): it is
+ * only loaded once JfrEventContainerTemplate.isSupported() said so.
+ */
+class JfrEventStream implements AutoCloseable {
+
+	private final RecordingStream _stream = new RecordingStream();
+
+	/**
+	 * False when the JVM was started with the Flight Recorder disabled.
+	 */
+	static boolean isAvailable() {
+		return FlightRecorder.isAvailable();
+	}
+
+	/**
+	 * @param monitorThreshold
+	 *            minimum duration (ms) of the reported monitor contentions, < 0
+	 *            to disable them
+	 */
+	JfrEventStream(AtomicReference<JfrWindow> window, boolean gcPauses, boolean safepoints, long monitorThreshold,
+			boolean allocations) {
+
+		if (gcPauses) {
+			_stream.enable("jdk.GCPhasePause");
+			_stream.onEvent("jdk.GCPhasePause", event -> window.get().gcPause(event.getDuration().toNanos()));
+		}
+		if (safepoints) {
+			_stream.enable("jdk.SafepointBegin");
+			_stream.onEvent("jdk.SafepointBegin", event -> window.get().safepoint(event.getDuration().toNanos()));
+		}
+		if (monitorThreshold >= 0) {
+			_stream.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(monitorThreshold))
+					.withoutStackTrace();
+			_stream.onEvent("jdk.JavaMonitorEnter", event -> {
+				final RecordedClass monitor_class = event.getClass("monitorClass");
+				window.get().monitorContention(monitor_class != null ? monitor_class.getName() : null,
+						event.getDuration().toNanos());
+			});
+		}
+		if (allocations) {
+			// throttled samples (Java 16+), their weight estimates the bytes allocated since the previous one
+			_stream.enable("jdk.ObjectAllocationSample").with("throttle", "100/s").withoutStackTrace();
+			_stream.onEvent("jdk.ObjectAllocationSample", event -> window.get().allocation(event.getLong("weight")));
+		}
+
+		// the events are consumed as they come, do not keep them on disk
+		_stream.setMaxAge(Duration.ofSeconds(30));
+		_stream.startAsync();
+	}
+
+	@Override
+	public void close() {
+		_stream.close();
+	}
+}
@@ -0,0 +1,168 @@
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.InfoTablePrimitive;
+import com.thingworx.types.primitives.LongPrimitive;
+import com.thingworx.types.primitives.NumberPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Aggregates of the Flight Recorder events received during a window (GC
+ * pauses, safepoints, allocations, contended monitors), swapped by the
+ * container at the end of each window.
+ */
+class JfrWindow {
+
+	// upper bounds (ms) of the pause histogram buckets, plus one bucket beyond
+	static final long[] PAUSE_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+	// distinct monitor classes tracked per window, the others are merged
+	private static final int MAX_MONITOR_CLASSES = 1000;
+	private static final String OTHER_MONITORS = "(other)";
+
+	private final long _start;
+	private long _events = 0;
+
+	private long _pauseCount = 0;
+	private long _pauseTotal = 0;
+	private long _pauseMax = 0;
+	private final long[] _pauseHistogram = new long[PAUSE_BOUNDS.length + 1];
+
+	private long _safepointCount = 0;
+	private long _safepointTotal = 0;
+	private long _safepointMax = 0;
+
+	private long _allocated = 0;
+
+	private long _contentionCount = 0;
+	private long _contentionTotal = 0;
+	private final Map<String, long[]> _monitors = new HashMap<String, long[]>();
+
+	JfrWindow(long start) {
+		_start = start;
+	}
+
+	long getStart() {
+		return _start;
+	}
+
+	synchronized long getEvents() {
+		return _events;
+	}
+
+	synchronized void gcPause(long nanos) {
+		_events++;
+		_pauseCount++;
+		_pauseTotal += nanos;
+		_pauseMax = Math.max(_pauseMax, nanos);
+		int bucket = 0;
+		while (bucket < PAUSE_BOUNDS.length && nanos > PAUSE_BOUNDS[bucket] * 1000000) {
+			bucket++;
+		}
+		_pauseHistogram[bucket]++;
+	}
+
+	synchronized void safepoint(long nanos) {
+		_events++;
+		_safepointCount++;
+		_safepointTotal += nanos;
+		_safepointMax = Math.max(_safepointMax, nanos);
+	}
+
+	/**
+	 * Adds the estimated bytes allocated since the previous allocation sample.
+	 */
+	synchronized void allocation(long bytes) {
+		_events++;
+		_allocated += bytes;
+	}
+
+	synchronized void monitorContention(String monitorClass, long nanos) {
+		_events++;
+		_contentionCount++;
+		_contentionTotal += nanos;
+		String key = monitorClass != null ? monitorClass : OTHER_MONITORS;
+		if (!_monitors.containsKey(key) && _monitors.size() >= MAX_MONITOR_CLASSES) {
+			key = OTHER_MONITORS;
+		}
+		final long[] stats = _monitors.computeIfAbsent(key, k -> new long[3]);
+		stats[0]++;
+		stats[1] += nanos;
+		stats[2] = Math.max(stats[2], nanos);
+	}
+
+	/**
+	 * Adds the values of the window (ending at end) to the NamedVTQ rows pushed
+	 * to the container.
+	 */
+	synchronized void addValues(List<ValueCollection> rows, long end, int topMonitors) throws Exception {
+		final double seconds = Math.max(end - _start, 1) / 1000.0;
+
+		rows.add(value(JfrEventContainerTemplate.GC_PAUSE_COUNT, new LongPrimitive(_pauseCount)));
+		rows.add(value(JfrEventContainerTemplate.GC_PAUSE_TIME, new NumberPrimitive(_pauseTotal / 1e6)));
+		rows.add(value(JfrEventContainerTemplate.GC_PAUSE_MAX, new NumberPrimitive(_pauseMax / 1e6)));
+		rows.add(value(JfrEventContainerTemplate.GC_PAUSE_HISTOGRAM,
+				new InfoTablePrimitive(getPauseHistogram())));
+
+		rows.add(value(JfrEventContainerTemplate.SAFEPOINT_COUNT, new LongPrimitive(_safepointCount)));
+		rows.add(value(JfrEventContainerTemplate.SAFEPOINT_TIME, new NumberPrimitive(_safepointTotal / 1e6)));
+		rows.add(value(JfrEventContainerTemplate.SAFEPOINT_MAX, new NumberPrimitive(_safepointMax / 1e6)));
+
+		rows.add(value(JfrEventContainerTemplate.ALLOCATION_RATE, new NumberPrimitive(_allocated / seconds)));
+
+		rows.add(value(JfrEventContainerTemplate.CONTENTION_COUNT, new LongPrimitive(_contentionCount)));
+		rows.add(value(JfrEventContainerTemplate.CONTENTION_TIME, new NumberPrimitive(_contentionTotal / 1e6)));
+		rows.add(value(JfrEventContainerTemplate.CONTENTION_TOP,
+				new InfoTablePrimitive(getTopMonitors(topMonitors))));
+	}
+
+	private static ValueCollection value(String name, IPrimitiveType value) {
+		final ValueCollection values = new ValueCollection();
+		values.put("name", new StringPrimitive(name));
+		values.put("value", value);
+		return values;
+	}
+
+	private InfoTable getPauseHistogram() throws Exception {
+		final InfoTable it = InfoTableInstanceFactory
+				.createInfoTableFromDataShape(JfrEventContainerTemplate.HISTOGRAM_DATASHAPE);
+		for (int i = 0; i < _pauseHistogram.length; i++) {
+			final ValueCollection row = new ValueCollection();
+			if (i < PAUSE_BOUNDS.length) {
+				row.put("bucket", new StringPrimitive("<= " + PAUSE_BOUNDS[i] + " ms"));
+				row.put("upperBound", new NumberPrimitive((double) PAUSE_BOUNDS[i]));
+			} else {
+				row.put("bucket", new StringPrimitive("> " + PAUSE_BOUNDS[PAUSE_BOUNDS.length - 1] + " ms"));
+			}
+			row.put("count", new LongPrimitive(_pauseHistogram[i]));
+			it.addRow(row);
+		}
+		return it;
+	}
+
+	private InfoTable getTopMonitors(int count) throws Exception {
+		final List<Map.Entry<String, long[]>> monitors = new ArrayList<Map.Entry<String, long[]>>(
+				_monitors.entrySet());
+		monitors.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+
+		final InfoTable it = InfoTableInstanceFactory
+				.createInfoTableFromDataShape(JfrEventContainerTemplate.MONITOR_DATASHAPE);
+		for (Map.Entry<String, long[]> monitor : monitors.subList(0, Math.min(count, monitors.size()))) {
+			final ValueCollection row = new ValueCollection();
+			row.put("monitorClass", new StringPrimitive(monitor.getKey()));
+			row.put("count", new LongPrimitive(monitor.getValue()[0]));
+			row.put("totalTime", new NumberPrimitive(monitor.getValue()[1] / 1e6));
+			row.put("maxTime", new NumberPrimitive(monitor.getValue()[2] / 1e6));
+			it.addRow(row);
+		}
+		return it;
+	}
+}
@@ -0,0 +1,152 @@
+package ext.sma.jmx;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.types.collections.ValueCollection;
+
+/**
+ * Aliases usable instead of an ObjectName in the property bindings, each one
+ * resolved to one of the MBeans matching a pattern (first, last or newest).
+ * <p>
+ * The resolutions are cached and done again after MBean registrations, so a
+ * binding follows a pool re-created under a new name.
+ */
+class MBeanAliases {
+
+	static final String FIRST = "first";
+	static final String LAST = "last";
+	static final String NEWEST = "newest";
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(MBeanAliases.class);
+
+	private final Map<String, Alias> _aliases;
+	private final Map<String, Resolution> _resolutions = new ConcurrentHashMap<String, Resolution>();
+
+	/**
+	 * Builds the aliases from the rows of the Aliases configuration table, added
+	 * to (or overriding) the built-in ones.
+	 */
+	MBeanAliases(Iterable<ValueCollection> rows) {
+		final Map<String, Alias> aliases = new LinkedHashMap<String, Alias>();
+		try {
+			aliases.put(JMXServerTemplate.C3P0_MACRO,
+					new Alias(new ObjectName(JMXServerTemplate.C3P0_ROOT + "*"), NEWEST));
+		} catch (Exception ex) {
+			// constant pattern
+		}
+		if (rows != null) {
+			for (ValueCollection row : rows) {
+				final String alias = row.getStringValue("alias");
+				final String pattern = row.getStringValue("pattern");
+				if (alias == null || alias.isEmpty() || pattern == null || pattern.isEmpty()) {
+					continue;
+				}
+				try {
+					aliases.put(alias, new Alias(new ObjectName(pattern), row.getStringValue("selection")));
+				} catch (Exception ex) {
+					_logger.warn("Invalid pattern {} for MBean alias {} because {}.", pattern, alias, ex.getMessage());
+				}
+			}
+		}
+		_aliases = Collections.unmodifiableMap(aliases);
+	}
+
+	boolean isAlias(String name) {
+		return _aliases.containsKey(name);
+	}
+
+	/**
+	 * Returns the ObjectName the alias currently stands for, or null if no MBean
+	 * matches.
+	 */
+	String resolve(JMXConnection connection, MBeanServerConnection mbs, String alias) throws Exception {
+		final Alias definition = _aliases.get(alias);
+		if (definition == null) {
+			return null;
+		}
+
+		final ObjectNameResolver resolver = connection.getObjectNameResolver();
+		final long generation = resolver.getGeneration();
+		final Resolution cached = _resolutions.get(alias);
+		if (cached != null && cached.generation == generation && connection.isTrackingRegistrations()) {
+			return cached.name;
+		}
+
+		final Set<ObjectName> names = resolver.resolve(mbs, definition.pattern);
+		ObjectName selected = null;
+		if (!names.isEmpty()) {
+			if (FIRST.equals(definition.selection)) {
+				selected = names.iterator().next();
+			} else if (LAST.equals(definition.selection)) {
+				for (ObjectName name : names) {
+					selected = name;
+				}
+			} else {
+				selected = resolver.getNewest(names);
+			}
+		}
+
+		final String name = selected != null ? selected.toString() : null;
+		if (cached == null || !Objects.equals(cached.name, name)) {
+			if (name != null) {
+				_logger.info("MBean alias {} resolved to {}.", alias, name);
+			} else {
+				_logger.warn("MBean alias {} does not match any MBean ({}).", alias, definition.pattern);
+			}
+		}
+		_resolutions.put(alias, new Resolution(name, generation));
+		return name;
+	}
+
+	/**
+	 * Returns the alias currently resolved to the MBean, if any. An alias whose
+	 * pattern only matches it (e.g. the newest of several pools) stands for
+	 * another MBean, and is not returned.
+	 */
+	String findAlias(JMXConnection connection, MBeanServerConnection mbs, ObjectName name) throws Exception {
+		for (Map.Entry<String, Alias> alias : _aliases.entrySet()) {
+			if (alias.getValue().pattern.apply(name)) {
+				final String resolved = resolve(connection, mbs, alias.getKey());
+				if (resolved != null && name.equals(new ObjectName(resolved))) {
+					return alias.getKey();
+				}
+			}
+		}
+		return null;
+	}
+
+	void reset() {
+		_resolutions.clear();
+	}
+
+	private static class Alias {
+		private final ObjectName pattern;
+		private final String selection;
+
+		private Alias(ObjectName pattern, String selection) {
+			this.pattern = pattern;
+			this.selection = selection == null || selection.isEmpty() ? NEWEST : selection.toLowerCase();
+		}
+	}
+
+	private static class Resolution {
+		private final String name;
+		private final long generation;
+
+		private Resolution(String name, long generation) {
+			this.name = name;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package ext.sma.jmx;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/**
+ * MBeanInfo of the MBeans of a connection, filled lazily and invalidated by
+ * the MBean registration notifications.
+ */
+class MBeanInfoCache implements JMXConnection.RegistrationListener {
+
+	private final JMXConnection _connection;
+	private final Map<ObjectName, Entry> _entries = new ConcurrentHashMap<ObjectName, Entry>();
+
+	// bumped on each invalidation, so an MBeanInfo fetched meanwhile is not cached
+	private final AtomicLong _generation = new AtomicLong();
+
+	MBeanInfoCache(JMXConnection connection) {
+		_connection = connection;
+	}
+
+	MBeanInfo getMBeanInfo(MBeanServerConnection mbs, ObjectName oname) throws Exception {
+		return getEntry(mbs, oname).info;
+	}
+
+	/**
+	 * Returns the attributes of the MBean by name, in declaration order.
+	 */
+	Map<String, MBeanAttributeInfo> getAttributes(MBeanServerConnection mbs, ObjectName oname) throws Exception {
+		return getEntry(mbs, oname).attributes;
+	}
+
+	private Entry getEntry(MBeanServerConnection mbs, ObjectName oname) throws Exception {
+		Entry entry = _entries.get(oname);
+		if (entry == null) {
+			final long generation = _generation.get();
+			final boolean cacheable = _connection.isTrackingRegistrations();
+			entry = new Entry(mbs.getMBeanInfo(oname));
+			if (cacheable && generation == _generation.get()) {
+				_entries.put(oname, entry);
+			}
+		}
+		return entry;
+	}
+
+	int size() {
+		return _entries.size();
+	}
+
+	@Override
+	public void mbeanRegistered(ObjectName name) {
+		_generation.incrementAndGet();
+		_entries.remove(name);
+	}
+
+	@Override
+	public void mbeanUnregistered(ObjectName name) {
+		_generation.incrementAndGet();
+		_entries.remove(name);
+	}
+
+	@Override
+	public void registrationsReset() {
+		_generation.incrementAndGet();
+		_entries.clear();
+	}
+
+	private static class Entry {
+		private final MBeanInfo info;
+		private final Map<String, MBeanAttributeInfo> attributes;
+
+		private Entry(MBeanInfo info) {
+			this.info = info;
+			final Map<String, MBeanAttributeInfo> attrs = new LinkedHashMap<String, MBeanAttributeInfo>();
+			for (MBeanAttributeInfo attr : info.getAttributes()) {
+				attrs.put(attr.getName(), attr);
+			}
+			this.attributes = Collections.unmodifiableMap(attrs);
+		}
+	}
+}
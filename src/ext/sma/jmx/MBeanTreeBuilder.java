@@ -1,139 +1,240 @@
-package ext.sma.jmx;
-
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-
-import javax.management.ObjectName;
-
-import com.thingworx.data.util.InfoTableInstanceFactory;
-import com.thingworx.types.InfoTable;
-import com.thingworx.types.collections.ValueCollection;
-import com.thingworx.types.primitives.IntegerPrimitive;
-import com.thingworx.types.primitives.StringPrimitive;
-
-public class MBeanTreeBuilder {
-	
-	private int _id = 1;
-	private final Map<String, Node> _tree;
-	
-	MBeanTreeBuilder() {
-		_tree = new HashMap<String, Node>();
-	}
-	
-	void addMBeans(Set<ObjectName> objectNames) {
-		for (ObjectName oname : objectNames) {
-			addMbean(oname.toString());
-		}
-	}
-	
-	private int nextId() {
-		return _id++;
-	}
-	
-	private Node addMbean(String objectName) {
-		String path = objectName.replace(":", ",");
-		Node node = _tree.get(path);
-		if (node == null) {
-			String[] name_and_parent = splitPath(path);
-			Node parent = getOrCreateParent(name_and_parent[1]);
-			node = new Node(nextId(), parent.getId(), formatName(name_and_parent[0]), objectName);
-			_tree.put(path, node);
-		}
-		
-		return node;
-	}
-	
-	private Node getOrCreateParent(String parentPath) {
-		Node node = _tree.get(parentPath);
-		if (node == null) {
-			String[] name_and_parent = splitPath(parentPath);
-			int parent_id = 0;
-			if (name_and_parent[1] != null) {
-				Node parent = getOrCreateParent(name_and_parent[1]);
-				parent_id = parent.getId();
-			}
-			
-			node = new Node(nextId(), parent_id, formatName(name_and_parent[0]), "");
-			_tree.put(parentPath, node);
-		}
-		
-		return node;
-	}
-	
-	static private String formatName(String name) {
-		int c = name.lastIndexOf('=');
-		return name.substring(c+1);
-	}
-	
-	static private String[] splitPath(String path) {
-		String name;
-		String parent_path;
-		int c = path.lastIndexOf(',');
-		if (c > 0) {
-			parent_path = path.substring(0, c);
-			name = path.substring(c+1);
-		}
-		else {
-			name = path;
-			parent_path = null;
-		}
-			
-		String[] np = {name, parent_path};
-		return np;
-	}
-
-	public InfoTable toInfoTable() throws Exception {
-		InfoTable it  = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanTreeDataShape");
-		_tree.forEach((path, node) -> {
-			final ValueCollection values = new ValueCollection();
-			values.put("nodeId", new StringPrimitive(Integer.toString(node.getId())));
-			values.put("parentId", new StringPrimitive(Integer.toString(node.getParentId())));
-			values.put("nodeName", new StringPrimitive(node.getName()));
-			values.put("objectName", new StringPrimitive(node.getObjectName()));
-			it.addRow(values);
-		});	
-				
-		return it;
-	}
-	
-	
-	private class Node implements Comparable<Node> {
-		private final int id;
-		private final int parent_id;
-		private final String name;
-		private final String objectName;
-		
-		protected Node(int id, int parent_id, String name, String objectName) {
-			this.id = id;
-			this.parent_id = parent_id;
-			this.name = name;
-			this.objectName = objectName;
-		}
-
-		protected int getId() {
-			return id;
-		}
-
-		protected int getParentId() {
-			return parent_id;
-		}
-
-		protected String getName() {
-			return name;
-		}
-
-		protected String getObjectName() {
-			return objectName;
-		}	
-		
-		public String toString() {
-			return id + ", " + parent_id + ", " + name + ", " + objectName; 
-		}
-		
-	    @Override
-	    public int compareTo(Node node) {
-	        return (int)(this.id - node.getId());
-	    }
-	}
-}
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.BooleanPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Tree of the MBean names (domain, then one level per key property).
+ * <p>
+ * The node ids are the node paths, so they stay the same from one call to the
+ * other. When used as the long-lived index of a connection, the tree is loaded
+ * on first use and then only updated by the MBean registration notifications.
+ */
+public class MBeanTreeBuilder implements JMXConnection.RegistrationListener {
+
+	static final String ROOT_ID = "0";
+
+	private final Map<String, Node> _tree;
+	private boolean _loaded = false;
+
+	MBeanTreeBuilder() {
+		_tree = new HashMap<String, Node>();
+	}
+
+	synchronized void addMBeans(Set<ObjectName> objectNames) {
+		for (ObjectName oname : objectNames) {
+			addMbean(oname.toString());
+		}
+	}
+
+	/**
+	 * Loads the tree from the MBeanServer the first time, or after the
+	 * registrations were reset.
+	 */
+	synchronized void ensureLoaded(MBeanServerConnection mbs) throws Exception {
+		if (!_loaded) {
+			_tree.clear();
+			addMBeans(mbs.queryNames(null, null));
+			_loaded = true;
+		}
+	}
+
+	@Override
+	public synchronized void mbeanRegistered(ObjectName name) {
+		if (_loaded) {
+			addMbean(name.toString());
+		}
+	}
+
+	@Override
+	public synchronized void mbeanUnregistered(ObjectName name) {
+		if (_loaded) {
+			removeMbean(name.toString());
+		}
+	}
+
+	@Override
+	public synchronized void registrationsReset() {
+		_loaded = false;
+		_tree.clear();
+	}
+
+	private Node addMbean(String objectName) {
+		String path = objectName.replace(":", ",");
+		Node node = _tree.get(path);
+		if (node == null) {
+			String[] name_and_parent = splitPath(path);
+			Node parent = getOrCreateParent(name_and_parent[1]);
+			node = new Node(path, parent.getId(), formatName(name_and_parent[0]), objectName);
+			parent.children.add(path);
+			_tree.put(path, node);
+		} else {
+			node.objectName = objectName;
+		}
+
+		return node;
+	}
+
+	private void removeMbean(String objectName) {
+		String path = objectName.replace(":", ",");
+		Node node = _tree.get(path);
+		if (node != null) {
+			node.objectName = "";
+			// prune the branch up to the first node still in use
+			while (node != null && node.children.isEmpty() && node.getObjectName().isEmpty()) {
+				_tree.remove(node.getId());
+				Node parent = _tree.get(node.getParentId());
+				if (parent != null) {
+					parent.children.remove(node.getId());
+				}
+				node = parent;
+			}
+		}
+	}
+
+	private Node getOrCreateParent(String parentPath) {
+		Node node = _tree.get(parentPath);
+		if (node == null) {
+			String[] name_and_parent = splitPath(parentPath);
+			String parent_id = ROOT_ID;
+			if (name_and_parent[1] != null) {
+				Node parent = getOrCreateParent(name_and_parent[1]);
+				parent_id = parent.getId();
+				parent.children.add(parentPath);
+			}
+
+			node = new Node(parentPath, parent_id, formatName(name_and_parent[0]), "");
+			_tree.put(parentPath, node);
+		}
+
+		return node;
+	}
+
+	static private String formatName(String name) {
+		int c = name.lastIndexOf('=');
+		return name.substring(c+1);
+	}
+
+	static private String[] splitPath(String path) {
+		String name;
+		String parent_path;
+		int c = path.lastIndexOf(',');
+		if (c > 0) {
+			parent_path = path.substring(0, c);
+			name = path.substring(c+1);
+		}
+		else {
+			name = path;
+			parent_path = null;
+		}
+
+		String[] np = {name, parent_path};
+		return np;
+	}
+
+	public InfoTable toInfoTable() throws Exception {
+		return toInfoTable(InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanTreeDataShape"));
+	}
+
+	/**
+	 * Adds all the nodes to a table of the JMX.MBeanTreeDataShape shape.
+	 */
+	synchronized InfoTable toInfoTable(InfoTable it) {
+		_tree.forEach((path, node) -> it.addRow(node.toValueCollection()));
+
+		return it;
+	}
+
+	/**
+	 * Returns only the direct children of a node (the domains for the root id),
+	 * sorted by name.
+	 */
+	public synchronized InfoTable childrenToInfoTable(String parentId) throws Exception {
+		InfoTable it  = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.MBeanTreeDataShape");
+		List<Node> children = new ArrayList<Node>();
+		if (parentId == null || parentId.isEmpty() || ROOT_ID.equals(parentId)) {
+			_tree.forEach((path, node) -> {
+				if (ROOT_ID.equals(node.getParentId())) {
+					children.add(node);
+				}
+			});
+		} else {
+			Node parent = _tree.get(parentId);
+			if (parent != null) {
+				for (String id : parent.children) {
+					children.add(_tree.get(id));
+				}
+			}
+		}
+		children.sort(Comparator.comparing(Node::getName));
+		for (Node node : children) {
+			it.addRow(node.toValueCollection());
+		}
+		return it;
+	}
+
+
+	private class Node implements Comparable<Node> {
+		private final String id;
+		private final String parent_id;
+		private final String name;
+		private String objectName;
+		private final Set<String> children = new LinkedHashSet<String>();
+
+		protected Node(String id, String parent_id, String name, String objectName) {
+			this.id = id;
+			this.parent_id = parent_id;
+			this.name = name;
+			this.objectName = objectName;
+		}
+
+		protected String getId() {
+			return id;
+		}
+
+		protected String getParentId() {
+			return parent_id;
+		}
+
+		protected String getName() {
+			return name;
+		}
+
+		protected String getObjectName() {
+			return objectName;
+		}
+
+		protected ValueCollection toValueCollection() {
+			final ValueCollection values = new ValueCollection();
+			values.put("nodeId", new StringPrimitive(id));
+			values.put("parentId", new StringPrimitive(parent_id));
+			values.put("nodeName", new StringPrimitive(name));
+			values.put("objectName", new StringPrimitive(objectName));
+			values.put("hasChildren", new BooleanPrimitive(!children.isEmpty()));
+			return values;
+		}
+
+		public String toString() {
+			return id + ", " + parent_id + ", " + name + ", " + objectName;
+		}
+
+	    @Override
+	    public int compareTo(Node node) {
+	        return this.id.compareTo(node.getId());
+	    }
+	}
+}
@@ -0,0 +1,364 @@
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.entities.utils.ThingUtilities;
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.things.Thing;
+import com.thingworx.things.properties.ThingProperty;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.BooleanPrimitive;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Desired state of the containers of a server (bindings, logging and
+ * sampling settings), applied with ApplyMonitoringProfile:
+ *
+ * <pre>
+ * { "containers": [ { "name": "jmx.GC", "logged": true,
+ *     "sampling": { "samplingInterval": 10000, "writeToValueStream": true },
+ *     "bindings": [ { "mbean": "java.lang:type=GarbageCollector,*", "attribute": "CollectionCount", "binding": "sum" },
+ *                   { "mbean": "java.lang:type=Memory", "attribute": "HeapMemoryUsage_used", "type": "LONG" } ] } ] }
+ * </pre>
+ *
+ * Each container is compared with its current definition, and only the
+ * differences are applied, followed by a single restart of the Thing.
+ */
+class MonitoringProfile {
+
+	static final String CREATE = "create";
+	static final String UPDATE = "update";
+	static final String UNCHANGED = "unchanged";
+	static final String ERROR = "error";
+
+	private static final String[] SAMPLING_FIELDS = { "samplingInterval", "writeToValueStream",
+			"notificationFlushInterval", "statisticsCapacity", "statisticsWindow" };
+	private static final String BOOLEAN_SETTING = "writeToValueStream";
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(MonitoringProfile.class);
+
+	private final List<ContainerSpec> _containers = new ArrayList<ContainerSpec>();
+
+	private MonitoringProfile() {
+	}
+
+	static MonitoringProfile parse(String json) throws Exception {
+		final MonitoringProfile profile = new MonitoringProfile();
+		final JSONArray containers = new JSONObject(json).optJSONArray("containers");
+		if (containers == null) {
+			throw new Exception("The profile has no containers array.");
+		}
+		for (int i = 0; i < containers.length(); i++) {
+			final JSONObject container = containers.optJSONObject(i);
+			final String name = container != null ? container.optString("name", "") : "";
+			final ContainerSpec spec = new ContainerSpec(
+					name.isEmpty() ? "#" + i : JMXMBeanContainerTemplate.getContainerThingName(name));
+			// a bad container is reported with its error, the others are still applied
+			try {
+				if (name.isEmpty()) {
+					throw new Exception("Container #" + i + " of the profile has no name.");
+				}
+				parse(container, spec);
+			} catch (Exception ex) {
+				spec.error = ex.getMessage();
+			}
+			profile._containers.add(spec);
+		}
+		return profile;
+	}
+
+	private static void parse(JSONObject container, ContainerSpec spec) throws Exception {
+		final boolean logged = container.optBoolean("logged", false);
+
+		final JSONObject sampling = container.optJSONObject("sampling");
+		if (sampling != null) {
+			for (String field : SAMPLING_FIELDS) {
+				if (sampling.has(field)) {
+					spec.sampling.put(field, getSetting(sampling, field));
+				}
+			}
+		}
+
+		final JSONArray bindings = container.optJSONArray("bindings");
+		for (int j = 0; bindings != null && j < bindings.length(); j++) {
+			final JSONObject binding = bindings.optJSONObject(j);
+			final String mbean = binding != null ? binding.optString("mbean", "") : "";
+			final String attribute = binding != null ? binding.optString("attribute", "") : "";
+			if (mbean.isEmpty() || attribute.isEmpty()) {
+				throw new Exception("Binding #" + j + " needs an mbean and an attribute.");
+			}
+			final String type = binding.optString("type", "");
+			final BaseTypes base_type;
+			try {
+				base_type = type.isEmpty() ? null : BaseTypes.valueOf(type.toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				throw new Exception("Unknown type " + type + " for binding #" + j + ".");
+			}
+			spec.bindings.add(new BindingSpec(mbean, attribute,
+					JMXMBeanContainerTemplate.getBindingCategory(binding.optString("binding", "")), base_type,
+					binding.optBoolean("logged", logged)));
+		}
+		if (container.has("prune")) {
+			spec.prune = container.optBoolean("prune", false);
+		}
+	}
+
+	/**
+	 * Returns the sampling setting as a Boolean (writeToValueStream) or an
+	 * Integer, also accepted as a string.
+	 */
+	private static Object getSetting(JSONObject sampling, String field) throws Exception {
+		final Object value = sampling.opt(field);
+		if (BOOLEAN_SETTING.equals(field)) {
+			if (value instanceof Boolean) {
+				return value;
+			}
+			if ("true".equalsIgnoreCase(String.valueOf(value)) || "false".equalsIgnoreCase(String.valueOf(value))) {
+				return Boolean.valueOf(String.valueOf(value));
+			}
+			throw new Exception("Invalid sampling setting " + field + ": " + value + " is not a boolean.");
+		}
+		if (value instanceof Number && ((Number) value).doubleValue() == ((Number) value).intValue()) {
+			return ((Number) value).intValue();
+		}
+		if (value instanceof String) {
+			try {
+				return Integer.valueOf(((String) value).trim());
+			} catch (NumberFormatException ex) {
+				// reported below
+			}
+		}
+		throw new Exception("Invalid sampling setting " + field + ": " + value + " is not an integer.");
+	}
+
+	/**
+	 * Applies (or only compares, for a dry run) the profile, returns one
+	 * JMX.ProfileChange row per container. With prune, the MBean properties
+	 * not in the profile are removed (unless the container says otherwise).
+	 */
+	InfoTable apply(JMXServerTemplate server, boolean prune, boolean dryRun) throws Exception {
+		final InfoTable result = InfoTableInstanceFactory.createInfoTableFromDataShape("JMX.ProfileChange");
+		for (ContainerSpec spec : _containers) {
+			final Change change = new Change(spec.name);
+			try {
+				if (spec.error != null) {
+					throw new Exception(spec.error);
+				}
+				apply(server, spec, spec.prune != null ? spec.prune : prune, change, dryRun);
+			} catch (Exception ex) {
+				change.action = ERROR;
+				change.message = ex.getMessage();
+				_logger.warn("Error applying the monitoring profile to {} because {}.", spec.name, ex.getMessage());
+			}
+			result.addRow(change.toValueCollection(dryRun));
+		}
+		return result;
+	}
+
+	private void apply(JMXServerTemplate server, ContainerSpec spec, boolean prune, Change change,
+			boolean dryRun) throws Exception {
+
+		final Thing thing = ThingUtilities.findThing(spec.name);
+		if (thing != null && !(thing instanceof JMXMBeanContainerTemplate)) {
+			throw new Exception(spec.name + " is not an MBean container.");
+		}
+		JMXMBeanContainerTemplate container = (JMXMBeanContainerTemplate) thing;
+		final boolean create = container == null;
+
+		// bindings
+		final Map<String, PropertyDefinition> current = new LinkedHashMap<String, PropertyDefinition>();
+		if (!create) {
+			for (ThingProperty property : container.getProperties().values()) {
+				final PropertyDefinition prop_def = property.getPropertyDefinition();
+				if (JMXMBeanContainerTemplate.isMBeanProperty(prop_def)) {
+					current.put(prop_def.getName(), prop_def);
+				}
+			}
+		}
+		final InfoTable additions = InfoTableInstanceFactory
+				.createInfoTableFromDataShape("PropertyDefinitionWithDetails");
+		final List<String> removals = new ArrayList<String>();
+		final Map<String, BindingSpec> desired = new LinkedHashMap<String, BindingSpec>();
+		for (BindingSpec binding : spec.bindings) {
+			desired.put(binding.getPropertyName(), binding);
+		}
+		for (Map.Entry<String, BindingSpec> entry : desired.entrySet()) {
+			final String name = entry.getKey();
+			final BindingSpec binding = entry.getValue();
+			final PropertyDefinition prop_def = current.get(name);
+			// without a type in the profile, the stored one stands for the same attribute
+			final boolean same_source = prop_def != null && binding.mbean.equals(prop_def.getDescription())
+					&& binding.category.equals(prop_def.getCategory());
+			if (same_source && (binding.type == null || binding.type == prop_def.getBaseType())
+					&& binding.logged == prop_def.isLogged()) {
+				continue;
+			}
+			if (prop_def == null) {
+				change.added++;
+			} else {
+				change.replaced++;
+				removals.add(name);
+			}
+			if (dryRun) {
+				continue;
+			}
+			// the attribute type is only read from the server for the properties (re)defined,
+			// a notification has no attribute to read it from
+			final BaseTypes type = binding.type != null ? binding.type
+					: same_source ? prop_def.getBaseType()
+							: JMXMBeanContainerTemplate.NOTIFICATION_CATEGORY.equals(binding.category)
+									? BaseTypes.STRING
+									: server.getAttributeBaseType(binding.mbean, binding.attribute, binding.category);
+			additions.addRow(
+					JMXServerTemplate.newPropertyDefinition(name, type, binding.mbean, binding.category, binding.logged));
+		}
+		if (prune) {
+			for (String name : current.keySet()) {
+				if (!desired.containsKey(name)) {
+					change.removed++;
+					removals.add(name);
+				}
+			}
+		}
+
+		// sampling settings
+		final Map<String, Object> sampling = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Object> setting : spec.sampling.entrySet()) {
+			final Object value = create ? null
+					: container.getConfigurationSetting(JMXMBeanContainerTemplate.SAMPLING_TABLE, setting.getKey());
+			if (!isSameSetting(value, setting.getValue())) {
+				sampling.put(setting.getKey(), setting.getValue());
+			}
+		}
+		change.settings = sampling.size();
+
+		final boolean move = !create && !server.getName().equals(container.getServerName());
+		final boolean restart = create || change.added + change.replaced + change.removed + change.settings > 0;
+		change.action = create ? CREATE : restart || move ? UPDATE : UNCHANGED;
+		if (dryRun || !(restart || move)) {
+			return;
+		}
+
+		if (create) {
+			container = JMXMBeanContainerTemplate.createMBeanContainerThing(spec.name);
+		}
+		try {
+			for (String name : removals) {
+				container.RemovePropertyDefinition(name);
+			}
+			if (additions.getRowCount() > 0) {
+				container.AddPropertyDefinitions(additions, false);
+			}
+			if (!sampling.isEmpty()) {
+				final InfoTable table = container.GetConfigurationTable(JMXMBeanContainerTemplate.SAMPLING_TABLE);
+				ValueCollection row = table.getFirstRow();
+				if (row == null) {
+					row = new ValueCollection();
+					table.addRow(row);
+				}
+				for (Map.Entry<String, Object> setting : sampling.entrySet()) {
+					row.put(setting.getKey(), setting.getValue() instanceof Boolean
+							? new BooleanPrimitive((Boolean) setting.getValue())
+							: new IntegerPrimitive((Integer) setting.getValue()));
+				}
+				container.SetConfigurationTable(table, JMXMBeanContainerTemplate.SAMPLING_TABLE, true);
+			}
+
+			// a single (re)start for all the changes
+			if (create) {
+				container.EnableThing();
+			} else if (restart) {
+				container.RestartThing();
+			}
+			if (create || move) {
+				container.setPropertyValue(JMXMBeanContainerTemplate.SERVER_PROPERTY,
+						BaseTypes.ConvertToPrimitive(server.getName(), BaseTypes.THINGNAME));
+			}
+		} catch (Exception ex) {
+			if (create) {
+				JMXMBeanContainerTemplate.deleteMBeanContainerThing(spec.name);
+			}
+			throw ex;
+		}
+	}
+
+	private static boolean isSameSetting(Object current, Object desired) {
+		if (current instanceof Number && desired instanceof Number) {
+			return ((Number) current).doubleValue() == ((Number) desired).doubleValue();
+		}
+		return current != null && current.equals(desired);
+	}
+
+	private static class ContainerSpec {
+		private final String name;
+		private final Map<String, Object> sampling = new LinkedHashMap<String, Object>();
+		private final List<BindingSpec> bindings = new ArrayList<BindingSpec>();
+		private Boolean prune = null;
+		private String error = null;
+
+		private ContainerSpec(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class BindingSpec {
+		private final String mbean;
+		private final String attribute;
+		private final String category;
+		private final BaseTypes type;
+		private final boolean logged;
+
+		private BindingSpec(String mbean, String attribute, String category, BaseTypes type, boolean logged) {
+			this.mbean = mbean;
+			this.attribute = attribute;
+			this.category = category;
+			this.type = type;
+			this.logged = logged;
+		}
+
+		private String getPropertyName() {
+			return JMXMBeanContainerTemplate.getPropertyName(attribute, category);
+		}
+	}
+
+	private static class Change {
+		private final String container;
+		private String action = UNCHANGED;
+		private String message = null;
+		private int added = 0;
+		private int replaced = 0;
+		private int removed = 0;
+		private int settings = 0;
+
+		private Change(String container) {
+			this.container = container;
+		}
+
+		private ValueCollection toValueCollection(boolean dryRun) {
+			final ValueCollection values = new ValueCollection();
+			values.put("container", new StringPrimitive(container));
+			values.put("action", new StringPrimitive(action));
+			values.put("applied", new BooleanPrimitive(!dryRun && !ERROR.equals(action)));
+			values.put("added", new IntegerPrimitive(added));
+			values.put("replaced", new IntegerPrimitive(replaced));
+			values.put("removed", new IntegerPrimitive(removed));
+			values.put("settings", new IntegerPrimitive(settings));
+			if (message != null) {
+				values.put("message", new StringPrimitive(message));
+			}
+			return values;
+		}
+	}
+}
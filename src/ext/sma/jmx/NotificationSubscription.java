@@ -0,0 +1,236 @@
+package ext.sma.jmx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.AttributeChangeNotification;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.DatetimePrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Pushes the content of the JMX notifications into the "mbean:notif"
+ * properties of a container.
+ * <p>
+ * The property description is the emitting MBean and its name the path of the
+ * value in the notification: the attribute name for an
+ * AttributeChangeNotification, the (nested) keys of the CompositeData user
+ * data separated by "_" (e.g. gcInfo_duration for a GC notification), or one
+ * of type, message, sequenceNumber and timeStamp. As for the attributes, the
+ * path is split on its last "_" only when it does not name an item as a whole.
+ * The values are buffered and flushed in batches through UpdatePropertyValues.
+ * <p>
+ * The MBeans that could not be subscribed to (e.g. not registered yet) are
+ * retried on each call to subscribe.
+ */
+class NotificationSubscription implements NotificationListener {
+
+	static final int MAX_BUFFERED = 10000;
+
+	private static final Object NOT_FOUND = new Object();
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(NotificationSubscription.class);
+
+	private final JMXMBeanContainerTemplate _container;
+	private final Map<ObjectName, List<PropertyDefinition>> _bindings = new LinkedHashMap<ObjectName, List<PropertyDefinition>>();
+	private final ArrayDeque<BufferedValue> _buffer = new ArrayDeque<BufferedValue>();
+	private long _dropped = 0;
+
+	private MBeanServerConnection _subscribed = null;
+	private final Set<ObjectName> _unsubscribed = new LinkedHashSet<ObjectName>();
+
+	NotificationSubscription(JMXMBeanContainerTemplate container, List<PropertyDefinition> properties) {
+		_container = container;
+		for (PropertyDefinition prop : properties) {
+			try {
+				_bindings.computeIfAbsent(new ObjectName(prop.getDescription()),
+						k -> new ArrayList<PropertyDefinition>()).add(prop);
+			} catch (Exception ex) {
+				_logger.warn("Invalid MBean name {} for notification property {} on {}.", prop.getDescription(),
+						prop.getName(), container.getName());
+			}
+		}
+	}
+
+	/**
+	 * (Re)subscribes if the server connection changed since the last call (e.g.
+	 * the remote server reconnected), and retries the MBeans not subscribed to
+	 * yet.
+	 */
+	synchronized void subscribe(MBeanServerConnection mbs) {
+		final boolean resubscribe = mbs != _subscribed;
+		if (resubscribe) {
+			unsubscribe();
+			_subscribed = mbs;
+			_unsubscribed.addAll(_bindings.keySet());
+		}
+		for (Iterator<ObjectName> it = _unsubscribed.iterator(); it.hasNext();) {
+			final ObjectName oname = it.next();
+			try {
+				mbs.addNotificationListener(oname, this, null, oname);
+				it.remove();
+			} catch (Exception ex) {
+				// reported once per connection, then retried quietly
+				if (resubscribe) {
+					_logger.warn("Error subscribing to notifications of {} for {} because {}.", oname,
+							_container.getName(), ex.getMessage());
+				} else {
+					_logger.debug("Error subscribing to notifications of {} for {} because {}.", oname,
+							_container.getName(), ex.getMessage());
+				}
+			}
+		}
+	}
+
+	synchronized void unsubscribe() {
+		if (_subscribed == null) {
+			return;
+		}
+		for (ObjectName oname : _bindings.keySet()) {
+			if (_unsubscribed.contains(oname)) {
+				continue;
+			}
+			try {
+				_subscribed.removeNotificationListener(oname, this);
+			} catch (Exception ex) {
+				_logger.debug("Error unsubscribing from {} because {}.", oname, ex.getMessage());
+			}
+		}
+		_unsubscribed.clear();
+		_subscribed = null;
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		final List<PropertyDefinition> props = _bindings.get(handback);
+		if (props == null) {
+			return;
+		}
+
+		final DateTime time = new DateTime(notification.getTimeStamp());
+		for (PropertyDefinition prop : props) {
+			final Object value = getValue(notification, prop.getName());
+			if (value != NOT_FOUND) {
+				synchronized (_buffer) {
+					if (_buffer.size() >= MAX_BUFFERED) {
+						_buffer.pollFirst();
+						_dropped++;
+					}
+					_buffer.addLast(new BufferedValue(prop, time, value));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pushes the buffered values to the container in one UpdatePropertyValues.
+	 */
+	void flush() throws Exception {
+		final List<BufferedValue> values;
+		final long dropped;
+		synchronized (_buffer) {
+			if (_buffer.isEmpty()) {
+				return;
+			}
+			values = new ArrayList<BufferedValue>(_buffer);
+			_buffer.clear();
+			dropped = _dropped;
+			_dropped = 0;
+		}
+
+		if (dropped > 0) {
+			_logger.warn("{} notification values dropped on {} (buffer full).", dropped, _container.getName());
+		}
+
+		final InfoTable vtqs = InfoTableInstanceFactory.createInfoTableFromDataShape("NamedVTQ");
+		for (BufferedValue value : values) {
+			try {
+				final ValueCollection row = new ValueCollection();
+				row.put("name", new StringPrimitive(value.property.getName()));
+				row.put("time", new DatetimePrimitive(value.time));
+				row.put("value", BaseTypes.ConvertToPrimitive(value.value, value.property.getBaseType()));
+				vtqs.addRow(row);
+			} catch (Exception ex) {
+				_logger.warn("Error pushing notification value {} onto {} because {}.", value.property.getName(),
+						_container.getName(), ex.getMessage());
+			}
+		}
+		_container.UpdatePropertyValues(vtqs);
+	}
+
+	/**
+	 * Returns the item of the notification at the path, split on its last "_"
+	 * (attribute[_key]) only when the whole path does not name an item.
+	 */
+	private static Object getValue(Notification notification, String path) {
+		final Object value = getItem(notification, path);
+		if (value != NOT_FOUND) {
+			return value;
+		}
+
+		final String[] path_and_key = JMXServerTemplate.splitAttributeName(path);
+		if (path_and_key[1] == null) {
+			return NOT_FOUND;
+		}
+		final Object parent = getValue(notification, path_and_key[0]);
+		if (parent instanceof CompositeData && ((CompositeData) parent).containsKey(path_and_key[1])) {
+			return ((CompositeData) parent).get(path_and_key[1]);
+		}
+		return NOT_FOUND;
+	}
+
+	private static Object getItem(Notification notification, String name) {
+		if (notification instanceof AttributeChangeNotification
+				&& name.equals(((AttributeChangeNotification) notification).getAttributeName())) {
+			return ((AttributeChangeNotification) notification).getNewValue();
+		}
+		if (notification.getUserData() instanceof CompositeData
+				&& ((CompositeData) notification.getUserData()).containsKey(name)) {
+			return ((CompositeData) notification.getUserData()).get(name);
+		}
+		switch (name) {
+		case "type":
+			return notification.getType();
+		case "message":
+			return notification.getMessage();
+		case "sequenceNumber":
+			return notification.getSequenceNumber();
+		case "timeStamp":
+			return notification.getTimeStamp();
+		default:
+			return NOT_FOUND;
+		}
+	}
+
+	private static class BufferedValue {
+		private final PropertyDefinition property;
+		private final DateTime time;
+		private final Object value;
+
+		private BufferedValue(PropertyDefinition property, DateTime time, Object value) {
+			this.property = property;
+			this.time = time;
+			this.value = value;
+		}
+	}
+}
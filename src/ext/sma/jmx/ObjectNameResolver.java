@@ -0,0 +1,115 @@
+package ext.sma.jmx;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/**
+ * Names of the MBeans matching the ObjectName patterns used by the bindings,
+ * queried once per pattern and then kept up to date by the MBean registration
+ * notifications.
+ */
+class ObjectNameResolver implements JMXConnection.RegistrationListener {
+
+	private final JMXConnection _connection;
+	private final Map<ObjectName, Set<ObjectName>> _patterns = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+
+	// bumped on each registration, so a query answered meanwhile is not cached
+	private final AtomicLong _generation = new AtomicLong();
+
+	// generation at which the matching MBeans were registered (0 if before the query)
+	private final Map<ObjectName, Long> _registeredAt = new ConcurrentHashMap<ObjectName, Long>();
+
+	ObjectNameResolver(JMXConnection connection) {
+		_connection = connection;
+	}
+
+	static boolean isPattern(String objectName) {
+		return objectName.indexOf('*') >= 0 || objectName.indexOf('?') >= 0;
+	}
+
+	/**
+	 * Returns the names matching the pattern, sorted (read-only set).
+	 */
+	Set<ObjectName> resolve(MBeanServerConnection mbs, ObjectName pattern) throws Exception {
+		Set<ObjectName> names = _patterns.get(pattern);
+		if (names == null) {
+			final long generation = _generation.get();
+			final boolean cacheable = _connection.isTrackingRegistrations();
+			names = Collections.unmodifiableSet(new TreeSet<ObjectName>(mbs.queryNames(pattern, null)));
+			if (cacheable && generation == _generation.get()) {
+				_patterns.putIfAbsent(pattern, names);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Changes on each MBean registration, i.e. each time the resolved names may
+	 * have changed.
+	 */
+	long getGeneration() {
+		return _generation.get();
+	}
+
+	/**
+	 * Returns the most recently registered of the names, or the last one if
+	 * they were all registered before being resolved.
+	 */
+	ObjectName getNewest(Set<ObjectName> names) {
+		ObjectName newest = null;
+		long newest_at = -1;
+		for (ObjectName name : names) {
+			final Long at = _registeredAt.get(name);
+			final long registered_at = at != null ? at : 0;
+			if (registered_at >= newest_at) {
+				newest = name;
+				newest_at = registered_at;
+			}
+		}
+		return newest;
+	}
+
+	@Override
+	public void mbeanRegistered(ObjectName name) {
+		final long generation = _generation.incrementAndGet();
+		for (ObjectName pattern : _patterns.keySet()) {
+			if (pattern.apply(name)) {
+				_registeredAt.put(name, generation);
+				_patterns.computeIfPresent(pattern, (k, names) -> {
+					final TreeSet<ObjectName> updated = new TreeSet<ObjectName>(names);
+					updated.add(name);
+					return Collections.unmodifiableSet(updated);
+				});
+			}
+		}
+	}
+
+	@Override
+	public void mbeanUnregistered(ObjectName name) {
+		_generation.incrementAndGet();
+		_registeredAt.remove(name);
+		for (ObjectName pattern : _patterns.keySet()) {
+			if (pattern.apply(name)) {
+				_patterns.computeIfPresent(pattern, (k, names) -> {
+					final TreeSet<ObjectName> updated = new TreeSet<ObjectName>(names);
+					updated.remove(name);
+					return Collections.unmodifiableSet(updated);
+				});
+			}
+		}
+	}
+
+	@Override
+	public void registrationsReset() {
+		_generation.incrementAndGet();
+		_patterns.clear();
+		_registeredAt.clear();
+	}
+}
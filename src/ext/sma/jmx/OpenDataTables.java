@@ -0,0 +1,238 @@
+package ext.sma.jmx;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularType;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.InfoTablePrimitive;
+import com.thingworx.types.primitives.IntegerPrimitive;
+
+/**
+ * Converts TabularData, CompositeData and arrays to InfoTables, with a
+ * DataShape generated (once per open type) from their type:
+ * <ul>
+ * <li>TabularData: one row per row of the table</li>
+ * <li>CompositeData: a single row</li>
+ * <li>arrays: one row per element (index / value), or per CompositeData</li>
+ * </ul>
+ * The items of a nested CompositeData are flattened (key_item), the nested
+ * tables and arrays become INFOTABLE fields. Each table is cut at maxRows
+ * rows.
+ */
+class OpenDataTables {
+
+	static final String TABULAR_TYPE = "javax.management.openmbean.TabularData";
+
+	// nested tables beyond this depth are converted to STRING
+	private static final int MAX_DEPTH = 3;
+
+	private static final Map<Object, Layout> _layouts = new ConcurrentHashMap<Object, Layout>();
+
+	private OpenDataTables() {
+	}
+
+	/**
+	 * True for the Java types of the attributes bound to INFOTABLE properties.
+	 */
+	static boolean isTableType(String javaType) {
+		return javaType != null && (javaType.startsWith("[") || TABULAR_TYPE.equals(javaType)
+				|| JMXServerTemplate.COMPOSITE_TYPE.equals(javaType));
+	}
+
+	static boolean isTable(Object value) {
+		return value instanceof TabularData || value instanceof CompositeData
+				|| (value != null && value.getClass().isArray());
+	}
+
+	/**
+	 * Returns the rows of the value (at most maxRows), or null if it is not
+	 * TabularData, CompositeData or an array.
+	 */
+	static InfoTable toInfoTable(Object value, int maxRows) throws Exception {
+		final Layout layout = getLayout(value, 0);
+		return layout != null ? layout.toInfoTable(value, maxRows) : null;
+	}
+
+	private static Layout getLayout(Object value, int depth) {
+		if (value instanceof TabularData) {
+			return getLayout(((TabularData) value).getTabularType(), depth);
+		}
+		if (value instanceof CompositeData) {
+			return getLayout(((CompositeData) value).getCompositeType(), depth);
+		}
+		if (value instanceof CompositeData[] && ((CompositeData[]) value).length > 0) {
+			return getLayout(((CompositeData[]) value)[0].getCompositeType(), depth);
+		}
+		if (value != null && value.getClass().isArray()) {
+			final Class<?> component = value.getClass().getComponentType();
+			return _layouts.computeIfAbsent(component, k -> new Layout(component.getName()));
+		}
+		return null;
+	}
+
+	private static Layout getLayout(OpenType<?> type, int depth) {
+		final Layout layout = _layouts.get(type);
+		if (layout != null) {
+			return layout;
+		}
+		Layout created = null;
+		if (type instanceof CompositeType) {
+			created = new Layout((CompositeType) type, depth);
+		} else if (type instanceof TabularType) {
+			created = new Layout(((TabularType) type).getRowType(), depth);
+		} else if (type instanceof ArrayType) {
+			final OpenType<?> element = ((ArrayType<?>) type).getElementOpenType();
+			created = element instanceof CompositeType ? new Layout((CompositeType) element, depth)
+					: new Layout(element.getClassName());
+		}
+		if (created != null) {
+			_layouts.putIfAbsent(type, created);
+		}
+		return created;
+	}
+
+	private static class Layout {
+		private final DataShapeDefinition shape = new DataShapeDefinition();
+		private final List<Field> fields = new ArrayList<Field>();
+		private final boolean indexed;
+
+		/**
+		 * Layout of the rows of a composite type.
+		 */
+		private Layout(CompositeType type, int depth) {
+			indexed = false;
+			for (String key : type.keySet()) {
+				final OpenType<?> item_type = type.getType(key);
+				if (item_type instanceof CompositeType && depth < MAX_DEPTH) {
+					final CompositeType nested = (CompositeType) item_type;
+					for (String nested_key : nested.keySet()) {
+						add(new Field(key + JMXServerTemplate.COMPOSITE_SEP + nested_key, key, nested_key,
+								nested.getType(nested_key), depth));
+					}
+				} else {
+					add(new Field(key, key, null, item_type, depth));
+				}
+			}
+		}
+
+		/**
+		 * Layout of the elements of an array of simple values.
+		 */
+		private Layout(String componentType) {
+			indexed = true;
+			final BaseTypes type = JMXServerTemplate.JavaTypeToBaseType(componentType);
+			add(new Field("index", BaseTypes.INTEGER));
+			// arrays of arrays are not expanded further
+			add(new Field("value", type == BaseTypes.INFOTABLE ? BaseTypes.STRING : type));
+		}
+
+		private void add(Field field) {
+			final FieldDefinition definition = new FieldDefinition(field.name, field.type);
+			definition.setOrdinal(fields.size());
+			shape.addFieldDefinition(definition);
+			fields.add(field);
+		}
+
+		private InfoTable toInfoTable(Object value, int maxRows) throws Exception {
+			final InfoTable it = new InfoTable(shape);
+			if (value instanceof TabularData) {
+				for (Object row : ((TabularData) value).values()) {
+					if (it.getRowCount() >= maxRows) {
+						break;
+					}
+					it.addRow(toRow((CompositeData) row, maxRows));
+				}
+			} else if (value instanceof CompositeData) {
+				it.addRow(toRow((CompositeData) value, maxRows));
+			} else if (!indexed) {
+				for (CompositeData row : (CompositeData[]) value) {
+					if (it.getRowCount() >= maxRows) {
+						break;
+					}
+					if (row != null) {
+						it.addRow(toRow(row, maxRows));
+					}
+				}
+			} else {
+				final Field field = fields.get(1);
+				final int length = Math.min(Array.getLength(value), maxRows);
+				for (int i = 0; i < length; i++) {
+					final ValueCollection row = new ValueCollection();
+					row.put("index", new IntegerPrimitive(i));
+					final Object element = Array.get(value, i);
+					if (element != null) {
+						row.put(field.name, field.converter.convert(element));
+					}
+					it.addRow(row);
+				}
+			}
+			return it;
+		}
+
+		private ValueCollection toRow(CompositeData data, int maxRows) throws Exception {
+			final ValueCollection row = new ValueCollection();
+			for (Field field : fields) {
+				Object item = data.get(field.key);
+				if (field.nestedKey != null) {
+					item = item instanceof CompositeData ? ((CompositeData) item).get(field.nestedKey) : null;
+				}
+				if (item == null) {
+					continue;
+				}
+				final IPrimitiveType value;
+				if (field.nested != null) {
+					value = new InfoTablePrimitive(field.nested.toInfoTable(item, maxRows));
+				} else {
+					value = field.converter.convert(item);
+				}
+				row.put(field.name, value);
+			}
+			return row;
+		}
+	}
+
+	private static class Field {
+		private final String name;
+		private final String key;
+		private final String nestedKey;
+		private final BaseTypes type;
+		private final ReadPlan.Converter converter;
+		private final Layout nested;
+
+		private Field(String name, BaseTypes type) {
+			this.name = name;
+			this.key = name;
+			this.nestedKey = null;
+			this.type = type;
+			this.converter = ReadPlan.getConverter(type);
+			this.nested = null;
+		}
+
+		private Field(String name, String key, String nestedKey, OpenType<?> openType, int depth) {
+			this.name = name;
+			this.key = key;
+			this.nestedKey = nestedKey;
+			final boolean table = openType instanceof TabularType || openType instanceof ArrayType
+					|| openType instanceof CompositeType;
+			this.nested = table && depth < MAX_DEPTH ? getLayout(openType, depth + 1) : null;
+			this.type = nested != null ? BaseTypes.INFOTABLE
+					: table ? BaseTypes.STRING : JMXServerTemplate.JavaTypeToBaseType(openType.getClassName());
+			this.converter = ReadPlan.getConverter(type);
+		}
+	}
+}
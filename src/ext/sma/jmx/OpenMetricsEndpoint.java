@@ -0,0 +1,83 @@
+package ext.sma.jmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.thingworx.logging.LogUtilities;
+
+/**
+ * Local HTTP listener serving the OpenMetrics snapshots of the containers of
+ * a server on /metrics, for the Prometheus scrapes.
+ * <p>
+ * The requests are served by a single thread, outside of the ThingWorx
+ * security context: they only read the snapshots.
+ */
+class OpenMetricsEndpoint {
+
+	static final String PATH = "/metrics";
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(OpenMetricsEndpoint.class);
+
+	private final String _serverName;
+	private final HttpServer _http;
+	private final ExecutorService _executor;
+
+	OpenMetricsEndpoint(String serverName, String address, int port) throws IOException {
+		_serverName = serverName;
+		_http = HttpServer.create(new InetSocketAddress(address, port), 0);
+		_executor = Executors.newSingleThreadExecutor(JMXExecutors.daemonThreadFactory("jmx-metrics"));
+		_http.createContext(PATH, this::handle);
+		_http.setExecutor(_executor);
+		_http.start();
+	}
+
+	InetSocketAddress getAddress() {
+		return _http.getAddress();
+	}
+
+	void close() {
+		_http.stop(0);
+		_executor.shutdown();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			final String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			final byte[] body;
+			try {
+				body = OpenMetricsSnapshot.write(ContainerRegistry.getMetrics(_serverName))
+						.getBytes(StandardCharsets.UTF_8);
+			} catch (Exception ex) {
+				_logger.warn("Error serving the metrics of {} because {}.", _serverName, ex.getMessage());
+				exchange.sendResponseHeaders(500, -1);
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", OpenMetricsSnapshot.CONTENT_TYPE);
+			if ("HEAD".equals(method)) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
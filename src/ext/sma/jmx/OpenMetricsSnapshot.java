@@ -0,0 +1,295 @@
+package ext.sma.jmx;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+
+/**
+ * Latest values of the mbean:attr properties of a container, rendered as
+ * OpenMetrics samples during the refresh and swapped in as a whole after it,
+ * so a scrape never reads the MBeans nor the Thing properties.
+ * <p>
+ * Only the numeric and boolean values are exported, as gauges named
+ * jmx_&lt;domain&gt;_&lt;attribute&gt;[_&lt;key&gt;] and labelled by container, server
+ * and the keys of the ObjectName. A pattern binding has one sample per MBean.
+ * The series of a binding are rendered once and cached by it, a refresh only
+ * records the values.
+ * <p>
+ * The sanitized names can collide: two keys of an ObjectName giving the same
+ * label are told apart by a suffix (_2, _3...), and a metric name rendered
+ * from two different attributes (e.g. a.b and a_b) is only written for the
+ * first one, the other is skipped with a warning.
+ */
+class OpenMetricsSnapshot {
+
+	static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+	static final String METRIC_PREFIX = "jmx_";
+	static final Sample[] NO_SAMPLES = new Sample[0];
+	static final int MAX_SERIES = 1000;
+	static final OpenMetricsSnapshot EMPTY = new OpenMetricsSnapshot(Collections.<String, Sample[]>emptyMap());
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(OpenMetricsSnapshot.class);
+
+	// metric names already reported as colliding
+	private static final Set<String> _collisions = ConcurrentHashMap.newKeySet();
+
+	// samples by property name
+	private final Map<String, Sample[]> _samples;
+
+	private OpenMetricsSnapshot(Map<String, Sample[]> samples) {
+		_samples = samples;
+	}
+
+	/**
+	 * Name and labels of the series of an attribute on an MBean, rendered once
+	 * and cached by the binding.
+	 */
+	static class Series {
+		final String server;
+		final String family;
+		// domain and attribute the family was rendered from
+		final String source;
+		final String name;
+
+		private Series(String server, String family, String source, String name) {
+			this.server = server;
+			this.family = family;
+			this.source = source;
+			this.name = name;
+		}
+	}
+
+	static class Sample {
+		final Series series;
+		final String value;
+		final long time;
+
+		private Sample(Series series, String value, long time) {
+			this.series = series;
+			this.value = value;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Returns the snapshot with the samples of the refreshed properties
+	 * replaced, an empty array removing the property (failed or skipped read).
+	 */
+	OpenMetricsSnapshot merge(Map<String, Sample[]> refreshed) {
+		if (refreshed.isEmpty()) {
+			return this;
+		}
+		final Map<String, Sample[]> samples = new HashMap<String, Sample[]>(_samples);
+		for (Map.Entry<String, Sample[]> entry : refreshed.entrySet()) {
+			if (entry.getValue().length == 0) {
+				samples.remove(entry.getKey());
+			} else {
+				samples.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return new OpenMetricsSnapshot(samples);
+	}
+
+	/**
+	 * Returns the series of the binding on the MBean, rendered on first use
+	 * (or when the container moved to another server), or null if the
+	 * ObjectName is invalid.
+	 */
+	static Series getSeries(ReadPlan.Binding binding, String server, String container, String objectName,
+			ObjectName oname) {
+		final Map<String, Series> cached = binding.series;
+		Series series = cached.get(objectName);
+		if (series != null && series.server.equals(server)) {
+			return series;
+		}
+		if (oname == null) {
+			try {
+				oname = new ObjectName(objectName);
+			} catch (MalformedObjectNameException ex) {
+				return null;
+			}
+		}
+
+		final String attribute = binding.key != null
+				? binding.attribute + JMXServerTemplate.COMPOSITE_SEP + binding.key
+				: binding.attribute;
+		final String family = METRIC_PREFIX + sanitize(oname.getDomain()) + "_" + sanitize(attribute);
+		final StringBuilder sb = new StringBuilder(family.length() + 64);
+		sb.append(family).append("{container=\"");
+		escape(sb, container);
+		sb.append("\",server=\"");
+		escape(sb, server);
+		sb.append('"');
+		final Set<String> labels = new HashSet<String>();
+		labels.add("container");
+		labels.add("server");
+		for (Map.Entry<String, String> key : new TreeMap<String, String>(oname.getKeyPropertyList()).entrySet()) {
+			String label = sanitize(key.getKey());
+			if ("container".equals(label) || "server".equals(label)) {
+				label = "mbean_" + label;
+			}
+			// keys sanitized to the same label (e.g. a.b and a_b), in the order of the keys
+			final String base = label;
+			for (int i = 2; !labels.add(label); i++) {
+				label = base + "_" + i;
+			}
+			sb.append(',').append(label).append("=\"");
+			escape(sb, unquote(key.getValue()));
+			sb.append('"');
+		}
+		sb.append('}');
+
+		series = new Series(server, family, oname.getDomain() + ":" + attribute, sb.toString());
+		// replaced rather than updated, a concurrent lookup never sees it cleared; a series
+		// lost to a concurrent refresh of the binding is only rendered again
+		final Map<String, Series> updated = cached.size() >= MAX_SERIES
+				// MBeans of a pattern coming and going
+				? new HashMap<String, Series>()
+				: new HashMap<String, Series>(cached);
+		updated.put(objectName, series);
+		binding.series = updated;
+		return series;
+	}
+
+	/**
+	 * Returns the sample of an attribute value, or null if the value is neither
+	 * a number nor a boolean.
+	 */
+	static Sample sample(Series series, Object value, long time) {
+		final String number = formatValue(value);
+		return number != null ? new Sample(series, number, time) : null;
+	}
+
+	private static String formatValue(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value ? "1" : "0";
+		}
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+				|| value instanceof AtomicLong || value instanceof AtomicInteger || value instanceof BigInteger) {
+			return value.toString();
+		}
+		if (value instanceof Number) {
+			final double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d)) {
+				return "NaN";
+			}
+			if (Double.isInfinite(d)) {
+				return d > 0 ? "+Inf" : "-Inf";
+			}
+			return Double.toString(d);
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the characters not allowed in a metric or label name.
+	 */
+	static String sanitize(String name) {
+		final StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (c >= '0' && c <= '9' && i > 0)) {
+				sb.append(c);
+			} else {
+				sb.append('_');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void escape(StringBuilder sb, String value) {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '\\') {
+				sb.append("\\\\");
+			} else if (c == '"') {
+				sb.append("\\\"");
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	private static String unquote(String value) {
+		if (value.length() > 1 && value.startsWith("\"")) {
+			try {
+				return ObjectName.unquote(value);
+			} catch (IllegalArgumentException ex) {
+				// kept as is
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Writes the samples of the snapshots as one OpenMetrics exposition,
+	 * grouped by metric family.
+	 */
+	static String write(List<OpenMetricsSnapshot> snapshots) {
+		final List<Sample> samples = new ArrayList<Sample>();
+		for (OpenMetricsSnapshot snapshot : snapshots) {
+			for (Sample[] property_samples : snapshot._samples.values()) {
+				Collections.addAll(samples, property_samples);
+			}
+		}
+		// each family contiguous, its sources in a stable order
+		samples.sort((a, b) -> {
+			int c = a.series.family.compareTo(b.series.family);
+			if (c == 0) {
+				c = a.series.source.compareTo(b.series.source);
+			}
+			return c != 0 ? c : a.series.name.compareTo(b.series.name);
+		});
+
+		final StringBuilder sb = new StringBuilder(samples.size() * 128 + 8);
+		String family = null;
+		String source = null;
+		String series = null;
+		for (Sample sample : samples) {
+			if (!sample.series.family.equals(family)) {
+				family = sample.series.family;
+				source = sample.series.source;
+				sb.append("# TYPE ").append(family).append(" gauge\n");
+			} else if (!sample.series.source.equals(source)) {
+				// another attribute sanitized to the same name, its series could be duplicates
+				if (_collisions.size() < MAX_SERIES && _collisions.add(family)) {
+					_logger.warn("OpenMetrics samples of {} skipped because {} is already the name of {}.",
+							sample.series.source, family, source);
+				}
+				continue;
+			}
+			if (sample.series.name.equals(series)) {
+				// same attribute bound twice in a container
+				continue;
+			}
+			series = sample.series.name;
+			// OpenMetrics timestamps are in seconds
+			final long millis = sample.time % 1000;
+			sb.append(series).append(' ').append(sample.value).append(' ').append(sample.time / 1000).append('.')
+					.append(millis < 10 ? "00" : millis < 100 ? "0" : "").append(millis).append('\n');
+		}
+		sb.append("# EOF\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package ext.sma.jmx;
+
+import java.util.List;
+
+import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.NumberPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Values of the properties bound to an ObjectName pattern: an aggregate of
+ * the attribute over the matching MBeans, or one row per MBean.
+ */
+class PatternValues {
+
+	private PatternValues() {
+	}
+
+	/**
+	 * Returns the sum / min / max / avg of the numeric values (null if none), or
+	 * the number of MBeans read for count.
+	 */
+	static Object aggregate(String category, List<Object> values) throws Exception {
+		if (JMXMBeanContainerTemplate.COUNT_CATEGORY.equals(category)) {
+			return values.size();
+		}
+		if (!JMXMBeanContainerTemplate.isAggregateCategory(category)) {
+			throw new Exception("a pattern needs an aggregate binding (sum, min, max, avg, count) or an INFOTABLE");
+		}
+
+		int count = 0;
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (Object value : values) {
+			if (value instanceof Number) {
+				final double v = ((Number) value).doubleValue();
+				count++;
+				sum += v;
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+		}
+		if (JMXMBeanContainerTemplate.SUM_CATEGORY.equals(category)) {
+			return sum;
+		}
+		if (count == 0) {
+			return null;
+		}
+		if (JMXMBeanContainerTemplate.MIN_CATEGORY.equals(category)) {
+			return min;
+		}
+		if (JMXMBeanContainerTemplate.MAX_CATEGORY.equals(category)) {
+			return max;
+		}
+		return sum / count;
+	}
+
+	/**
+	 * Returns one row per MBean (JMX.MBeanAttributeValues).
+	 */
+	static InfoTable toInfoTable(List<String> names, List<Object> values) throws Exception {
+		final InfoTable it = InfoTableInstanceFactory
+				.createInfoTableFromDataShape(JMXMBeanContainerTemplate.PATTERN_DATASHAPE);
+		for (int i = 0; i < names.size(); i++) {
+			final Object value = values.get(i);
+			final ValueCollection row = new ValueCollection();
+			row.put("objectName", new StringPrimitive(names.get(i)));
+			if (value != null) {
+				row.put("value", new StringPrimitive(value.toString()));
+			}
+			if (value instanceof Number) {
+				row.put("number", new NumberPrimitive(((Number) value).doubleValue()));
+			}
+			it.addRow(row);
+		}
+		return it;
+	}
+}
@@ -0,0 +1,151 @@
+package ext.sma.jmx;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.primitives.BooleanPrimitive;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.InfoTablePrimitive;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.LongPrimitive;
+import com.thingworx.types.primitives.NumberPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Bindings of the MBean properties of a container, compiled once (ObjectName,
+ * attribute, composite key, converter) instead of at each refresh.
+ * <p>
+ * A binding is compiled again when the definition of its property changes,
+ * and dropped by the container when the property is removed or redefined.
+ */
+class ReadPlan {
+
+	private final Map<String, Binding> _bindings = new ConcurrentHashMap<String, Binding>();
+
+	/**
+	 * Returns the compiled binding of the property.
+	 */
+	Binding get(PropertyDefinition prop_def) {
+		Binding binding = _bindings.get(prop_def.getName());
+		if (binding == null || binding.property != prop_def) {
+			binding = new Binding(prop_def);
+			_bindings.put(prop_def.getName(), binding);
+		}
+		return binding;
+	}
+
+	/**
+	 * Drops the binding of a property removed or redefined.
+	 */
+	void remove(String name) {
+		_bindings.remove(name);
+	}
+
+	void clear() {
+		_bindings.clear();
+	}
+
+	/**
+	 * Converts an attribute value to the primitive of a property.
+	 */
+	interface Converter {
+		IPrimitiveType convert(Object value) throws Exception;
+	}
+
+	/**
+	 * Returns a converter specialized for the base type, falling back to
+	 * BaseTypes.ConvertToPrimitive for the other values.
+	 */
+	static Converter getConverter(BaseTypes baseType) {
+		switch (baseType) {
+		case NUMBER:
+			return value -> value instanceof Number ? new NumberPrimitive(((Number) value).doubleValue())
+					: BaseTypes.ConvertToPrimitive(value, baseType);
+		case LONG:
+			return value -> value instanceof Number ? new LongPrimitive(((Number) value).longValue())
+					: BaseTypes.ConvertToPrimitive(value, baseType);
+		case INTEGER:
+			return value -> value instanceof Number ? new IntegerPrimitive(((Number) value).intValue())
+					: BaseTypes.ConvertToPrimitive(value, baseType);
+		case BOOLEAN:
+			return value -> value instanceof Boolean ? new BooleanPrimitive((Boolean) value)
+					: BaseTypes.ConvertToPrimitive(value, baseType);
+		case STRING:
+			return value -> value instanceof String ? new StringPrimitive((String) value)
+					: BaseTypes.ConvertToPrimitive(value, baseType);
+		case INFOTABLE:
+			return value -> value instanceof InfoTable ? new InfoTablePrimitive((InfoTable) value)
+					: BaseTypes.ConvertToPrimitive(value, baseType);
+		default:
+			return value -> BaseTypes.ConvertToPrimitive(value, baseType);
+		}
+	}
+
+	static class Binding {
+		final PropertyDefinition property;
+		final String name;
+		final StringPrimitive namePrimitive;
+		final String category;
+		final String mbean;
+		final ObjectName objectName;
+		final boolean pattern;
+		final String attribute;
+		final String key;
+		final boolean counter;
+		final boolean rate;
+		final boolean table;
+		final boolean exported;
+		final Converter converter;
+		// OpenMetrics series by resolved ObjectName, replaced as a whole (copy-on-write)
+		volatile Map<String, OpenMetricsSnapshot.Series> series = Collections.emptyMap();
+
+		private Binding(PropertyDefinition prop_def) {
+			property = prop_def;
+			name = prop_def.getName();
+			namePrimitive = new StringPrimitive(name);
+			category = prop_def.getCategory();
+			mbean = prop_def.getDescription();
+
+			ObjectName oname = null;
+			try {
+				oname = mbean != null && !mbean.isEmpty() ? new ObjectName(mbean) : null;
+			} catch (Exception ex) {
+				// alias or invalid name, resolved (or reported) at read time
+			}
+			objectName = oname;
+			pattern = oname != null && oname.isPattern();
+
+			final String[] attr_and_key = JMXServerTemplate
+					.splitAttributeName(JMXMBeanContainerTemplate.getAttributePath(prop_def));
+			attribute = attr_and_key[0];
+			key = attr_and_key[1];
+
+			rate = JMXMBeanContainerTemplate.RATE_CATEGORY.equals(category);
+			counter = rate || JMXMBeanContainerTemplate.DELTA_CATEGORY.equals(category);
+			// TabularData, composite and array attributes, converted to rows before the converter
+			table = !pattern && BaseTypes.INFOTABLE.equals(prop_def.getBaseType());
+			// mbean:attr values not converted to a table
+			exported = JMXMBeanContainerTemplate.MBEAN_CATEGORY.equals(category) && !table;
+			converter = getConverter(prop_def.getBaseType());
+		}
+
+		/**
+		 * Returns the value of the attribute, or of the item of a composite
+		 * attribute.
+		 */
+		Object getValue(Map<String, Object> attr_values) {
+			final Object attr_value = attr_values.get(attribute);
+			if (key != null && attr_value instanceof CompositeData) {
+				return ((CompositeData) attr_value).get(key);
+			}
+			return attr_value;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package ext.sma.jmx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.DatetimePrimitive;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.NumberPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Last samples of the numeric properties of a container, kept in fixed-size
+ * rings of primitives so the memory does not grow with the uptime.
+ * <p>
+ * The rings cover a time window rather than a number of samples: a sample is
+ * only kept if it is at least window / capacity after the last one kept, so
+ * a fast sampling is downsampled instead of shortening the window.
+ */
+class RollingStatistics {
+
+	private final int _capacity;
+	private final long _spacing;
+	private final Map<String, Ring> _rings = new ConcurrentHashMap<String, Ring>();
+
+	/**
+	 * @param window
+	 *            time covered by the rings (ms)
+	 */
+	RollingStatistics(int capacity, long window) {
+		_capacity = capacity;
+		_spacing = capacity > 0 ? Math.max(window, 0) / capacity : 0;
+	}
+
+	boolean isEnabled() {
+		return _capacity > 0;
+	}
+
+	void add(String name, long time, double value) {
+		if (_capacity > 0) {
+			_rings.computeIfAbsent(name, k -> new Ring(_capacity)).add(time, value, _spacing);
+		}
+	}
+
+	/**
+	 * Returns the min/max/mean/percentiles of the samples more recent than
+	 * since, one row per property (or only the given property), with the time
+	 * span they actually cover (start / end).
+	 */
+	List<ValueCollection> getStatistics(String name, long since) {
+		final List<ValueCollection> rows = new ArrayList<ValueCollection>();
+		final double[] window = new double[_capacity];
+		final long[] span = new long[2];
+		for (Map.Entry<String, Ring> ring : _rings.entrySet()) {
+			if (name != null && !name.isEmpty() && !name.equals(ring.getKey())) {
+				continue;
+			}
+			final int count = ring.getValue().copyWindow(since, window, span);
+			if (count == 0) {
+				continue;
+			}
+
+			Arrays.sort(window, 0, count);
+			double sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += window[i];
+			}
+
+			final ValueCollection values = new ValueCollection();
+			values.put("name", new StringPrimitive(ring.getKey()));
+			values.put("count", new IntegerPrimitive(count));
+			values.put("min", new NumberPrimitive(window[0]));
+			values.put("max", new NumberPrimitive(window[count - 1]));
+			values.put("mean", new NumberPrimitive(sum / count));
+			values.put("p50", new NumberPrimitive(percentile(window, count, 50)));
+			values.put("p95", new NumberPrimitive(percentile(window, count, 95)));
+			values.put("p99", new NumberPrimitive(percentile(window, count, 99)));
+			values.put("start", new DatetimePrimitive(new DateTime(span[0])));
+			values.put("end", new DatetimePrimitive(new DateTime(span[1])));
+			rows.add(values);
+		}
+		return rows;
+	}
+
+	private static double percentile(double[] sorted, int count, int percent) {
+		final int rank = (int) Math.ceil(percent / 100.0 * count);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+
+	private static class Ring {
+		private final long[] times;
+		private final double[] values;
+		private int next = 0;
+		private int size = 0;
+
+		private Ring(int capacity) {
+			times = new long[capacity];
+			values = new double[capacity];
+		}
+
+		private synchronized void add(long time, double value, long spacing) {
+			if (size > 0 && time - times[(next == 0 ? times.length : next) - 1] < spacing) {
+				// downsampled
+				return;
+			}
+			times[next] = time;
+			values[next] = value;
+			next = (next + 1) % times.length;
+			if (size < times.length) {
+				size++;
+			}
+		}
+
+		/**
+		 * Copies the values more recent than since, and the times of the oldest
+		 * and newest ones into span.
+		 */
+		private synchronized int copyWindow(long since, double[] out, long[] span) {
+			int count = 0;
+			for (int i = 0, idx = next; i < size; i++) {
+				idx = (idx == 0 ? times.length : idx) - 1;
+				if (times[idx] < since) {
+					break;
+				}
+				if (count == 0) {
+					span[1] = times[idx];
+				}
+				span[0] = times[idx];
+				out[count++] = values[idx];
+			}
+			return count;
+		}
+	}
+}
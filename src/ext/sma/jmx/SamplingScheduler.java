@@ -0,0 +1,119 @@
+package ext.sma.jmx;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+
+/**
+ * Single scheduler sampling all the MBean containers of the extension.
+ * <p>
+ * The timer thread only dispatches the ticks, the samples run on the refresh
+ * pool. The first tick of each container is delayed by a random jitter to
+ * spread the load, and a tick falling while the previous sample is still
+ * running is merged into it instead of being queued.
+ */
+class SamplingScheduler {
+
+	private static final ScheduledExecutorService _timer = Executors
+			.newSingleThreadScheduledExecutor(JMXExecutors.daemonThreadFactory("jmx-sampler"));
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(SamplingScheduler.class);
+
+	private SamplingScheduler() {
+	}
+
+	static Sampling schedule(String name, long interval, Runnable task) {
+		final Sampling sampling = new Sampling(name, interval, task);
+		sampling.start();
+		return sampling;
+	}
+
+	static class Sampling {
+		private final String name;
+		private final long interval;
+		private final Runnable task;
+		private final AtomicBoolean running = new AtomicBoolean(false);
+		// the cancellation and the rescheduling share the lock, a cancelled sampling is never scheduled again
+		private final Object lock = new Object();
+		private volatile boolean cancelled = false;
+		private ScheduledFuture<?> next = null;
+		private long nextTime;
+
+		private Sampling(String name, long interval, Runnable task) {
+			this.name = name;
+			this.interval = interval;
+			this.task = task;
+		}
+
+		private void start() {
+			final long jitter = ThreadLocalRandom.current().nextLong(interval);
+			nextTime = System.currentTimeMillis() + jitter;
+			scheduleTick(jitter);
+		}
+
+		void cancel() {
+			synchronized (lock) {
+				cancelled = true;
+				if (next != null) {
+					next.cancel(false);
+					next = null;
+				}
+			}
+		}
+
+		private void scheduleTick(long delay) {
+			synchronized (lock) {
+				if (!cancelled) {
+					next = _timer.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		private void tick() {
+			if (cancelled) {
+				return;
+			}
+
+			try {
+				if (running.compareAndSet(false, true)) {
+					try {
+						JMXExecutors.refresh().execute(JMXExecutors.asSuperUser(this::sample));
+					} catch (RuntimeException ex) {
+						// not dispatched, the next tick samples
+						running.set(false);
+						_logger.warn("Error dispatching the sampling of {} because {}.", name, ex.getMessage());
+					}
+				} else {
+					_logger.debug("Sampling of {} still running, tick merged.", name);
+				}
+			} finally {
+				// stay on the original time grid, dropping the ticks already missed
+				final long now = System.currentTimeMillis();
+				nextTime += interval;
+				if (nextTime <= now) {
+					nextTime += ((now - nextTime) / interval + 1) * interval;
+				}
+				scheduleTick(nextTime - now);
+			}
+		}
+
+		private void sample() {
+			try {
+				if (!cancelled) {
+					task.run();
+				}
+			} catch (Exception ex) {
+				_logger.warn("Error sampling {} because {}.", name, ex.getMessage());
+			} finally {
+				running.set(false);
+			}
+		}
+	}
+}
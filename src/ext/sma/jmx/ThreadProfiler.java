@@ -0,0 +1,592 @@
+package ext.sma.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServerConnection;
+
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.LongPrimitive;
+import com.thingworx.types.primitives.NumberPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+
+/**
+ * Samples the CPU time, blocked / waited counts and times (and optionally the
+ * stacks) of the threads of the monitored JVM through java.lang:type=Threading,
+ * to report the busiest threads over a recent window.
+ * <p>
+ * The counters are kept per thread id in rings of primitives (one slot per
+ * snapshot of the window). The sampling time is measured: above the overhead
+ * budget the stacks are dropped first, then the samples are spaced out, and
+ * both are restored once back well under the budget.
+ */
+class ThreadProfiler {
+
+	static final String CPU = "cpu";
+	static final String BLOCKED = "blocked";
+	static final String WAITED = "waited";
+
+	// snapshots kept per thread, samples are merged when the window needs more
+	private static final int MAX_SNAPSHOTS = 120;
+	private static final int MAX_STACK_SAMPLES = 256;
+	private static final int MAX_STACKS = 10000;
+	private static final int MAX_SKIP = 64;
+	private static final int ADJUST_EVERY = 10;
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(ThreadProfiler.class);
+
+	// profilers running per MBeanServer, the contention monitoring they enabled is restored by the last one
+	private static final Map<Object, ContentionUsers> _contentionUsers = new IdentityHashMap<Object, ContentionUsers>();
+
+	private final String _name;
+	private final ThreadMXBean _threads;
+	private final com.sun.management.ThreadMXBean _bulkThreads;
+	private final long _interval;
+	private final int _stackDepth;
+	private final double _budget;
+	private final int _capacity;
+	private final int _stride;
+	private Object _contentionKey;
+
+	private final LongMap<ThreadStats> _stats = new LongMap<ThreadStats>();
+	private final long[] _times;
+	private final Map<String, Integer> _stackIds = new HashMap<String, Integer>();
+	private final List<String> _stacks = new ArrayList<String>();
+	private final StringBuilder _stackBuffer = new StringBuilder();
+
+	private SamplingScheduler.Sampling _sampling = null;
+	private long _ticks = 0;
+	private long _samples = 0;
+	private long _snapshot = -1;
+	private int _skip = 1;
+	private boolean _stacksEnabled;
+	private double _averageNanos = 0;
+	private String _lastError = null;
+
+	/**
+	 * @param interval
+	 *            sampling interval (ms)
+	 * @param stackDepth
+	 *            frames kept per stack sample, 0 for no stacks
+	 * @param window
+	 *            longest window (ms) reported by getTopThreads
+	 * @param budget
+	 *            sampling time allowed, in % of the interval
+	 */
+	ThreadProfiler(String name, MBeanServerConnection mbs, boolean platform, long interval, int stackDepth,
+			long window, double budget) throws Exception {
+		_name = name;
+		if (platform) {
+			_threads = ManagementFactory.getThreadMXBean();
+		} else {
+			_threads = ManagementFactory.newPlatformMXBeanProxy(mbs, ManagementFactory.THREAD_MXBEAN_NAME,
+					ThreadMXBean.class);
+		}
+		_bulkThreads = getBulkThreads(mbs, platform);
+		_interval = Math.max(interval, 10);
+		_stackDepth = Math.max(stackDepth, 0);
+		_stacksEnabled = _stackDepth > 0;
+		_budget = Math.max(budget, 0.01) / 100;
+
+		final long samples = Math.max(window / _interval, 1);
+		_stride = (int) ((samples + MAX_SNAPSHOTS - 1) / MAX_SNAPSHOTS);
+		_capacity = (int) (samples / _stride) + 1;
+		_times = new long[_capacity];
+
+		// the blocked / waited times are only measured with the contention monitoring
+		_contentionKey = platform ? ManagementFactory.getPlatformMBeanServer() : mbs;
+		synchronized (_contentionUsers) {
+			ContentionUsers users = _contentionUsers.get(_contentionKey);
+			if (users == null) {
+				users = new ContentionUsers();
+				if (_threads.isThreadContentionMonitoringSupported()
+						&& !_threads.isThreadContentionMonitoringEnabled()) {
+					_threads.setThreadContentionMonitoringEnabled(true);
+					users.restore = true;
+				}
+				_contentionUsers.put(_contentionKey, users);
+			}
+			users.count++;
+		}
+	}
+
+	private static class ContentionUsers {
+		private int count = 0;
+		private boolean restore = false;
+	}
+
+	private static com.sun.management.ThreadMXBean getBulkThreads(MBeanServerConnection mbs, boolean platform) {
+		try {
+			if (platform) {
+				final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+				return threads instanceof com.sun.management.ThreadMXBean
+						? (com.sun.management.ThreadMXBean) threads
+						: null;
+			}
+			return ManagementFactory.newPlatformMXBeanProxy(mbs, ManagementFactory.THREAD_MXBEAN_NAME,
+					com.sun.management.ThreadMXBean.class);
+		} catch (Throwable ex) {
+			// not a HotSpot JVM, the CPU times are read one by one
+			return null;
+		}
+	}
+
+	void start() {
+		_sampling = SamplingScheduler.schedule(_name + " thread profiler", _interval, this::tick);
+	}
+
+	void stop() {
+		if (_sampling != null) {
+			_sampling.cancel();
+			_sampling = null;
+		}
+		releaseContentionMonitoring();
+	}
+
+	private void releaseContentionMonitoring() {
+		synchronized (_contentionUsers) {
+			if (_contentionKey == null) {
+				return;
+			}
+			final ContentionUsers users = _contentionUsers.get(_contentionKey);
+			if (users != null && --users.count == 0) {
+				_contentionUsers.remove(_contentionKey);
+				if (users.restore) {
+					try {
+						_threads.setThreadContentionMonitoringEnabled(false);
+					} catch (Exception ex) {
+						_logger.warn("Error restoring the thread contention monitoring of {} because {}.", _name,
+								ex.getMessage());
+					}
+				}
+			}
+			_contentionKey = null;
+		}
+	}
+
+	private void tick() {
+		if (_ticks++ % _skip != 0) {
+			return;
+		}
+		final long start = System.nanoTime();
+		try {
+			sample(System.currentTimeMillis());
+			_lastError = null;
+		} catch (Exception ex) {
+			if (_lastError == null) {
+				_logger.warn("Error sampling the threads of {} because {}.", _name, ex.getMessage());
+			}
+			_lastError = ex.getMessage();
+		}
+		adjust(System.nanoTime() - start);
+	}
+
+	/**
+	 * Keeps the sampling time under the budget: drops the stacks first, then
+	 * doubles the sampling interval (and the other way round).
+	 */
+	private synchronized void adjust(long nanos) {
+		_averageNanos = _averageNanos == 0 ? nanos : _averageNanos * 0.8 + nanos * 0.2;
+		if (_samples % ADJUST_EVERY != 0) {
+			return;
+		}
+		final double overhead = getOverhead();
+		if (overhead > _budget) {
+			if (_stacksEnabled) {
+				_stacksEnabled = false;
+				_logger.info("Thread profiler of {} over budget ({} %), stacks disabled.", _name, overhead * 100);
+			} else if (_skip < MAX_SKIP) {
+				_skip *= 2;
+				_logger.info("Thread profiler of {} over budget ({} %), sampling every {} ms.", _name,
+						overhead * 100, _interval * _skip);
+			}
+		} else if (overhead < _budget / 4) {
+			if (_skip > 1) {
+				_skip /= 2;
+			} else if (!_stacksEnabled && _stackDepth > 0) {
+				_stacksEnabled = true;
+			}
+		}
+	}
+
+	private double getOverhead() {
+		return _averageNanos / (_interval * _skip * 1000000.0);
+	}
+
+	private synchronized void sample(long now) throws Exception {
+		final long[] ids = _threads.getAllThreadIds();
+		final long[] cpu_times = getThreadCpuTimes(ids);
+		final boolean stacks = _stacksEnabled;
+		final ThreadInfo[] infos = _threads.getThreadInfo(ids, stacks ? _stackDepth : 0);
+
+		final boolean snapshot = _samples++ % _stride == 0;
+		if (snapshot) {
+			_snapshot++;
+		}
+		// a slot holds the last values of its snapshot, and their time
+		final int slot = (int) (_snapshot % _capacity);
+		_times[slot] = now;
+
+		for (int i = 0; i < ids.length; i++) {
+			final ThreadInfo info = infos[i];
+			if (info == null) {
+				// ended meanwhile
+				continue;
+			}
+			ThreadStats stats = _stats.get(ids[i]);
+			if (stats == null) {
+				stats = new ThreadStats(_capacity, _snapshot);
+				_stats.put(ids[i], stats);
+			}
+			final long cpu_time = cpu_times[i];
+			final boolean busy = stats.lastCpuTime >= 0 && cpu_time > stats.lastCpuTime;
+			stats.lastCpuTime = cpu_time;
+			stats.lastSnapshot = _snapshot;
+			stats.name = info.getThreadName();
+			stats.state = info.getThreadState();
+			stats.cpuTimes[slot] = Math.max(cpu_time, 0);
+			stats.blockedCounts[slot] = info.getBlockedCount();
+			stats.blockedTimes[slot] = Math.max(info.getBlockedTime(), 0);
+			stats.waitedCounts[slot] = info.getWaitedCount();
+			stats.waitedTimes[slot] = Math.max(info.getWaitedTime(), 0);
+
+			// stacks of the threads running since the previous sample
+			if (stacks && busy && info.getThreadState() == Thread.State.RUNNABLE) {
+				final int stack_id = getStackId(info.getStackTrace());
+				if (stack_id >= 0) {
+					stats.addStack(now, stack_id);
+				}
+			}
+		}
+
+		// forget the threads gone for longer than the window
+		if (snapshot && _snapshot % _capacity == 0) {
+			final long expired = _snapshot - _capacity;
+			_stats.retain(stats -> stats.lastSnapshot > expired);
+		}
+	}
+
+	private long[] getThreadCpuTimes(long[] ids) {
+		if (_bulkThreads != null) {
+			try {
+				return _bulkThreads.getThreadCpuTime(ids);
+			} catch (Exception ex) {
+				// fall back to one call per thread
+			}
+		}
+		final long[] cpu_times = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			cpu_times[i] = _threads.getThreadCpuTime(ids[i]);
+		}
+		return cpu_times;
+	}
+
+	private int getStackId(StackTraceElement[] frames) {
+		if (frames.length == 0) {
+			return -1;
+		}
+		final StringBuilder buffer = _stackBuffer;
+		buffer.setLength(0);
+		for (int i = 0; i < frames.length; i++) {
+			if (i > 0) {
+				buffer.append(" <- ");
+			}
+			buffer.append(frames[i].getClassName()).append('.').append(frames[i].getMethodName());
+			if (frames[i].getLineNumber() >= 0) {
+				buffer.append(':').append(frames[i].getLineNumber());
+			}
+		}
+		final String stack = buffer.toString();
+		Integer id = _stackIds.get(stack);
+		if (id == null) {
+			if (_stacks.size() >= MAX_STACKS) {
+				return -1;
+			}
+			id = _stacks.size();
+			_stacks.add(stack);
+			_stackIds.put(stack, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the top threads over the window (ms, 0 for the whole profile
+	 * window), sorted by cpu, blocked or waited time.
+	 */
+	synchronized List<ValueCollection> getTopThreads(int count, long window, String sortBy) {
+		final List<ValueCollection> rows = new ArrayList<ValueCollection>();
+		if (_snapshot < 0) {
+			return rows;
+		}
+		final long now = _times[(int) (_snapshot % _capacity)];
+		final long since = window > 0 ? now - window : Long.MIN_VALUE;
+		long oldest = _snapshot;
+		while (oldest > 0 && oldest > _snapshot - _capacity + 1
+				&& _times[(int) ((oldest - 1) % _capacity)] >= since) {
+			oldest--;
+		}
+		final long first = oldest;
+		final int last_slot = (int) (_snapshot % _capacity);
+		final long elapsed_ms = Math.max(now - _times[(int) (first % _capacity)], 1);
+		final long stacks_since = _times[(int) (first % _capacity)];
+
+		final List<ThreadStats> active = new ArrayList<ThreadStats>();
+		final List<long[]> deltas = new ArrayList<long[]>();
+		_stats.forEach((id, stats) -> {
+			if (stats.lastSnapshot != _snapshot) {
+				return;
+			}
+			final int from = (int) (Math.max(first, stats.firstSnapshot) % _capacity);
+			active.add(stats);
+			deltas.add(new long[] { id, stats.cpuTimes[last_slot] - stats.cpuTimes[from],
+					stats.blockedCounts[last_slot] - stats.blockedCounts[from],
+					stats.blockedTimes[last_slot] - stats.blockedTimes[from],
+					stats.waitedCounts[last_slot] - stats.waitedCounts[from],
+					stats.waitedTimes[last_slot] - stats.waitedTimes[from] });
+		});
+
+		final int sort_index = BLOCKED.equals(sortBy) ? 3 : WAITED.equals(sortBy) ? 5 : 1;
+		final Integer[] order = new Integer[active.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(deltas.get(b)[sort_index], deltas.get(a)[sort_index]));
+
+		for (int i = 0; i < Math.min(count, order.length); i++) {
+			final ThreadStats stats = active.get(order[i]);
+			final long[] delta = deltas.get(order[i]);
+			final ValueCollection values = new ValueCollection();
+			values.put("threadId", new LongPrimitive(delta[0]));
+			values.put("name", new StringPrimitive(stats.name));
+			values.put("state", new StringPrimitive(String.valueOf(stats.state)));
+			values.put("cpuTime", new NumberPrimitive(delta[1] / 1000000.0));
+			values.put("cpuPercent", new NumberPrimitive(delta[1] / 10000.0 / elapsed_ms));
+			values.put("blockedCount", new LongPrimitive(delta[2]));
+			values.put("blockedTime", new LongPrimitive(delta[3]));
+			values.put("waitedCount", new LongPrimitive(delta[4]));
+			values.put("waitedTime", new LongPrimitive(delta[5]));
+			stats.putTopStack(values, stacks_since, _stacks);
+			rows.add(values);
+		}
+		return rows;
+	}
+
+	synchronized String getStatus() {
+		return String.format(
+				"%d threads, %d samples every %d ms (%.3f %% of the time, budget %.3f %%), stacks %s, window %d ms%s",
+				_stats.size(), _samples, _interval * _skip, getOverhead() * 100, _budget * 100,
+				_stacksEnabled ? "on (" + _stacks.size() + " distinct)" : "off", _interval * _stride * (_capacity - 1),
+				_lastError != null ? ", last error: " + _lastError : "");
+	}
+
+	/**
+	 * Counters of a thread at each snapshot of the window, and its last stack
+	 * samples.
+	 */
+	private static class ThreadStats {
+		private final long firstSnapshot;
+		private final long[] cpuTimes;
+		private final long[] blockedCounts;
+		private final long[] blockedTimes;
+		private final long[] waitedCounts;
+		private final long[] waitedTimes;
+		private long[] stackTimes = null;
+		private int[] stackIds = null;
+		private int stackCount = 0;
+		private long lastSnapshot;
+		private long lastCpuTime = -1;
+		private String name;
+		private Thread.State state;
+
+		private ThreadStats(int capacity, long snapshot) {
+			firstSnapshot = snapshot;
+			lastSnapshot = snapshot;
+			cpuTimes = new long[capacity];
+			blockedCounts = new long[capacity];
+			blockedTimes = new long[capacity];
+			waitedCounts = new long[capacity];
+			waitedTimes = new long[capacity];
+		}
+
+		private void addStack(long time, int stack_id) {
+			if (stackIds == null) {
+				stackTimes = new long[MAX_STACK_SAMPLES];
+				stackIds = new int[MAX_STACK_SAMPLES];
+			}
+			final int slot = stackCount++ % MAX_STACK_SAMPLES;
+			stackTimes[slot] = time;
+			stackIds[slot] = stack_id;
+		}
+
+		/**
+		 * Adds the most sampled stack since the time (and its number of samples).
+		 */
+		private void putTopStack(ValueCollection values, long since, List<String> stacks) {
+			int samples = 0;
+			int top_id = -1;
+			int top_count = 0;
+			if (stackIds != null) {
+				final IntCounter counter = new IntCounter();
+				for (int i = 0; i < Math.min(stackCount, MAX_STACK_SAMPLES); i++) {
+					if (stackTimes[i] >= since) {
+						samples++;
+						final int count = counter.increment(stackIds[i]);
+						if (count > top_count) {
+							top_count = count;
+							top_id = stackIds[i];
+						}
+					}
+				}
+			}
+			values.put("stackSamples", new IntegerPrimitive(samples));
+			if (top_id >= 0) {
+				values.put("topStack", new StringPrimitive(stacks.get(top_id)));
+				values.put("topStackSamples", new IntegerPrimitive(top_count));
+			}
+		}
+	}
+
+	/**
+	 * Counts of small int keys (the stack samples of a thread).
+	 */
+	private static class IntCounter {
+		private int[] keys = new int[16];
+		private int[] counts = new int[16];
+		private int size = 0;
+
+		private int increment(int key) {
+			for (int i = 0; i < size; i++) {
+				if (keys[i] == key) {
+					return ++counts[i];
+				}
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			keys[size] = key;
+			counts[size] = 1;
+			return counts[size++];
+		}
+	}
+
+	/**
+	 * Open addressing map keyed by primitive longs (the thread ids), not boxing
+	 * the keys on each sample.
+	 */
+	private static class LongMap<V> {
+		private long[] keys = new long[64];
+		private Object[] values = new Object[64];
+		private int size = 0;
+
+		int size() {
+			return size;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(long key) {
+			final int mask = keys.length - 1;
+			for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+				if (values[i] == null) {
+					return null;
+				}
+				if (keys[i] == key) {
+					return (V) values[i];
+				}
+			}
+		}
+
+		void put(long key, V value) {
+			if ((size + 1) * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			final int mask = keys.length - 1;
+			for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+				if (values[i] == null) {
+					keys[i] = key;
+					values[i] = value;
+					size++;
+					return;
+				}
+				if (keys[i] == key) {
+					values[i] = value;
+					return;
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		void forEach(Visitor<V> visitor) {
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != null) {
+					visitor.visit(keys[i], (V) values[i]);
+				}
+			}
+		}
+
+		/**
+		 * Removes the entries not matching the predicate (rebuilding the table).
+		 */
+		@SuppressWarnings("unchecked")
+		void retain(java.util.function.Predicate<V> predicate) {
+			final long[] old_keys = keys;
+			final Object[] old_values = values;
+			int capacity = 64;
+			while (capacity < size * 2) {
+				capacity *= 2;
+			}
+			keys = new long[capacity];
+			values = new Object[capacity];
+			size = 0;
+			for (int i = 0; i < old_keys.length; i++) {
+				if (old_values[i] != null && predicate.test((V) old_values[i])) {
+					put(old_keys[i], (V) old_values[i]);
+				}
+			}
+		}
+
+		private void resize(int capacity) {
+			final long[] old_keys = keys;
+			final Object[] old_values = values;
+			keys = new long[capacity];
+			values = new Object[capacity];
+			size = 0;
+			for (int i = 0; i < old_keys.length; i++) {
+				if (old_values[i] != null) {
+					putUnchecked(old_keys[i], old_values[i]);
+				}
+			}
+		}
+
+		private void putUnchecked(long key, Object value) {
+			final int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (values[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			size++;
+		}
+
+		private static int mix(long key) {
+			final long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		interface Visitor<V> {
+			void visit(long key, V value);
+		}
+	}
+}
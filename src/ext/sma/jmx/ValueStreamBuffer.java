@@ -0,0 +1,150 @@
+package ext.sma.jmx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+
+import com.thingworx.logging.LogUtilities;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.IntegerPrimitive;
+import com.thingworx.types.primitives.LongPrimitive;
+
+/**
+ * Bounded buffer of value stream entries of a container.
+ * <p>
+ * The entries are collected across the sampling ticks and written by a
+ * background flush, every flushInterval or as soon as flushSize entries are
+ * pending. When the buffer is full the oldest entries are dropped. The
+ * pending entries are written when the container stops.
+ */
+class ValueStreamBuffer {
+
+	private static Logger _logger = LogUtilities.getInstance().getApplicationLogger(ValueStreamBuffer.class);
+
+	private final JMXMBeanContainerTemplate _container;
+	private final int _capacity;
+	private final int _flushSize;
+	private final ArrayDeque<Entry> _entries = new ArrayDeque<Entry>();
+	private final Object _flushLock = new Object();
+	private final AtomicBoolean _flushScheduled = new AtomicBoolean(false);
+	private volatile boolean _closed = false;
+
+	private final AtomicLong _queued = new AtomicLong();
+	private final AtomicLong _written = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+
+	ValueStreamBuffer(JMXMBeanContainerTemplate container, int capacity, int flushSize) {
+		_container = container;
+		_capacity = Math.max(capacity, 1);
+		_flushSize = Math.max(Math.min(flushSize, _capacity), 1);
+	}
+
+	void add(String name, IPrimitiveType value, DateTime time) {
+		final int pending;
+		synchronized (_entries) {
+			if (_closed) {
+				// a refresh ending after the stop of the container
+				_dropped.incrementAndGet();
+				_logger.debug("Value stream entry {} of {} dropped, the container is stopped.", name,
+						_container.getName());
+				return;
+			}
+			if (_entries.size() >= _capacity) {
+				_entries.pollFirst();
+				_dropped.incrementAndGet();
+			}
+			_entries.addLast(new Entry(name, value, time));
+			pending = _entries.size();
+		}
+		_queued.incrementAndGet();
+
+		if (pending >= _flushSize && _flushScheduled.compareAndSet(false, true)) {
+			JMXExecutors.refresh().execute(JMXExecutors.asSuperUser(() -> {
+				_flushScheduled.set(false);
+				flush();
+			}));
+		}
+	}
+
+	/**
+	 * Writes all the pending entries to the value stream.
+	 */
+	void flush() {
+		synchronized (_flushLock) {
+			List<Entry> batch;
+			while (!(batch = drain()).isEmpty()) {
+				for (Entry entry : batch) {
+					try {
+						_container.addValueStreamEntry(entry.name, entry.value, entry.time);
+						_written.incrementAndGet();
+					} catch (Exception ex) {
+						_failed.incrementAndGet();
+						_logger.warn("Error writing {} of {} to the value stream because {}.", entry.name,
+								_container.getName(), ex.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending entries and refuses the next ones, on the stop of the
+	 * container. Reports the entries dropped since the buffer was created.
+	 */
+	void close() {
+		synchronized (_entries) {
+			_closed = true;
+		}
+		flush();
+		final long dropped = _dropped.get();
+		if (dropped > 0) {
+			_logger.warn("{} value stream entries of {} were dropped (buffer full).", dropped,
+					_container.getName());
+		}
+	}
+
+	private List<Entry> drain() {
+		synchronized (_entries) {
+			final List<Entry> batch = new ArrayList<Entry>(Math.min(_entries.size(), _flushSize));
+			while (batch.size() < _flushSize && !_entries.isEmpty()) {
+				batch.add(_entries.pollFirst());
+			}
+			return batch;
+		}
+	}
+
+	int getPending() {
+		synchronized (_entries) {
+			return _entries.size();
+		}
+	}
+
+	ValueCollection getStatistics() {
+		final ValueCollection values = new ValueCollection();
+		values.put("pending", new IntegerPrimitive(getPending()));
+		values.put("queued", new LongPrimitive(_queued.get()));
+		values.put("written", new LongPrimitive(_written.get()));
+		values.put("dropped", new LongPrimitive(_dropped.get()));
+		values.put("failed", new LongPrimitive(_failed.get()));
+		return values;
+	}
+
+	private static class Entry {
+		private final String name;
+		private final IPrimitiveType value;
+		private final DateTime time;
+
+		private Entry(String name, IPrimitiveType value, DateTime time) {
+			this.name = name;
+			this.value = value;
+			this.time = time;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package ext.sma.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Reads of a server on the io pool, only the ones given up after their
+ * deadline counting against the limit.
+ */
+public class BlockedReadsTest {
+
+	private static final int MAX = JMXServerTemplate.MAX_BLOCKED_READS;
+
+	@Test
+	public void readsCompletingInTimeAreNotLimited() throws Exception {
+		final BlockedReads reads = new BlockedReads(MAX);
+		final AtomicInteger done = new AtomicInteger();
+		final long deadline = System.currentTimeMillis() + 5000;
+
+		// more groups in one refresh than blocked reads allowed, all submitted before waiting
+		final List<BlockedReads.Read> pending = new ArrayList<BlockedReads.Read>();
+		for (int i = 0; i < MAX * 4; i++) {
+			final BlockedReads.Read read = reads.submit(done::incrementAndGet);
+			assertNotNull("read #" + i + " skipped", read);
+			pending.add(read);
+		}
+		for (BlockedReads.Read read : pending) {
+			assertTrue(read.await(deadline));
+		}
+		assertEquals(MAX * 4, done.get());
+		assertEquals(0, reads.getBlocked());
+	}
+
+	@Test
+	public void onlyTheReadsGivenUpAreCounted() throws Exception {
+		final BlockedReads reads = new BlockedReads(MAX);
+		final CountDownLatch getters = new CountDownLatch(1);
+		final Runnable hung = () -> {
+			// a getter ignoring the interruption
+			while (true) {
+				try {
+					getters.await();
+					return;
+				} catch (InterruptedException ex) {
+					// keeps blocking
+				}
+			}
+		};
+
+		final List<BlockedReads.Read> pending = new ArrayList<BlockedReads.Read>();
+		for (int i = 0; i < MAX; i++) {
+			pending.add(reads.submit(hung));
+		}
+		assertEquals("running reads are not blocked yet", 0, reads.getBlocked());
+		final long deadline = System.currentTimeMillis() + 200;
+		for (BlockedReads.Read read : pending) {
+			assertFalse(read.await(deadline));
+		}
+		assertEquals(MAX, reads.getBlocked());
+		assertNull(reads.submit(() -> {
+		}));
+
+		getters.countDown();
+		final long end = System.currentTimeMillis() + 5000;
+		while (reads.getBlocked() > 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, reads.getBlocked());
+		final BlockedReads.Read read = reads.submit(() -> {
+		});
+		assertNotNull(read);
+		assertTrue(read.await(System.currentTimeMillis() + 5000));
+	}
+}
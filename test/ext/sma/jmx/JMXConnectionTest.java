@@ -0,0 +1,216 @@
+package ext.sma.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Remote JMXConnection against a JMXConnectorServer on the loopback interface
+ * standing in for the monitored JVM.
+ */
+public class JMXConnectionTest {
+
+	private static final ObjectName TEST_MBEAN = newObjectName("ext.sma.jmx.test:type=Slow");
+
+	public interface SlowMBean {
+		int getFast();
+
+		int getSlow();
+	}
+
+	public static class Slow implements SlowMBean {
+		@Override
+		public int getFast() {
+			return 42;
+		}
+
+		@Override
+		public int getSlow() {
+			try {
+				Thread.sleep(3000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return 0;
+		}
+	}
+
+	private final MBeanServer _mbs = ManagementFactory.getPlatformMBeanServer();
+	private int _port;
+	private Registry _registry;
+	private JMXConnectorServer _server;
+	private JMXConnection _connection;
+
+	@Before
+	public void setUp() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			_port = socket.getLocalPort();
+		}
+		_registry = LocateRegistry.createRegistry(_port);
+		if (!_mbs.isRegistered(TEST_MBEAN)) {
+			_mbs.registerMBean(new Slow(), TEST_MBEAN);
+		}
+		_server = startServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (_connection != null) {
+			_connection.close();
+		}
+		if (_server != null) {
+			_server.stop();
+		}
+		UnicastRemoteObject.unexportObject(_registry, true);
+		if (_mbs.isRegistered(TEST_MBEAN)) {
+			_mbs.unregisterMBean(TEST_MBEAN);
+		}
+	}
+
+	private String getServiceUrl() {
+		return "service:jmx:rmi:///jndi/rmi://127.0.0.1:" + _port + "/jmxrmi";
+	}
+
+	private JMXConnectorServer startServer() throws Exception {
+		final JMXConnectorServer server = JMXConnectorServerFactory
+				.newJMXConnectorServer(new JMXServiceURL(getServiceUrl()), null, _mbs);
+		server.start();
+		return server;
+	}
+
+	@Test
+	public void connectsLazilyAndReads() throws Exception {
+		_connection = JMXConnection.remote(getServiceUrl(), null, null, 5000, 2000, 60000);
+		assertTrue(_connection.getStatus().startsWith("not connected"));
+
+		final MBeanServerConnection mbs = _connection.getConnection();
+		assertEquals(42, mbs.getAttribute(TEST_MBEAN, "Fast"));
+		assertTrue(_connection.getStatus().startsWith("connected"));
+	}
+
+	@Test
+	public void readTimeoutOnlyFailsTheCall() throws Exception {
+		_connection = JMXConnection.remote(getServiceUrl(), null, null, 5000, 300, 60000);
+		final MBeanServerConnection mbs = _connection.getConnection();
+
+		final long start = System.currentTimeMillis();
+		try {
+			mbs.getAttribute(TEST_MBEAN, "Slow");
+			fail("slow getter not timed out");
+		} catch (IOException ex) {
+			assertTrue(ex.getMessage().startsWith("Timed out"));
+		}
+		assertTrue(System.currentTimeMillis() - start < 2000);
+
+		// the connector is kept, no reconnect
+		assertSame(mbs, _connection.getConnection());
+		assertEquals(42, mbs.getAttribute(TEST_MBEAN, "Fast"));
+	}
+
+	@Test
+	public void deadTargetDoesNotBlockTheCaller() throws Exception {
+		// accepts the connections but never answers
+		try (ServerSocket dead = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			_connection = JMXConnection.remote(
+					"service:jmx:rmi:///jndi/rmi://127.0.0.1:" + dead.getLocalPort() + "/jmxrmi", null, null, 300,
+					300, 60000);
+			for (int i = 0; i < 2; i++) {
+				final long start = System.currentTimeMillis();
+				try {
+					_connection.getConnection();
+					fail("connected to a dead target");
+				} catch (IOException ex) {
+					// expected
+				}
+				assertTrue(System.currentTimeMillis() - start < 2000);
+			}
+		}
+	}
+
+	@Test
+	public void reconnectsWithBackoffAfterARestart() throws Exception {
+		_connection = JMXConnection.remote(getServiceUrl(), null, null, 2000, 2000, 60000);
+		final MBeanServerConnection first = _connection.getConnection();
+		assertEquals(42, first.getAttribute(TEST_MBEAN, "Fast"));
+
+		_server.stop();
+		_server = null;
+		try {
+			first.getAttribute(TEST_MBEAN, "Fast");
+			fail("read through a stopped server");
+		} catch (IOException ex) {
+			// the connector is dropped
+		}
+
+		// one reconnect attempt fails, the next ones wait for the backoff delay
+		try {
+			_connection.getConnection();
+			fail("connected to a stopped server");
+		} catch (IOException ex) {
+			// expected
+		}
+		final long start = System.currentTimeMillis();
+		try {
+			_connection.getConnection();
+			fail("reconnect attempt before the backoff delay");
+		} catch (IOException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("next attempt"));
+		}
+		assertTrue(System.currentTimeMillis() - start < 500);
+
+		_server = startServer();
+		final long deadline = System.currentTimeMillis() + 10000;
+		MBeanServerConnection second = null;
+		while (second == null) {
+			try {
+				second = _connection.getConnection();
+			} catch (IOException ex) {
+				if (System.currentTimeMillis() > deadline) {
+					throw ex;
+				}
+				Thread.sleep(200);
+			}
+		}
+		assertEquals(42, second.getAttribute(TEST_MBEAN, "Fast"));
+	}
+
+	@Test
+	public void unavailableConnectionNeverFallsBackToThePlatform() throws Exception {
+		final JMXConnection connection = JMXConnection.unavailable("JMX server Test is stopped");
+		assertEquals("JMX server Test is stopped", connection.getStatus());
+		try {
+			connection.getConnection();
+			fail("read the local JVM through a stopped server");
+		} catch (IOException ex) {
+			assertEquals("JMX server Test is stopped", ex.getMessage());
+		}
+	}
+
+	private static ObjectName newObjectName(String name) {
+		try {
+			return new ObjectName(name);
+		} catch (Exception ex) {
+			throw new IllegalArgumentException(ex);
+		}
+	}
+}
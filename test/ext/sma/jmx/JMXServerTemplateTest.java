@@ -0,0 +1,123 @@
+package ext.sma.jmx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.things.properties.ThingProperty;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+
+/**
+ * Container refreshes on the platform MBeanServer, with Things usable without
+ * a running platform.
+ */
+public class JMXServerTemplateTest {
+
+	private static final int GROUPS = JMXServerTemplate.MAX_BLOCKED_READS * 2 + 8;
+
+	public interface GaugeMBean {
+		long getValue();
+	}
+
+	public static class Gauge implements GaugeMBean {
+		private final long _value;
+
+		public Gauge(long value) {
+			_value = value;
+		}
+
+		@Override
+		public long getValue() {
+			return _value;
+		}
+	}
+
+	static class Server extends JMXServerTemplate {
+		@Override
+		InfoTable createNamedVTQ() {
+			final DataShapeDefinition shape = new DataShapeDefinition();
+			shape.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+			shape.addFieldDefinition(new FieldDefinition("time", BaseTypes.DATETIME));
+			shape.addFieldDefinition(new FieldDefinition("value", BaseTypes.VARIANT));
+			shape.addFieldDefinition(new FieldDefinition("quality", BaseTypes.STRING));
+			return new InfoTable(shape);
+		}
+	}
+
+	static class Container extends JMXMBeanContainerTemplate {
+		private final Map<String, ThingProperty> _properties = new LinkedHashMap<String, ThingProperty>();
+
+		@Override
+		public String getName() {
+			return "TestContainer";
+		}
+
+		@Override
+		public Map<String, ThingProperty> getProperties() {
+			return _properties;
+		}
+
+		@Override
+		public void UpdatePropertyValues(InfoTable values) {
+			// counted by the collector statistics
+		}
+	}
+
+	private final MBeanServer _mbs = ManagementFactory.getPlatformMBeanServer();
+	private final List<ObjectName> _names = new ArrayList<ObjectName>();
+
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < GROUPS; i++) {
+			final ObjectName name = new ObjectName("ext.sma.jmx.test:type=Gauge,name=g" + i);
+			if (!_mbs.isRegistered(name)) {
+				_mbs.registerMBean(new Gauge(i), name);
+			}
+			_names.add(name);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (ObjectName name : _names) {
+			if (_mbs.isRegistered(name)) {
+				_mbs.unregisterMBean(name);
+			}
+		}
+	}
+
+	@Test
+	public void readsMoreGroupsThanTheBlockedReadLimit() throws Exception {
+		final Server server = new Server();
+		final Container container = new Container();
+		// one group per matching MBean, all read in the same refresh
+		final PropertyDefinition prop_def = new PropertyDefinition("Value_count", "ext.sma.jmx.test:type=Gauge,*",
+				BaseTypes.INTEGER);
+		prop_def.setCategory(JMXMBeanContainerTemplate.COUNT_CATEGORY);
+		final List<PropertyDefinition> properties = new ArrayList<PropertyDefinition>();
+		properties.add(prop_def);
+
+		final CollectorStatistics statistics = container.getCollectorStatistics();
+		for (int refresh = 1; refresh <= 3; refresh++) {
+			assertEquals(1, server.pushMBeanAttributes(container, properties));
+			assertEquals(refresh * GROUPS, statistics.getAttributesRead());
+			assertEquals(0, statistics.getAttributesSkipped());
+			assertEquals(0, statistics.getAttributesFailed());
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package ext.sma.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.types.BaseTypes;
+
+/**
+ * Series names and labels colliding once sanitized.
+ */
+public class OpenMetricsSnapshotTest {
+
+	private static ReadPlan.Binding binding(String name, String mbean) {
+		final PropertyDefinition prop_def = new PropertyDefinition(name, mbean, BaseTypes.NUMBER);
+		prop_def.setCategory(JMXMBeanContainerTemplate.MBEAN_CATEGORY);
+		return new ReadPlan().get(prop_def);
+	}
+
+	@Test
+	public void keysSanitizedToTheSameLabelAreSuffixed() {
+		final ReadPlan.Binding binding = binding("Value", "d:a.b=1,a_b=2");
+		final OpenMetricsSnapshot.Series series = OpenMetricsSnapshot.getSeries(binding, "S", "C", "d:a.b=1,a_b=2",
+				null);
+		assertEquals("jmx_d_Value{container=\"C\",server=\"S\",a_b=\"1\",a_b_2=\"2\"}", series.name);
+		assertSame(series, OpenMetricsSnapshot.getSeries(binding, "S", "C", "d:a.b=1,a_b=2", null));
+	}
+
+	@Test
+	public void metricNamesCollidingAreWrittenOnce() {
+		// the same attribute of two domains, bound in two containers
+		final ReadPlan.Binding dotted = binding("Value", "a.b:type=X");
+		final ReadPlan.Binding underscored = binding("Value", "a_b:type=X");
+		final Map<String, OpenMetricsSnapshot.Sample[]> dotted_samples = new HashMap<String, OpenMetricsSnapshot.Sample[]>();
+		dotted_samples.put("Value", new OpenMetricsSnapshot.Sample[] { OpenMetricsSnapshot
+				.sample(OpenMetricsSnapshot.getSeries(dotted, "S", "C", "a.b:type=X", null), 1, 1000) });
+		final Map<String, OpenMetricsSnapshot.Sample[]> underscored_samples = new HashMap<String, OpenMetricsSnapshot.Sample[]>();
+		underscored_samples.put("Value", new OpenMetricsSnapshot.Sample[] { OpenMetricsSnapshot
+				.sample(OpenMetricsSnapshot.getSeries(underscored, "S", "C", "a_b:type=X", null), 2, 1000) });
+
+		// the first attribute in order (a.b) keeps the name, a_b is skipped
+		assertEquals("# TYPE jmx_a_b_Value gauge\n"
+				+ "jmx_a_b_Value{container=\"C\",server=\"S\",type=\"X\"} 1 1.000\n"
+				+ "# EOF\n",
+				OpenMetricsSnapshot.write(Arrays.asList(OpenMetricsSnapshot.EMPTY.merge(underscored_samples),
+						OpenMetricsSnapshot.EMPTY.merge(dotted_samples))));
+	}
+}
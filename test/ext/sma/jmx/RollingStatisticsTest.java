@@ -0,0 +1,50 @@
+package ext.sma.jmx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.thingworx.types.collections.ValueCollection;
+
+/**
+ * Rings covering a time window whatever the sampling rate.
+ */
+public class RollingStatisticsTest {
+
+	@Test
+	public void fastSamplingIsDownsampledToCoverTheWindow() {
+		// 10 samples over 10 s, sampled every 100 ms for 30 s
+		final RollingStatistics statistics = new RollingStatistics(10, 10000);
+		final long start = 1000000;
+		for (long time = start; time < start + 30000; time += 100) {
+			statistics.add("value", time, time - start);
+		}
+
+		final List<ValueCollection> rows = statistics.getStatistics("value", 0);
+		assertEquals(1, rows.size());
+		final ValueCollection row = rows.get(0);
+		assertEquals(10, row.get("count").getValue());
+		// one sample per second kept, the ring covers the last 10 s instead of the last second
+		assertEquals(start + 20000, ((DateTime) row.get("start").getValue()).getMillis());
+		assertEquals(start + 29000, ((DateTime) row.get("end").getValue()).getMillis());
+		assertEquals(20000.0, row.get("min").getValue());
+		assertEquals(29000.0, row.get("max").getValue());
+	}
+
+	@Test
+	public void slowSamplingKeepsEverySample() {
+		final RollingStatistics statistics = new RollingStatistics(10, 10000);
+		final long start = 1000000;
+		for (int i = 0; i < 5; i++) {
+			statistics.add("value", start + i * 5000, i);
+		}
+
+		final ValueCollection row = statistics.getStatistics("value", start + 12000).get(0);
+		assertEquals(2, row.get("count").getValue());
+		assertEquals(start + 15000, ((DateTime) row.get("start").getValue()).getMillis());
+		assertEquals(start + 20000, ((DateTime) row.get("end").getValue()).getMillis());
+	}
+}
@@ -0,0 +1,49 @@
+package ext.sma.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Ticks of the shared sampling timer.
+ */
+public class SamplingSchedulerTest {
+
+	@Test
+	public void failingSamplesKeepTicking() throws Exception {
+		final AtomicInteger samples = new AtomicInteger();
+		final SamplingScheduler.Sampling sampling = SamplingScheduler.schedule("failing", 20, () -> {
+			samples.incrementAndGet();
+			throw new IllegalStateException("sample failed");
+		});
+		try {
+			final long deadline = System.currentTimeMillis() + 5000;
+			while (samples.get() < 5 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue("only " + samples.get() + " samples", samples.get() >= 5);
+		} finally {
+			sampling.cancel();
+		}
+	}
+
+	@Test
+	public void cancelledSamplingStops() throws Exception {
+		final AtomicInteger samples = new AtomicInteger();
+		final SamplingScheduler.Sampling sampling = SamplingScheduler.schedule("cancelled", 10,
+				samples::incrementAndGet);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (samples.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		sampling.cancel();
+		// a sample already dispatched may still complete
+		Thread.sleep(50);
+		final int count = samples.get();
+		Thread.sleep(200);
+		assertEquals(count, samples.get());
+	}
+}